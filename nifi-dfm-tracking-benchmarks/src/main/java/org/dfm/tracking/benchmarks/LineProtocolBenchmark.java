@@ -0,0 +1,93 @@
+package org.dfm.tracking.benchmarks;
+
+import org.dfm.tracking.protocol.LineProtocolWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per point of encoding a batch of tracking events: string formatting as the processors originally did,
+ * the line protocol writer, and the writer with the static parts pre-encoded as the processors do now.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class LineProtocolBenchmark {
+
+    private static final int BATCH_SIZE = 100;
+    private static final String MEASUREMENT = "dataflow_tracking_events";
+    private static final String CLUSTER = "benchmark-cluster";
+
+    private final String[] ids = new String[BATCH_SIZE];
+    private final long timestamp = System.currentTimeMillis() * 1_000_000L;
+    private byte[] encodedMeasurement;
+    private byte[] encodedTags;
+    private byte[] encodedFields;
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            ids[i] = UUID.randomUUID().toString();
+        }
+        encodedMeasurement = LineProtocolWriter.encodeMeasurement(MEASUREMENT);
+        encodedTags = LineProtocolWriter.encodeTags("nifi_cluster_name", CLUSTER);
+        encodedFields = LineProtocolWriter.encodeFields("event_type", "enter_dds");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public byte[] stringFormat() {
+        final StringBuilder points = new StringBuilder();
+        for (final String id : ids) {
+            if (points.length() > 0) {
+                points.append('\n');
+            }
+            points.append(String.format("%s,dataflow.tracking.id=%s,nifi_cluster_name=%s event_type=\"enter_dds\" %d",
+                    MEASUREMENT, id, CLUSTER, timestamp));
+        }
+        return points.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int writer() {
+        final LineProtocolWriter writer = LineProtocolWriter.acquire();
+        for (final String id : ids) {
+            writer.measurement(MEASUREMENT)
+                    .tag("dataflow.tracking.id", id)
+                    .tag("nifi_cluster_name", CLUSTER)
+                    .field("event_type", "enter_dds")
+                    .timestamp(timestamp);
+        }
+        return writer.size();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int writerWithPreEncodedParts() {
+        final LineProtocolWriter writer = LineProtocolWriter.acquire();
+        for (final String id : ids) {
+            writer.measurement(encodedMeasurement)
+                    .tag("dataflow.tracking.id", id)
+                    .tags(encodedTags)
+                    .fields(encodedFields)
+                    .timestamp(timestamp);
+        }
+        return writer.size();
+    }
+}
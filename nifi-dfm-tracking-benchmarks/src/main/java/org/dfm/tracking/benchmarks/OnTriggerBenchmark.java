@@ -0,0 +1,139 @@
+package org.dfm.tracking.benchmarks;
+
+import org.apache.nifi.controller.ControllerService;
+import org.apache.nifi.processor.Processor;
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.dfm.tracking.AbstractDataflowTrackingProcessor;
+import org.dfm.tracking.GenerateDataflowTrackingId;
+import org.dfm.tracking.UpdateDataflowTrackingEvent;
+import org.dfm.tracking.services.InfluxDB2ControllerService;
+import org.dfm.tracking.services.InfluxDBControllerService;
+import org.dfm.tracking.services.RollingFileTrackingSink;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end cost of one onTrigger invocation processing a full batch, including the write to an in-process
+ * InfluxDB stub or to local segment files. The scores are per batch; divide by the batch size for the cost per flow file. The processors
+ * run inside the NiFi mock framework, whose own overhead is part of the result.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class OnTriggerBenchmark {
+
+    @Param({"generate", "update"})
+    public String processor;
+
+    @Param({"synchronous", "buffered"})
+    public String writeMode;
+
+    @Param({"1", "100"})
+    public int batchSize;
+
+    @Param({"influxdb-v1", "influxdb-v2", "file"})
+    public String sinkType;
+
+    private InfluxDBStubServer influxdb;
+    private Path directory;
+    private TestRunner testRunner;
+    private ControllerService sink;
+    private Map<String, String> attributes;
+    private boolean initialized;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InitializationException {
+        influxdb = new InfluxDBStubServer();
+
+        final Class<? extends Processor> processorClass = "generate".equals(processor)
+                ? GenerateDataflowTrackingId.class
+                : UpdateDataflowTrackingEvent.class;
+        testRunner = TestRunners.newTestRunner(processorClass);
+
+        switch (sinkType) {
+            case "influxdb-v1" -> {
+                sink = new InfluxDBControllerService();
+                testRunner.addControllerService("sink", sink);
+                testRunner.setProperty(sink, InfluxDBControllerService.INFLUXDB_URL, influxdb.getUrl());
+                testRunner.setProperty(sink, InfluxDBControllerService.INFLUXDB_DATABASE, "benchmark");
+            }
+            case "influxdb-v2" -> {
+                sink = new InfluxDB2ControllerService();
+                testRunner.addControllerService("sink", sink);
+                testRunner.setProperty(sink, InfluxDB2ControllerService.INFLUXDB_URL, influxdb.getUrl());
+                testRunner.setProperty(sink, InfluxDB2ControllerService.INFLUXDB_ORGANIZATION, "benchmark");
+                testRunner.setProperty(sink, InfluxDB2ControllerService.INFLUXDB_BUCKET, "benchmark");
+                testRunner.setProperty(sink, InfluxDB2ControllerService.INFLUXDB_TOKEN, "benchmark");
+            }
+            default -> {
+                directory = Files.createTempDirectory("tracking-benchmark");
+                sink = new RollingFileTrackingSink();
+                testRunner.addControllerService("sink", sink);
+                testRunner.setProperty(sink, RollingFileTrackingSink.DIRECTORY, directory.toString());
+            }
+        }
+        testRunner.enableControllerService(sink);
+
+        testRunner.setProperty(AbstractDataflowTrackingProcessor.INFLUXDB_SERVICE, "sink");
+        testRunner.setProperty(AbstractDataflowTrackingProcessor.WRITE_MODE, writeMode);
+        testRunner.setProperty(AbstractDataflowTrackingProcessor.BATCH_SIZE, Integer.toString(batchSize));
+        if ("update".equals(processor)) {
+            testRunner.setProperty(UpdateDataflowTrackingEvent.EVENT_TYPE, UpdateDataflowTrackingEvent.EVENT_LEAVE_NIFI);
+            testRunner.setProperty(UpdateDataflowTrackingEvent.NIFI_COMPONENT, "Benchmark");
+        }
+
+        final String now = Long.toString(System.currentTimeMillis() * 1_000_000L);
+        attributes = Map.of(
+                AbstractDataflowTrackingProcessor.TRACKING_ID_ATTRIBUTE, "0190b5e2-8f43-7c11-9a6e-3f2c1d4e5a6b",
+                AbstractDataflowTrackingProcessor.DDS_ENTRY_TIME_ATTRIBUTE, now,
+                AbstractDataflowTrackingProcessor.LAST_EVENT_TIME_ATTRIBUTE, now);
+        initialized = false;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        testRunner.stop();
+        testRunner.disableControllerService(sink);
+        influxdb.close();
+        if (directory != null) {
+            try (var files = Files.walk(directory)) {
+                for (final Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public void onTrigger() {
+        for (int i = 0; i < batchSize; i++) {
+            testRunner.enqueue(new byte[0], attributes);
+        }
+        testRunner.run(1, false, !initialized);
+        initialized = true;
+        testRunner.clearTransferState();
+    }
+}
@@ -0,0 +1,59 @@
+package org.dfm.tracking.benchmarks;
+
+import org.dfm.tracking.id.RandomUuidGenerator;
+import org.dfm.tracking.id.ThreadLocalCounterIdGenerator;
+import org.dfm.tracking.id.TimeOrderedIdGenerator;
+import org.dfm.tracking.id.TrackingIdGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of generating one data item ID with each ID strategy, uncontended and with eight threads sharing a
+ * generator as concurrent tasks of one processor do.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TrackingIdBenchmark {
+
+    @Param({"random-uuid", "time-ordered", "counter"})
+    public String strategy;
+
+    private TrackingIdGenerator generator;
+
+    @Setup
+    public void setUp() {
+        final int nodeId = TrackingIdGenerator.nodeId("benchmark-cluster");
+        switch (strategy) {
+            case "time-ordered" -> generator = new TimeOrderedIdGenerator(nodeId);
+            case "counter" -> generator = new ThreadLocalCounterIdGenerator(nodeId);
+            default -> generator = new RandomUuidGenerator();
+        }
+    }
+
+    @Benchmark
+    public String nextId() {
+        return generator.nextId();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public String nextIdContended() {
+        return generator.nextId();
+    }
+}
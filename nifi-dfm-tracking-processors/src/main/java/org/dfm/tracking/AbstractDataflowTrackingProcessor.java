@@ -0,0 +1,436 @@
+package org.dfm.tracking;
+
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.AllowableValue;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.dfm.tracking.metrics.WriteMetrics;
+import org.dfm.tracking.protocol.LineProtocolWriter;
+import org.dfm.tracking.rollup.RollupAggregator;
+import org.dfm.tracking.services.RejectedWriteException;
+import org.dfm.tracking.services.TrackingSink;
+import org.dfm.tracking.services.TrackingStateService;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Common base for the tracking processors. Pulls flow files in batches and delivers the tracking
+ * events of a whole batch to InfluxDB at once, either synchronously or through the service's write buffer.
+ * Deliveries are recorded in lock-free {@link WriteMetrics}, available through {@link #getMetrics()}, and in
+ * the NiFi counters named {@code Tracking *}. Processors supporting {@link #EVENT_OUTPUT} can count events in a
+ * {@link RollupAggregator} instead of, or besides, writing them, which is flushed every {@link #ROLLUP_WINDOW}.
+ */
+public abstract class AbstractDataflowTrackingProcessor extends AbstractProcessor {
+
+    public static final String TRACKING_ID_ATTRIBUTE = "dataflow.tracking.id";
+    /** Epoch nanoseconds at which the data item entered the DDS. */
+    public static final String DDS_ENTRY_TIME_ATTRIBUTE = "dataflow.tracking.dds.entry.ns";
+    /** Epoch nanoseconds of the latest tracking event of the data item. */
+    public static final String LAST_EVENT_TIME_ATTRIBUTE = "dataflow.tracking.last.event.ns";
+    /** Name of the NiFi cluster where the data item entered the DDS. */
+    public static final String NIFI_CLUSTER_NAME_ATTRIBUTE = "nifi_cluster_name";
+    /** Whether events of the data item are written; a data item without the attribute is traced. */
+    public static final String TRACED_ATTRIBUTE = "dataflow.tracking.traced";
+    /** Sequence number of the latest tracking event of the data item, 0 for the event entering the DDS. */
+    public static final String SEQUENCE_ATTRIBUTE = "dataflow.tracking.sequence";
+    /** Field holding the sequence number of an event, so that duplicate points can be collapsed when queried. */
+    protected static final String SEQUENCE_FIELD = "sequence";
+    /** Encoded tags or fields of a point without any. */
+    protected static final byte[] NONE = new byte[0];
+    /** Tag naming the NiFi node that wrote a point, if the data item ID is a field. */
+    public static final String NIFI_NODE_TAG = "nifi_node";
+    /** Host name of this NiFi node. */
+    static final String NODE_NAME = resolveNodeName();
+
+    public static final PropertyDescriptor INFLUXDB_SERVICE = new PropertyDescriptor.Builder()
+            .name("InfluxDB Service")
+            .displayName("Tracking Sink")
+            .description("Controller Service the tracking events are written to, such as an InfluxDB 1.x or 2.x "
+                    + "service or a local rolling file sink")
+            .required(true)
+            .identifiesControllerService(TrackingSink.class)
+            .build();
+
+    public static final PropertyDescriptor MEASUREMENT_NAME = new PropertyDescriptor.Builder()
+            .name("Measurement Name")
+            .description("Name of the InfluxDB measurement the tracking events are written to. All tracking components "
+                    + "of a flow should use the same measurement, so that the path of a data item is in one place.")
+            .required(true)
+            .defaultValue("dataflow_tracking_events")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final AllowableValue SCHEMA_ID_TAG = new AllowableValue("id-tag", "Tracking ID Tag",
+            "The data item ID is a tag and the event details are fields. Every data item is a series of its own, so "
+                    + "the series index of InfluxDB grows with the traffic.");
+    public static final AllowableValue SCHEMA_ID_FIELD = new AllowableValue("id-field", "Tracking ID Field",
+            "The data item ID is a field and only the cluster, node, event type, component and system are tags, so "
+                    + "the number of series stays bounded. Event times are made unique per node so that the points "
+                    + "of different data items do not overwrite each other.");
+
+    public static final PropertyDescriptor SCHEMA_MODE = new PropertyDescriptor.Builder()
+            .name("Schema Mode")
+            .description("Whether the data item ID is written as a tag or as a field. All tracking components writing "
+                    + "to the same measurement should use the same mode.")
+            .required(true)
+            .allowableValues(SCHEMA_ID_TAG, SCHEMA_ID_FIELD)
+            .defaultValue(SCHEMA_ID_TAG.getValue())
+            .build();
+
+    public static final PropertyDescriptor TRACKING_STATE_SERVICE = new PropertyDescriptor.Builder()
+            .name("Tracking State Service")
+            .description("Optional Controller Service that keeps the latest event of every traced data item in memory, "
+                    + "for status lookups that do not query the tracking sink")
+            .required(false)
+            .identifiesControllerService(TrackingStateService.class)
+            .build();
+
+    public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor.Builder()
+            .name("Batch Size")
+            .description("Maximum number of flow files processed per invocation. The tracking events of all flow files "
+                    + "in a batch are written to InfluxDB in a single request and routed together.")
+            .required(true)
+            .defaultValue("100")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor MAX_BATCH_LATENCY = new PropertyDescriptor.Builder()
+            .name("Max Batch Latency")
+            .description("Maximum time a flow file waits in the incoming queue for a batch to fill up. While a batch is "
+                    + "incomplete and its oldest flow file is younger than this, the processor yields. "
+                    + "With 0 sec whatever is queued is written immediately.")
+            .required(true)
+            .defaultValue("0 sec")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final AllowableValue WRITE_MODE_SYNCHRONOUS = new AllowableValue("synchronous", "Synchronous",
+            "Each batch is written to InfluxDB before the flow files are routed; failed writes are routed accordingly.");
+    public static final AllowableValue WRITE_MODE_BUFFERED = new AllowableValue("buffered", "Buffered",
+            "Points are handed to the write buffer of the InfluxDB service, which writes them in the background. "
+                    + "Flow files are routed as soon as the buffer accepts their points.");
+
+    public static final PropertyDescriptor WRITE_MODE = new PropertyDescriptor.Builder()
+            .name("Write Mode")
+            .description("How the tracking events of a batch are delivered to InfluxDB")
+            .required(true)
+            .allowableValues(WRITE_MODE_SYNCHRONOUS, WRITE_MODE_BUFFERED)
+            .defaultValue(WRITE_MODE_SYNCHRONOUS.getValue())
+            .build();
+
+    public static final AllowableValue EVENT_OUTPUT_RAW = new AllowableValue("raw", "Raw Events",
+            "One point per event and data item.");
+    public static final AllowableValue EVENT_OUTPUT_ROLLUP = new AllowableValue("rollup", "Rollups",
+            "Only one point per window with the number of events per event type, NiFi component, system and cluster. "
+                    + "Nothing is written per data item.");
+    public static final AllowableValue EVENT_OUTPUT_BOTH = new AllowableValue("both", "Raw Events and Rollups",
+            "Both the points per data item and the rollups.");
+
+    public static final PropertyDescriptor EVENT_OUTPUT = new PropertyDescriptor.Builder()
+            .name("Event Output")
+            .description("What is written for the tracking events. Rollups are counted in memory, so untraced data items "
+                    + "are included in them.")
+            .required(true)
+            .allowableValues(EVENT_OUTPUT_RAW, EVENT_OUTPUT_ROLLUP, EVENT_OUTPUT_BOTH)
+            .defaultValue(EVENT_OUTPUT_RAW.getValue())
+            .build();
+
+    public static final PropertyDescriptor ROLLUP_WINDOW = new PropertyDescriptor.Builder()
+            .name("Rollup Window")
+            .description("Interval at which the rollup counts are written")
+            .required(true)
+            .defaultValue("10 sec")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .dependsOn(EVENT_OUTPUT, EVENT_OUTPUT_ROLLUP, EVENT_OUTPUT_BOTH)
+            .build();
+
+    public static final PropertyDescriptor ROLLUP_MEASUREMENT_NAME = new PropertyDescriptor.Builder()
+            .name("Rollup Measurement Name")
+            .description("Name of the measurement the rollup points are written to")
+            .required(true)
+            .defaultValue("dataflow_tracking_rollups")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .dependsOn(EVENT_OUTPUT, EVENT_OUTPUT_ROLLUP, EVENT_OUTPUT_BOTH)
+            .build();
+
+    public static final String COUNTER_POINTS_DELIVERED = "Tracking Points Delivered";
+    public static final String COUNTER_POINTS_SPILLED = "Tracking Points Spilled";
+    public static final String COUNTER_DELIVERY_FAILURES = "Tracking Delivery Failures";
+    public static final String COUNTER_DELIVERY_RETRIES = "Tracking Delivery Retries";
+    public static final String COUNTER_ITEMS_NOT_TRACED = "Tracking Items Not Traced";
+
+    /** Shared by all tracking processors of this node, so that their points never share a timestamp. */
+    private static final AtomicLong LAST_EVENT_TIME = new AtomicLong();
+
+    private final WriteMetrics metrics = new WriteMetrics();
+    private final AtomicBoolean spilling = new AtomicBoolean();
+    private volatile WritePlan writePlan;
+    private volatile ScheduledExecutorService rollupFlusher;
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) {
+        final TrackingSink sink = context.getProperty(INFLUXDB_SERVICE).asControllerService(TrackingSink.class);
+        final WritePlan plan = schedule(context, sink);
+        this.writePlan = plan;
+        if (plan.rollup != null) {
+            final ScheduledExecutorService rollupFlusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "Tracking Rollups " + getIdentifier());
+                thread.setDaemon(true);
+                return thread;
+            });
+            rollupFlusher.scheduleAtFixedRate(() -> flushRollups(plan),
+                    plan.rollupWindowMillis, plan.rollupWindowMillis, TimeUnit.MILLISECONDS);
+            this.rollupFlusher = rollupFlusher;
+        }
+    }
+
+    @OnStopped
+    public void onStopped() {
+        final ScheduledExecutorService rollupFlusher = this.rollupFlusher;
+        if (rollupFlusher == null) {
+            return;
+        }
+        rollupFlusher.shutdown();
+        try {
+            rollupFlusher.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.rollupFlusher = null;
+        // Write the counts of the last, incomplete window
+        flushRollups(writePlan);
+    }
+
+    /**
+     * Resolves the processor specific configuration once when the processor is scheduled.
+     *
+     * @return the plan used by every subsequent invocation until the processor is stopped
+     */
+    protected abstract WritePlan schedule(ProcessContext context, TrackingSink sink);
+
+    protected WritePlan getWritePlan() {
+        return writePlan;
+    }
+
+    protected WriteMetrics getWriteMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns a snapshot of this processor's delivery metrics. Points count as written once they are delivered
+     * according to the write mode: written to InfluxDB synchronously, or accepted by the service's write buffer.
+     * The service's own metrics describe what eventually reaches InfluxDB.
+     */
+    public Map<String, Number> getMetrics() {
+        final Map<String, Number> snapshot = new LinkedHashMap<>();
+        metrics.snapshot(snapshot);
+        return snapshot;
+    }
+
+    /**
+     * Yields when the InfluxDB service refuses writes because its circuit breaker is open, so that flow files
+     * stay queued instead of being pulled and failed one batch after the other.
+     *
+     * @return true if the processor yielded and should return without pulling flow files
+     */
+    protected boolean yieldWhileUnavailable(final WritePlan plan, final ProcessContext context) {
+        if (plan.sink.isAcceptingWrites()) {
+            return false;
+        }
+        context.yield();
+        return true;
+    }
+
+    /**
+     * Pulls the next batch of flow files. Returns an empty list when nothing is queued or when the batch is
+     * still incomplete and has not reached the configured latency, in which case the flow files are put back.
+     */
+    protected List<FlowFile> pollBatch(final WritePlan plan, final ProcessContext context, final ProcessSession session) {
+        final int batchSize = plan.batchSize;
+        final List<FlowFile> flowFiles = session.get(batchSize);
+        if (flowFiles.isEmpty() || flowFiles.size() >= batchSize) {
+            return flowFiles;
+        }
+
+        final long maxLatency = plan.maxBatchLatencyMillis;
+        if (maxLatency > 0) {
+            long oldestQueueDate = Long.MAX_VALUE;
+            for (final FlowFile flowFile : flowFiles) {
+                oldestQueueDate = Math.min(oldestQueueDate, flowFile.getLastQueueDate());
+            }
+            if (System.currentTimeMillis() - oldestQueueDate < maxLatency) {
+                session.rollback();
+                context.yield();
+                return Collections.emptyList();
+            }
+        }
+        return flowFiles;
+    }
+
+    /**
+     * Delivers newline-delimited line protocol points according to the configured write mode. Points that
+     * cannot be written synchronously are handed to the service's spill journal if it has one, unless InfluxDB
+     * rejected them for good.
+     *
+     * @throws IOException if the points were neither written nor journaled or, in buffered mode, not accepted
+     * @throws RejectedWriteException if InfluxDB rejected the points, so that retrying them is pointless
+     */
+    protected void deliverPoints(final WritePlan plan, final ProcessSession session, final LineProtocolWriter points)
+            throws IOException {
+        final TrackingSink sink = plan.sink;
+        final long start = System.nanoTime();
+        if (plan.buffered) {
+            if (!sink.enqueue(points.buffer(), 0, points.size())) {
+                recordFailure(session);
+                throw new IOException("Tracking sink rejected " + points.size() + " bytes");
+            }
+        } else {
+            try {
+                writePoints(plan, points);
+            } catch (IOException e) {
+                recordFailure(session);
+                if (e instanceof RejectedWriteException || !sink.spill(points.buffer(), 0, points.size())) {
+                    throw e;
+                }
+                metrics.recordSpill(points.size());
+                session.adjustCounter(COUNTER_POINTS_SPILLED, points.points(), false);
+                if (spilling.compareAndSet(false, true)) {
+                    getLogger().warn("Failed to write to the tracking sink, spilling to the journal until it recovers", e);
+                } else {
+                    getLogger().debug("Spilled {} bytes to the journal after failed write", points.size(), e);
+                }
+                return;
+            }
+            if (spilling.compareAndSet(true, false)) {
+                getLogger().info("Writing to the tracking sink succeeded again");
+            }
+        }
+        metrics.recordWrite(points.points(), points.size(), System.nanoTime() - start);
+        session.adjustCounter(COUNTER_POINTS_DELIVERED, points.points(), false);
+    }
+
+    private void recordFailure(final ProcessSession session) {
+        metrics.recordFailure();
+        session.adjustCounter(COUNTER_DELIVERY_FAILURES, 1, false);
+    }
+
+    /**
+     * Writes the rollup points of the current window according to the write mode. Rollups that cannot be written
+     * are handed to the sink's spill journal if it has one, and dropped otherwise.
+     */
+    protected void flushRollups(final WritePlan plan) {
+        final LineProtocolWriter points = LineProtocolWriter.acquire();
+        if (plan.rollup.drain(points, plan.rollupMeasurement, currentTimeNanos()) == 0) {
+            return;
+        }
+        final long start = System.nanoTime();
+        try {
+            if (plan.buffered) {
+                if (!plan.sink.enqueue(points.buffer(), 0, points.size())) {
+                    throw new IOException("Tracking sink rejected " + points.size() + " bytes");
+                }
+            } else {
+                writePoints(plan, points);
+            }
+            metrics.recordWrite(points.points(), points.size(), System.nanoTime() - start);
+        } catch (IOException e) {
+            metrics.recordFailure();
+            if (!(e instanceof RejectedWriteException) && plan.sink.spill(points.buffer(), 0, points.size())) {
+                metrics.recordSpill(points.size());
+                getLogger().warn("Failed to write {} rollup points, spilled them to the journal", points.points(), e);
+            } else {
+                getLogger().error("Failed to write {} rollup points, dropping them", points.points(), e);
+            }
+        }
+    }
+
+    /**
+     * Writes newline-delimited line protocol points to the tracking sink in a single write, retried by the sink.
+     */
+    protected void writePoints(final WritePlan plan, final LineProtocolWriter points) throws IOException {
+        plan.sink.write(points.buffer(), 0, points.size());
+    }
+
+    /**
+     * @return the current time in nanoseconds since the epoch, with the precision of the system clock
+     */
+    protected static long currentTimeNanos() {
+        final Instant now = Instant.now();
+        return now.getEpochSecond() * 1_000_000_000L + now.getNano();
+    }
+
+    /**
+     * @return the current time like {@link #currentTimeNanos()}, but strictly increasing across the calls of all
+     * tracking processors of this node, so that their points of different data items never share a timestamp.
+     * Points of other nodes are kept apart by the node tag.
+     */
+    protected long nextEventTimeNanos() {
+        final long now = currentTimeNanos();
+        return LAST_EVENT_TIME.accumulateAndGet(now, (last, current) -> current > last ? current : last + 1);
+    }
+
+    private static String resolveNodeName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            final String hostname = System.getenv("HOSTNAME");
+            return hostname == null ? "unknown" : hostname;
+        }
+    }
+
+    /**
+     * Starts the point of a data item with the measurement, the data item ID as a tag or a field depending on the
+     * schema mode, and the given tags and fields.
+     */
+    protected static LineProtocolWriter startPoint(final WritePlan plan, final LineProtocolWriter points,
+                                                   final String dataflowTrackingId, final byte[] tags, final byte[] fields) {
+        points.measurement(plan.measurement);
+        if (plan.trackingIdField) {
+            return points.tags(tags)
+                    .field(TRACKING_ID_ATTRIBUTE, dataflowTrackingId)
+                    .fields(fields);
+        }
+        return points.tag(TRACKING_ID_ATTRIBUTE, dataflowTrackingId)
+                .tags(tags)
+                .fields(fields);
+    }
+
+    /**
+     * @return the value of a nanosecond timestamp attribute, or -1 if it is missing or malformed
+     */
+    protected static long getTimeAttribute(final FlowFile flowFile, final String attribute) {
+        return getLongAttribute(flowFile, attribute, -1);
+    }
+
+    /**
+     * @return the value of a long attribute, or {@code defaultValue} if it is missing or malformed
+     */
+    protected static long getLongAttribute(final FlowFile flowFile, final String attribute, final long defaultValue) {
+        final String value = flowFile.getAttribute(attribute);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
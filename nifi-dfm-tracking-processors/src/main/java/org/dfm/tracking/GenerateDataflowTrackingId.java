@@ -1,26 +1,34 @@
 package org.dfm.tracking;
 
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.RequestBody;
-import okhttp3.Response;
 import org.apache.nifi.annotation.behavior.SideEffectFree;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.processor.*;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.util.StandardValidators;
-import org.dfm.tracking.services.InfluxDBService;
+import org.dfm.tracking.id.RandomUuidGenerator;
+import org.dfm.tracking.id.ThreadLocalCounterIdGenerator;
+import org.dfm.tracking.id.TimeOrderedIdGenerator;
+import org.dfm.tracking.id.TrackingIdGenerator;
+import org.dfm.tracking.protocol.LineProtocolWriter;
+import org.dfm.tracking.sampling.AdaptiveSamplingRate;
+import org.dfm.tracking.sampling.TraceSampler;
+import org.dfm.tracking.services.TrackingSink;
+import org.dfm.tracking.services.TrackingStateService;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 @SideEffectFree
 @Tags({"example", "data item", "identifier"})
-@CapabilityDescription("Generate a unique data item ID when a flow file enters the DDS and include the NiFi cluster name.")
-public class GenerateDataflowTrackingId extends AbstractProcessor {
+@CapabilityDescription("Generate a unique data item ID when a flow file enters the DDS and include the NiFi cluster name. "
+        + "Optionally only a sample of the data items is traced, chosen by a hash of their ID, so that the sampled items "
+        + "have complete paths while the write volume stays bounded.")
+public class GenerateDataflowTrackingId extends AbstractDataflowTrackingProcessor {
 
     public static final Relationship REL_SUCCESS = new Relationship.Builder()
             .name("success")
@@ -34,13 +42,6 @@ public class GenerateDataflowTrackingId extends AbstractProcessor {
     private List<PropertyDescriptor> descriptors;
     private Set<Relationship> relationships;
 
-    public static final PropertyDescriptor INFLUXDB_SERVICE = new PropertyDescriptor.Builder()
-            .name("InfluxDB Service")
-            .description("InfluxDB Controller Service")
-            .required(true)
-            .identifiesControllerService(InfluxDBService.class)
-            .build();
-
     public static final PropertyDescriptor NIFI_CLUSTER_NAME = new PropertyDescriptor.Builder()
             .name("NiFi Cluster Name")
             .description("Name of the NiFi cluster where the flow file enters the DDS")
@@ -49,20 +50,98 @@ public class GenerateDataflowTrackingId extends AbstractProcessor {
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
 
-    public static final PropertyDescriptor MEASUREMENT_NAME = new PropertyDescriptor.Builder()
-            .name("Measurement Name")
-            .description("Name of the InfluxDB measurement")
+    public static final AllowableValue ID_STRATEGY_RANDOM = new AllowableValue("random-uuid", "Random UUID",
+            "Random (version 4) UUIDs. Every ID draws from the JVM-wide SecureRandom, which contends under many concurrent tasks.");
+    public static final AllowableValue ID_STRATEGY_TIME_ORDERED = new AllowableValue("time-ordered", "Time-Ordered UUID",
+            "Version 7 UUIDs starting with a millisecond timestamp and containing a component derived from the cluster "
+                    + "and host name. Lock-free, increasing per node and cheap to range-scan downstream.");
+    public static final AllowableValue ID_STRATEGY_COUNTER = new AllowableValue("counter", "Thread-Local Counter",
+            "UUID-formatted IDs made of a random per-schedule nonce, the node component, a per-thread index and a "
+                    + "per-thread counter. The cheapest strategy; IDs are not ordered by time.");
+
+    public static final PropertyDescriptor ID_STRATEGY = new PropertyDescriptor.Builder()
+            .name("ID Strategy")
+            .description("How data item IDs are generated")
             .required(true)
-            .defaultValue("dataflow_tracking_events")
-            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .allowableValues(ID_STRATEGY_RANDOM, ID_STRATEGY_TIME_ORDERED, ID_STRATEGY_COUNTER)
+            .defaultValue(ID_STRATEGY_RANDOM.getValue())
+            .build();
+
+    public static final AllowableValue SAMPLING_NONE = new AllowableValue("none", "None",
+            "Every data item is traced.");
+    public static final AllowableValue SAMPLING_FIXED = new AllowableValue("fixed", "Fixed Rate",
+            "A fixed share of the data items is traced.");
+    public static final AllowableValue SAMPLING_ADAPTIVE = new AllowableValue("adaptive", "Adaptive",
+            "The share of traced data items is halved whenever the mean write latency of the tracking sink exceeds the "
+                    + "target, and raised step by step back to the sampling rate while it stays below it.");
+
+    public static final PropertyDescriptor SAMPLING_MODE = new PropertyDescriptor.Builder()
+            .name("Sampling Mode")
+            .description("Which data items are traced. Untraced data items still get an ID, but neither this processor "
+                    + "nor Update Dataflow Tracking Event writes events for them. The decision is written to the "
+                    + TRACED_ATTRIBUTE + " attribute.")
+            .required(true)
+            .allowableValues(SAMPLING_NONE, SAMPLING_FIXED, SAMPLING_ADAPTIVE)
+            .defaultValue(SAMPLING_NONE.getValue())
+            .build();
+
+    public static final PropertyDescriptor SAMPLING_RATE = new PropertyDescriptor.Builder()
+            .name("Sampling Rate")
+            .description("Share of the data items that is traced, between 0 and 1. The maximum rate in adaptive mode.")
+            .required(true)
+            .defaultValue("0.1")
+            .addValidator(StandardValidators.createNonNegativeFloatingPointValidator(1.0))
+            .dependsOn(SAMPLING_MODE, SAMPLING_FIXED, SAMPLING_ADAPTIVE)
+            .build();
+
+    public static final PropertyDescriptor MIN_SAMPLING_RATE = new PropertyDescriptor.Builder()
+            .name("Minimum Sampling Rate")
+            .description("Share of the data items that stays traced however high the write latency gets")
+            .required(true)
+            .defaultValue("0.001")
+            .addValidator(StandardValidators.createNonNegativeFloatingPointValidator(1.0))
+            .dependsOn(SAMPLING_MODE, SAMPLING_ADAPTIVE)
             .build();
 
+    public static final PropertyDescriptor TARGET_WRITE_LATENCY = new PropertyDescriptor.Builder()
+            .name("Target Write Latency")
+            .description("Mean write latency of the tracking sink above which the sampling rate is lowered")
+            .required(true)
+            .defaultValue("200 ms")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .dependsOn(SAMPLING_MODE, SAMPLING_ADAPTIVE)
+            .build();
+
+    private static final String EVENT_TYPE_ENTER_DDS = "enter_dds";
+
+    /** How often the adaptive sampling rate is adjusted. */
+    static final long SAMPLING_ADJUSTMENT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private volatile TrackingIdGenerator idGenerator;
+    private volatile String nifiClusterName;
+    private volatile boolean sampled;
+    private volatile double samplingRate;
+    private volatile AdaptiveSamplingRate adaptiveSamplingRate;
+
     @Override
     protected void init(final ProcessorInitializationContext context) {
         final List<PropertyDescriptor> descriptors = new ArrayList<>();
         descriptors.add(INFLUXDB_SERVICE);
         descriptors.add(NIFI_CLUSTER_NAME);
         descriptors.add(MEASUREMENT_NAME);
+        descriptors.add(SCHEMA_MODE);
+        descriptors.add(ID_STRATEGY);
+        descriptors.add(TRACKING_STATE_SERVICE);
+        descriptors.add(SAMPLING_MODE);
+        descriptors.add(SAMPLING_RATE);
+        descriptors.add(MIN_SAMPLING_RATE);
+        descriptors.add(TARGET_WRITE_LATENCY);
+        descriptors.add(BATCH_SIZE);
+        descriptors.add(MAX_BATCH_LATENCY);
+        descriptors.add(WRITE_MODE);
+        descriptors.add(EVENT_OUTPUT);
+        descriptors.add(ROLLUP_WINDOW);
+        descriptors.add(ROLLUP_MEASUREMENT_NAME);
         this.descriptors = Collections.unmodifiableList(descriptors);
 
         final Set<Relationship> relationships = new HashSet<>();
@@ -82,56 +161,159 @@ public class GenerateDataflowTrackingId extends AbstractProcessor {
     }
 
     @Override
-    public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
-        FlowFile flowFile = session.get();
-        if (flowFile == null) {
-            return;
-        }
+    protected WritePlan schedule(final ProcessContext context, final TrackingSink sink) {
+        final String nifiClusterName = context.getProperty(NIFI_CLUSTER_NAME).getValue();
+        this.nifiClusterName = nifiClusterName;
+        this.idGenerator = createIdGenerator(context.getProperty(ID_STRATEGY).getValue(), nifiClusterName);
+
+        final String samplingMode = context.getProperty(SAMPLING_MODE).getValue();
+        this.sampled = !SAMPLING_NONE.getValue().equals(samplingMode);
+        this.samplingRate = sampled ? context.getProperty(SAMPLING_RATE).asDouble() : 1.0;
+        this.adaptiveSamplingRate = SAMPLING_ADAPTIVE.getValue().equals(samplingMode)
+                ? new AdaptiveSamplingRate(context.getProperty(MIN_SAMPLING_RATE).asDouble(), samplingRate,
+                        context.getProperty(TARGET_WRITE_LATENCY).asTimePeriod(TimeUnit.NANOSECONDS),
+                        SAMPLING_ADJUSTMENT_INTERVAL_NANOS, System.nanoTime())
+                : null;
+        return createEnterPlan(context, sink, nifiClusterName);
+    }
 
-        getLogger().info("Processing flow file with ID {}", new Object[]{flowFile.getId()});
+    /**
+     * @return the plan of the enter events, with the event type and node as tags if the data item ID is a field
+     */
+    static WritePlan createEnterPlan(final ProcessContext context, final TrackingSink sink, final String nifiClusterName) {
+        final byte[] measurement = LineProtocolWriter.encodeMeasurement(context.getProperty(MEASUREMENT_NAME).getValue());
+        if (SCHEMA_ID_FIELD.getValue().equals(context.getProperty(SCHEMA_MODE).getValue())) {
+            return new WritePlan(context, sink, measurement,
+                    LineProtocolWriter.encodeTags("event_type", EVENT_TYPE_ENTER_DDS, "nifi_cluster_name", nifiClusterName,
+                            NIFI_NODE_TAG, NODE_NAME),
+                    NONE);
+        }
+        return new WritePlan(context, sink, measurement,
+                LineProtocolWriter.encodeTags("nifi_cluster_name", nifiClusterName),
+                LineProtocolWriter.encodeFields("event_type", EVENT_TYPE_ENTER_DDS));
+    }
 
-        // Generate a unique data item ID
-        String dataflowTrackingId = UUID.randomUUID().toString();
+    static TrackingIdGenerator createIdGenerator(final String strategy, final String nifiClusterName) {
+        if (ID_STRATEGY_TIME_ORDERED.getValue().equals(strategy)) {
+            return new TimeOrderedIdGenerator(TrackingIdGenerator.nodeId(nifiClusterName));
+        } else if (ID_STRATEGY_COUNTER.getValue().equals(strategy)) {
+            return new ThreadLocalCounterIdGenerator(TrackingIdGenerator.nodeId(nifiClusterName));
+        }
+        return new RandomUuidGenerator();
+    }
 
-        // Get InfluxDB service
-        InfluxDBService influxDBService = context.getProperty(INFLUXDB_SERVICE).asControllerService(InfluxDBService.class);
+    private static void recordState(final TrackingStateService stateService, final List<FlowFile> flowFiles) {
+        for (final FlowFile flowFile : flowFiles) {
+            if ("false".equals(flowFile.getAttribute(TRACED_ATTRIBUTE))) {
+                continue;
+            }
+            final long eventTime = getTimeAttribute(flowFile, DDS_ENTRY_TIME_ATTRIBUTE);
+            stateService.update(flowFile.getAttribute(TRACKING_ID_ATTRIBUTE), EVENT_TYPE_ENTER_DDS, null, null, eventTime, eventTime);
+        }
+    }
 
-        // Get InfluxDB properties from the service
-        String influxdbUrl = influxDBService.getInfluxdbUrl();
-        String influxdbDatabase = influxDBService.getInfluxdbDatabase();
-        OkHttpClient httpClient = influxDBService.getHttpClient();
-        String nifiClusterName = context.getProperty(NIFI_CLUSTER_NAME).getValue();
-        String measurementName = context.getProperty(MEASUREMENT_NAME).getValue();
+    @Override
+    public Map<String, Number> getMetrics() {
+        final Map<String, Number> metrics = super.getMetrics();
+        metrics.put("sampling.rate", samplingRate);
+        return metrics;
+    }
 
-        // Add the data item ID as an attribute
-        flowFile = session.putAttribute(flowFile, "dataflow.tracking.id", dataflowTrackingId);
-        flowFile = session.putAttribute(flowFile, "nifi_cluster_name", nifiClusterName);
+    /**
+     * Returns the current sampling rate, first adjusting it to the sink's write latency when it is adaptive and
+     * an adjustment is due.
+     */
+    private double currentSamplingRate(final WritePlan plan) {
+        final AdaptiveSamplingRate adaptiveSamplingRate = this.adaptiveSamplingRate;
+        if (adaptiveSamplingRate == null) {
+            return samplingRate;
+        }
+        final long now = System.nanoTime();
+        if (adaptiveSamplingRate.isDue(now)) {
+            final long writes = plan.sink.getWrites();
+            final long latencySum = plan.sink.getWriteLatencySumNanos();
+            final double previousRate = adaptiveSamplingRate.get();
+            final double rate = adaptiveSamplingRate.update(now, writes, latencySum);
+            if (rate != previousRate) {
+                getLogger().debug("Adjusted sampling rate from {} to {} after {} writes taking {} ns in total",
+                        previousRate, rate, writes, latencySum);
+            }
+            this.samplingRate = rate;
+        }
+        return adaptiveSamplingRate.get();
+    }
 
-        // Create a point to write to InfluxDB
-        String influxData = String.format("%s,dataflow.tracking.id=%s,nifi_cluster_name=%s event_type=\"enter_dds\"",
-                measurementName, dataflowTrackingId, nifiClusterName);
+    @Override
+    public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+        final WritePlan plan = getWritePlan();
+        if (yieldWhileUnavailable(plan, context)) {
+            return;
+        }
+        final List<FlowFile> flowFiles = pollBatch(plan, context, session);
+        if (flowFiles.isEmpty()) {
+            return;
+        }
 
-        // Write the point to InfluxDB
-        RequestBody body = RequestBody.create(influxData, okhttp3.MediaType.parse("text/plain"));
-        Request.Builder requestBuilder = new Request.Builder()
-                .url(influxdbUrl + "/write?db=" + influxdbDatabase)
-                .post(body);
+        final TrackingIdGenerator idGenerator = this.idGenerator;
+        final String nifiClusterName = this.nifiClusterName;
+        final boolean sampled = this.sampled;
+        final long samplingThreshold = sampled ? TraceSampler.threshold(currentSamplingRate(plan)) : Long.MAX_VALUE;
+        int untraced = 0;
+        final List<FlowFile> tracked = new ArrayList<>(flowFiles.size());
+        final LineProtocolWriter influxData = LineProtocolWriter.acquire();
+        for (FlowFile flowFile : flowFiles) {
+            // Generate a unique data item ID
+            String dataflowTrackingId = idGenerator.nextId();
+            final long eventTime = nextEventTimeNanos();
+            final String eventTimeValue = Long.toString(eventTime);
 
-        // Add authentication if necessary
-        requestBuilder = influxDBService.addAuthentication(requestBuilder);
+            // Add the data item ID and entry time as attributes
+            final Map<String, String> attributes = new HashMap<>(8);
+            attributes.put(TRACKING_ID_ATTRIBUTE, dataflowTrackingId);
+            attributes.put(NIFI_CLUSTER_NAME_ATTRIBUTE, nifiClusterName);
+            attributes.put(DDS_ENTRY_TIME_ATTRIBUTE, eventTimeValue);
+            attributes.put(LAST_EVENT_TIME_ATTRIBUTE, eventTimeValue);
+            attributes.put(SEQUENCE_ATTRIBUTE, "0");
+            final boolean traced = !sampled || TraceSampler.isTraced(dataflowTrackingId, samplingThreshold);
+            if (sampled) {
+                attributes.put(TRACED_ATTRIBUTE, Boolean.toString(traced));
+            }
+            tracked.add(session.putAllAttributes(flowFile, attributes));
+            if (!traced) {
+                untraced++;
+                continue;
+            }
+            if (!plan.rawEvents) {
+                continue;
+            }
 
-        Request request = requestBuilder.build();
+            // Create a point to write to InfluxDB
+            startPoint(plan, influxData, dataflowTrackingId, plan.staticTags, plan.staticFields)
+                    .field(SEQUENCE_FIELD, 0)
+                    .timestamp(eventTime);
+        }
 
-        try (Response response = httpClient.newCall(request).execute()) {
-            if (!response.isSuccessful()) {
-                throw new IOException("Unexpected code " + response);
+        if (untraced > 0) {
+            session.adjustCounter(COUNTER_ITEMS_NOT_TRACED, untraced, false);
+        }
+        try {
+            if (influxData.points() > 0) {
+                deliverPoints(plan, session, influxData);
+                if (getLogger().isDebugEnabled()) {
+                    getLogger().debug("Delivered {} points to InfluxDB", new Object[]{influxData.points()});
+                }
+            }
+            if (plan.rollup != null) {
+                plan.rollup.record(EVENT_TYPE_ENTER_DDS, null, null, nifiClusterName, tracked.size());
+            }
+            if (plan.stateService != null) {
+                recordState(plan.stateService, tracked);
             }
-            getLogger().info("Successfully wrote to InfluxDB for flow file ID {}", new Object[]{flowFile.getId()});
-            // Transfer the flow file to the success relationship
-            session.transfer(flowFile, REL_SUCCESS);
+            // Transfer the batch to the success relationship
+            session.transfer(tracked, REL_SUCCESS);
         } catch (IOException e) {
             getLogger().error("Failed to write to InfluxDB", e);
-            session.transfer(flowFile, REL_FAILURE);
+            session.transfer(tracked, REL_FAILURE);
         }
     }
 
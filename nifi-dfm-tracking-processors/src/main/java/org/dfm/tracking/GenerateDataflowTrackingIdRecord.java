@@ -0,0 +1,285 @@
+package org.dfm.tracking;
+
+import org.apache.nifi.annotation.behavior.SideEffectFree;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.processor.*;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.schema.access.SchemaNotFoundException;
+import org.apache.nifi.serialization.MalformedRecordException;
+import org.apache.nifi.serialization.RecordReader;
+import org.apache.nifi.serialization.RecordReaderFactory;
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.WriteResult;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.dfm.tracking.id.TrackingIdGenerator;
+import org.dfm.tracking.protocol.LineProtocolWriter;
+import org.dfm.tracking.services.TrackingSink;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.*;
+
+@SideEffectFree
+@Tags({"example", "data item", "identifier", "record"})
+@CapabilityDescription("Generate a unique data item ID for every record of a flow file when it enters the DDS. The ID is "
+        + "written into a field of each record and one enter event per record is written to InfluxDB once all records "
+        + "were written, so a flow file which cannot be read leaves no events behind. Records are streamed and the "
+        + "events are staged in the content repository, so memory use does not depend on the size of the flow file.")
+@WritesAttributes({
+        @WritesAttribute(attribute = "record.count", description = "The number of records in the flow file"),
+        @WritesAttribute(attribute = "mime.type", description = "The MIME type of the configured Record Writer")
+})
+public class GenerateDataflowTrackingIdRecord extends AbstractDataflowTrackingProcessor {
+
+    public static final Relationship REL_SUCCESS = new Relationship.Builder()
+            .name("success")
+            .description("All successful flow files are routed here")
+            .build();
+    public static final Relationship REL_FAILURE = new Relationship.Builder()
+            .name("failure")
+            .description("Flow files whose records could not be read or written, or whose events could not be "
+                    + "delivered, are routed here unchanged")
+            .build();
+
+    public static final PropertyDescriptor RECORD_READER = new PropertyDescriptor.Builder()
+            .name("Record Reader")
+            .description("Specifies the Controller Service to use for reading incoming data")
+            .required(true)
+            .identifiesControllerService(RecordReaderFactory.class)
+            .build();
+
+    public static final PropertyDescriptor RECORD_WRITER = new PropertyDescriptor.Builder()
+            .name("Record Writer")
+            .description("Specifies the Controller Service to use for writing out the records")
+            .required(true)
+            .identifiesControllerService(RecordSetWriterFactory.class)
+            .build();
+
+    public static final PropertyDescriptor TRACKING_ID_FIELD = new PropertyDescriptor.Builder()
+            .name("Tracking ID Field")
+            .description("Name of the record field the data item ID is written to. The field is added to the schema "
+                    + "if the records do not have it yet.")
+            .required(true)
+            .defaultValue("dataflow_tracking_id")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor RECORDS_PER_WRITE = new PropertyDescriptor.Builder()
+            .name("Records Per Write")
+            .description("Maximum number of enter events written to InfluxDB in a single request. A flow file with "
+                    + "more records is written in several requests, which bounds the memory used for the events.")
+            .required(true)
+            .defaultValue("10000")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    private List<PropertyDescriptor> descriptors;
+    private Set<Relationship> relationships;
+
+    private volatile TrackingIdGenerator idGenerator;
+    private volatile String nifiClusterName;
+    private volatile RecordReaderFactory readerFactory;
+    private volatile RecordSetWriterFactory writerFactory;
+    private volatile RecordField trackingIdField;
+    private volatile int recordsPerWrite;
+
+    @Override
+    protected void init(final ProcessorInitializationContext context) {
+        final List<PropertyDescriptor> descriptors = new ArrayList<>();
+        descriptors.add(INFLUXDB_SERVICE);
+        descriptors.add(RECORD_READER);
+        descriptors.add(RECORD_WRITER);
+        descriptors.add(TRACKING_ID_FIELD);
+        descriptors.add(GenerateDataflowTrackingId.NIFI_CLUSTER_NAME);
+        descriptors.add(MEASUREMENT_NAME);
+        descriptors.add(SCHEMA_MODE);
+        descriptors.add(GenerateDataflowTrackingId.ID_STRATEGY);
+        descriptors.add(RECORDS_PER_WRITE);
+        descriptors.add(WRITE_MODE);
+        this.descriptors = Collections.unmodifiableList(descriptors);
+
+        final Set<Relationship> relationships = new HashSet<>();
+        relationships.add(REL_SUCCESS);
+        relationships.add(REL_FAILURE);
+        this.relationships = Collections.unmodifiableSet(relationships);
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return relationships;
+    }
+
+    @Override
+    public List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return descriptors;
+    }
+
+    @Override
+    protected WritePlan schedule(final ProcessContext context, final TrackingSink sink) {
+        final String nifiClusterName = context.getProperty(GenerateDataflowTrackingId.NIFI_CLUSTER_NAME).getValue();
+        this.nifiClusterName = nifiClusterName;
+        this.idGenerator = GenerateDataflowTrackingId.createIdGenerator(
+                context.getProperty(GenerateDataflowTrackingId.ID_STRATEGY).getValue(), nifiClusterName);
+        this.readerFactory = context.getProperty(RECORD_READER).asControllerService(RecordReaderFactory.class);
+        this.writerFactory = context.getProperty(RECORD_WRITER).asControllerService(RecordSetWriterFactory.class);
+        this.trackingIdField = new RecordField(context.getProperty(TRACKING_ID_FIELD).getValue(), RecordFieldType.STRING.getDataType(), true);
+        this.recordsPerWrite = context.getProperty(RECORDS_PER_WRITE).asInteger();
+        return GenerateDataflowTrackingId.createEnterPlan(context, sink, nifiClusterName);
+    }
+
+    @Override
+    public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+        final WritePlan plan = getWritePlan();
+        if (yieldWhileUnavailable(plan, context)) {
+            return;
+        }
+        FlowFile flowFile = session.get();
+        if (flowFile == null) {
+            return;
+        }
+
+        final TrackingIdGenerator idGenerator = this.idGenerator;
+        final RecordReaderFactory readerFactory = this.readerFactory;
+        final RecordSetWriterFactory writerFactory = this.writerFactory;
+        final RecordField trackingIdField = this.trackingIdField;
+        final int recordsPerWrite = this.recordsPerWrite;
+        // All records of a flow file enter the DDS together
+        final long eventTime = nextEventTimeNanos();
+        final Map<String, String> originalAttributes = flowFile.getAttributes();
+        final Map<String, String> attributes = new HashMap<>();
+
+        // The events are staged in a child flow file while the records are written, and only delivered once the
+        // whole record set was written, so that a flow file which fails halfway leaves no events behind. The clone
+        // shares the original content, which is restored if the events cannot be delivered.
+        final FlowFile original = flowFile;
+        final FlowFile unchanged = session.clone(original);
+        FlowFile staging = session.create(original);
+        try {
+            try (OutputStream staged = new BufferedOutputStream(session.write(staging))) {
+                flowFile = session.write(flowFile, (in, out) -> {
+                    final LineProtocolWriter points = LineProtocolWriter.acquire();
+                    try (RecordReader reader = readerFactory.createRecordReader(original, in, getLogger())) {
+                        final RecordSchema schema = writerFactory.getSchema(originalAttributes, withTrackingIdField(reader.getSchema(), trackingIdField));
+                        try (RecordSetWriter writer = writerFactory.createWriter(getLogger(), schema, out, original)) {
+                            writer.beginRecordSet();
+                            long timestamp = eventTime;
+                            Record record;
+                            while ((record = reader.nextRecord()) != null) {
+                                final String dataflowTrackingId = idGenerator.nextId();
+                                record.setValue(trackingIdField, dataflowTrackingId);
+                                writer.write(record);
+
+                                startPoint(plan, points, dataflowTrackingId, plan.staticTags, plan.staticFields)
+                                        .field(SEQUENCE_FIELD, 0)
+                                        .timestamp(timestamp);
+                                // Without the ID as a tag, the points of the records would overwrite each other
+                                if (plan.trackingIdField) {
+                                    timestamp = nextEventTimeNanos();
+                                }
+                                if (points.points() >= recordsPerWrite) {
+                                    stage(points, staged);
+                                }
+                            }
+                            final WriteResult writeResult = writer.finishRecordSet();
+                            attributes.putAll(writeResult.getAttributes());
+                            attributes.put("record.count", String.valueOf(writeResult.getRecordCount()));
+                            attributes.put(CoreAttributes.MIME_TYPE.key(), writer.getMimeType());
+                        }
+                    } catch (SchemaNotFoundException | MalformedRecordException e) {
+                        throw new ProcessException("Failed to read records from " + original, e);
+                    }
+                    stage(points, staged);
+                });
+            }
+        } catch (ProcessException | IOException e) {
+            session.remove(staging);
+            session.remove(unchanged);
+            getLogger().error("Failed to track the records of {}", flowFile, e);
+            session.transfer(flowFile, REL_FAILURE);
+            return;
+        }
+
+        try {
+            session.read(staging, in -> deliverStaged(plan, session, in, recordsPerWrite));
+        } catch (ProcessException e) {
+            getLogger().error("Failed to write the enter events of {} to InfluxDB", flowFile, e);
+            flowFile = session.write(flowFile, out -> session.exportTo(unchanged, out));
+            session.transfer(flowFile, REL_FAILURE);
+            return;
+        } finally {
+            session.remove(staging);
+            session.remove(unchanged);
+        }
+
+        final String eventTimeValue = Long.toString(eventTime);
+        attributes.put(NIFI_CLUSTER_NAME_ATTRIBUTE, nifiClusterName);
+        attributes.put(DDS_ENTRY_TIME_ATTRIBUTE, eventTimeValue);
+        attributes.put(LAST_EVENT_TIME_ATTRIBUTE, eventTimeValue);
+        attributes.put(SEQUENCE_ATTRIBUTE, "0");
+        flowFile = session.putAllAttributes(flowFile, attributes);
+        session.transfer(flowFile, REL_SUCCESS);
+    }
+
+    private static void stage(final LineProtocolWriter points, final OutputStream staged) throws IOException {
+        if (points.points() > 0) {
+            staged.write(points.buffer(), 0, points.size());
+            staged.write('\n');
+            points.reset();
+        }
+    }
+
+    /**
+     * Delivers the staged newline-delimited points in chunks of at most {@code recordsPerWrite} points.
+     */
+    private void deliverStaged(final WritePlan plan, final ProcessSession session, final InputStream staged,
+                               final int recordsPerWrite) throws IOException {
+        final LineProtocolWriter points = LineProtocolWriter.acquire();
+        final byte[] chunk = new byte[8192];
+        byte[] line = new byte[256];
+        int lineLength = 0;
+        int read;
+        while ((read = staged.read(chunk)) != -1) {
+            for (int i = 0; i < read; i++) {
+                if (chunk[i] != '\n') {
+                    if (lineLength == line.length) {
+                        line = Arrays.copyOf(line, line.length * 2);
+                    }
+                    line[lineLength++] = chunk[i];
+                    continue;
+                }
+                points.point(line, 0, lineLength);
+                lineLength = 0;
+                if (points.points() >= recordsPerWrite) {
+                    deliverPoints(plan, session, points);
+                    points.reset();
+                }
+            }
+        }
+        if (points.points() > 0) {
+            deliverPoints(plan, session, points);
+        }
+    }
+
+    private static RecordSchema withTrackingIdField(final RecordSchema schema, final RecordField trackingIdField) {
+        if (schema.getField(trackingIdField.getFieldName()).isPresent()) {
+            return schema;
+        }
+        final List<RecordField> fields = new ArrayList<>(schema.getFields());
+        fields.add(trackingIdField);
+        return new SimpleRecordSchema(fields);
+    }
+}
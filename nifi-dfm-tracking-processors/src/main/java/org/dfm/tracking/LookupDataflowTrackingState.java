@@ -0,0 +1,125 @@
+package org.dfm.tracking;
+
+import org.apache.nifi.annotation.behavior.SideEffectFree;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.*;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.dfm.tracking.services.TrackingState;
+import org.dfm.tracking.services.TrackingStateService;
+
+import java.util.*;
+
+@SideEffectFree
+@Tags({"example", "data item", "tracking", "lookup", "enrich"})
+@CapabilityDescription("Adds the latest tracking event of a flow file's data item, as known to a Tracking State Service, "
+        + "to the flow file's attributes. The state is read from memory, so flows can route on the tracking status of "
+        + "their data items without querying the tracking sink.")
+@WritesAttributes({
+        @WritesAttribute(attribute = LookupDataflowTrackingState.EVENT_TYPE_ATTRIBUTE, description = "Type of the latest event"),
+        @WritesAttribute(attribute = LookupDataflowTrackingState.NIFI_COMPONENT_ATTRIBUTE, description = "NiFi component of the latest event, if any"),
+        @WritesAttribute(attribute = LookupDataflowTrackingState.SYSTEM_ATTRIBUTE, description = "System the data item left the DDS to, if it did"),
+        @WritesAttribute(attribute = LookupDataflowTrackingState.EVENT_TIME_ATTRIBUTE, description = "Epoch nanoseconds of the latest event"),
+        @WritesAttribute(attribute = AbstractDataflowTrackingProcessor.DDS_ENTRY_TIME_ATTRIBUTE,
+                description = "Epoch nanoseconds at which the data item entered the DDS, if the flow file does not have it yet")
+})
+public class LookupDataflowTrackingState extends AbstractProcessor {
+
+    static final String EVENT_TYPE_ATTRIBUTE = "dataflow.tracking.state.event.type";
+    static final String NIFI_COMPONENT_ATTRIBUTE = "dataflow.tracking.state.nifi.component";
+    static final String SYSTEM_ATTRIBUTE = "dataflow.tracking.state.system";
+    static final String EVENT_TIME_ATTRIBUTE = "dataflow.tracking.state.event.ns";
+
+    public static final Relationship REL_MATCHED = new Relationship.Builder()
+            .name("matched")
+            .description("Flow files whose data item has a known state are routed here with the state added")
+            .build();
+    public static final Relationship REL_UNMATCHED = new Relationship.Builder()
+            .name("unmatched")
+            .description("Flow files without a data item ID, or whose data item is unknown or was evicted, are routed here unchanged")
+            .build();
+
+    public static final PropertyDescriptor TRACKING_STATE_SERVICE = new PropertyDescriptor.Builder()
+            .fromPropertyDescriptor(AbstractDataflowTrackingProcessor.TRACKING_STATE_SERVICE)
+            .description("Controller Service the state of the data items is looked up in")
+            .required(true)
+            .build();
+
+    private List<PropertyDescriptor> descriptors;
+    private Set<Relationship> relationships;
+
+    private volatile TrackingStateService stateService;
+    private volatile int batchSize;
+
+    @Override
+    protected void init(final ProcessorInitializationContext context) {
+        final List<PropertyDescriptor> descriptors = new ArrayList<>();
+        descriptors.add(TRACKING_STATE_SERVICE);
+        descriptors.add(AbstractDataflowTrackingProcessor.BATCH_SIZE);
+        this.descriptors = Collections.unmodifiableList(descriptors);
+
+        final Set<Relationship> relationships = new HashSet<>();
+        relationships.add(REL_MATCHED);
+        relationships.add(REL_UNMATCHED);
+        this.relationships = Collections.unmodifiableSet(relationships);
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return relationships;
+    }
+
+    @Override
+    public List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return descriptors;
+    }
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) {
+        this.stateService = context.getProperty(TRACKING_STATE_SERVICE).asControllerService(TrackingStateService.class);
+        this.batchSize = context.getProperty(AbstractDataflowTrackingProcessor.BATCH_SIZE).asInteger();
+    }
+
+    @Override
+    public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+        final List<FlowFile> flowFiles = session.get(batchSize);
+        if (flowFiles.isEmpty()) {
+            return;
+        }
+
+        final TrackingStateService stateService = this.stateService;
+        final List<FlowFile> matched = new ArrayList<>(flowFiles.size());
+        final List<FlowFile> unmatched = new ArrayList<>();
+        for (final FlowFile flowFile : flowFiles) {
+            final TrackingState state = stateService.get(flowFile.getAttribute(AbstractDataflowTrackingProcessor.TRACKING_ID_ATTRIBUTE));
+            if (state == null) {
+                unmatched.add(flowFile);
+                continue;
+            }
+
+            final Map<String, String> attributes = new HashMap<>(8);
+            putIfPresent(attributes, EVENT_TYPE_ATTRIBUTE, state.eventType());
+            putIfPresent(attributes, NIFI_COMPONENT_ATTRIBUTE, state.nifiComponent());
+            putIfPresent(attributes, SYSTEM_ATTRIBUTE, state.system());
+            attributes.put(EVENT_TIME_ATTRIBUTE, Long.toString(state.eventTimeNanos()));
+            if (state.ddsEntryTimeNanos() >= 0 && flowFile.getAttribute(AbstractDataflowTrackingProcessor.DDS_ENTRY_TIME_ATTRIBUTE) == null) {
+                attributes.put(AbstractDataflowTrackingProcessor.DDS_ENTRY_TIME_ATTRIBUTE, Long.toString(state.ddsEntryTimeNanos()));
+            }
+            matched.add(session.putAllAttributes(flowFile, attributes));
+        }
+
+        session.transfer(matched, REL_MATCHED);
+        session.transfer(unmatched, REL_UNMATCHED);
+    }
+
+    private static void putIfPresent(final Map<String, String> attributes, final String name, final String value) {
+        if (value != null && !value.isEmpty()) {
+            attributes.put(name, value);
+        }
+    }
+}
@@ -0,0 +1,378 @@
+package org.dfm.tracking;
+
+import org.apache.nifi.annotation.behavior.Stateful;
+import org.apache.nifi.annotation.configuration.DefaultSchedule;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.components.AllowableValue;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.components.state.StateManager;
+import org.apache.nifi.components.state.StateMap;
+import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.controller.status.PortStatus;
+import org.apache.nifi.controller.status.ProcessGroupStatus;
+import org.apache.nifi.controller.status.ProcessorStatus;
+import org.apache.nifi.controller.status.RemoteProcessGroupStatus;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.provenance.ProvenanceEventRecord;
+import org.apache.nifi.provenance.ProvenanceEventType;
+import org.apache.nifi.reporting.AbstractReportingTask;
+import org.apache.nifi.reporting.ReportingContext;
+import org.apache.nifi.scheduling.SchedulingStrategy;
+import org.dfm.tracking.protocol.LineProtocolWriter;
+import org.dfm.tracking.services.RejectedWriteException;
+import org.dfm.tracking.services.TrackingSink;
+import org.dfm.tracking.services.TrackingState;
+import org.dfm.tracking.services.TrackingStateService;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.*;
+import java.util.regex.Pattern;
+
+@Tags({"tracking", "provenance", "influxdb", "reporting"})
+@CapabilityDescription("Derives tracking events from the provenance repository instead of from processors in the flow. "
+        + "Provenance events of flow files carrying a data item ID are read incrementally and written in large batches: "
+        + "data received into NiFi becomes enter_nifi, processing by a component becomes leave_nifi and data sent to a "
+        + "system outside the DDS becomes leave_dds. Events of the tracking processors themselves are ignored, so both "
+        + "ways of tracking can be combined. Runs on every node and reads that node's provenance repository. The "
+        + "nifi_component of an event is the name of the component in the flow, or its ID if the component no longer "
+        + "exists, not the NiFi Component configured on Update Dataflow Tracking Event; set that property to the "
+        + "processor's name for both kinds of events of a hop to line up.")
+@Stateful(scopes = Scope.LOCAL, description = "Stores the ID of the last provenance event written, from which the next run continues")
+@DefaultSchedule(strategy = SchedulingStrategy.TIMER_DRIVEN, period = "5 sec")
+public class ProvenanceTrackingReportingTask extends AbstractReportingTask {
+
+    static final String LAST_EVENT_ID_KEY = "last.event.id";
+
+    public static final AllowableValue START_BEGINNING = new AllowableValue("beginning", "Beginning of Stream",
+            "Start with the oldest event still in the provenance repository");
+    public static final AllowableValue START_END = new AllowableValue("end", "End of Stream",
+            "Start with the events recorded after the task is first scheduled");
+
+    public static final PropertyDescriptor START_POSITION = new PropertyDescriptor.Builder()
+            .name("Start Position")
+            .description("Where reading starts the first time the task runs; afterwards it continues from the last event written")
+            .required(true)
+            .allowableValues(START_BEGINNING, START_END)
+            .defaultValue(START_BEGINNING.getValue())
+            .build();
+
+    public static final PropertyDescriptor INTERNAL_TRANSIT_URI_PATTERN = new PropertyDescriptor.Builder()
+            .name("Internal Transit URI Pattern")
+            .description("Regular expression matching the transit URIs of SEND events that stay within the DDS, such as "
+                    + "site-to-site transfers to another NiFi. These become leave_nifi events; all other SEND events become "
+                    + "leave_dds events with the host of the transit URI as system.")
+            .required(true)
+            .defaultValue("^nifi://.*|.*/nifi-api/data-transfer/.*")
+            .addValidator(StandardValidators.REGULAR_EXPRESSION_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor.Builder()
+            .name("Batch Size")
+            .description("Maximum number of provenance events read at once; the tracking events derived from them are "
+                    + "written in a single request")
+            .required(true)
+            .defaultValue("10000")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor TRACKING_STATE_SERVICE = new PropertyDescriptor.Builder()
+            .fromPropertyDescriptor(AbstractDataflowTrackingProcessor.TRACKING_STATE_SERVICE)
+            .description("Controller Service keeping the latest event of every data item. When set, it is updated with the "
+                    + "derived events and hop latencies are measured from the previous event of the data item on this node.")
+            .build();
+
+    /** The tracking processors write their own events. */
+    private static final Set<String> TRACKING_COMPONENT_TYPES = Set.of(
+            GenerateDataflowTrackingId.class.getSimpleName(),
+            GenerateDataflowTrackingIdRecord.class.getSimpleName(),
+            UpdateDataflowTrackingEvent.class.getSimpleName(),
+            LookupDataflowTrackingState.class.getSimpleName());
+
+    private static final Set<ProvenanceEventType> ENTER_EVENT_TYPES = EnumSet.of(
+            ProvenanceEventType.RECEIVE, ProvenanceEventType.FETCH, ProvenanceEventType.CREATE);
+    private static final Set<ProvenanceEventType> PROCESS_EVENT_TYPES = EnumSet.of(
+            ProvenanceEventType.CONTENT_MODIFIED, ProvenanceEventType.ATTRIBUTES_MODIFIED, ProvenanceEventType.ROUTE,
+            ProvenanceEventType.FORK, ProvenanceEventType.JOIN, ProvenanceEventType.CLONE);
+
+    private volatile Pattern internalTransitUri;
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        final List<PropertyDescriptor> descriptors = new ArrayList<>();
+        descriptors.add(AbstractDataflowTrackingProcessor.INFLUXDB_SERVICE);
+        descriptors.add(AbstractDataflowTrackingProcessor.MEASUREMENT_NAME);
+        descriptors.add(AbstractDataflowTrackingProcessor.SCHEMA_MODE);
+        descriptors.add(START_POSITION);
+        descriptors.add(INTERNAL_TRANSIT_URI_PATTERN);
+        descriptors.add(BATCH_SIZE);
+        descriptors.add(TRACKING_STATE_SERVICE);
+        return descriptors;
+    }
+
+    @OnScheduled
+    public void onScheduled(final ConfigurationContext context) {
+        this.internalTransitUri = Pattern.compile(context.getProperty(INTERNAL_TRANSIT_URI_PATTERN).getValue());
+    }
+
+    @Override
+    public void onTrigger(final ReportingContext context) {
+        final TrackingSink sink = context.getProperty(AbstractDataflowTrackingProcessor.INFLUXDB_SERVICE).asControllerService(TrackingSink.class);
+        if (!sink.isAcceptingWrites()) {
+            getLogger().debug("Tracking sink is refusing writes, reading provenance events on the next run");
+            return;
+        }
+        final TrackingStateService stateService = context.getProperty(TRACKING_STATE_SERVICE).asControllerService(TrackingStateService.class);
+        final int batchSize = context.getProperty(BATCH_SIZE).asInteger();
+        final byte[] measurement = LineProtocolWriter.encodeMeasurement(
+                context.getProperty(AbstractDataflowTrackingProcessor.MEASUREMENT_NAME).getValue());
+        final boolean trackingIdField = AbstractDataflowTrackingProcessor.SCHEMA_ID_FIELD.getValue()
+                .equals(context.getProperty(AbstractDataflowTrackingProcessor.SCHEMA_MODE).getValue());
+        final StateManager stateManager = context.getStateManager();
+
+        long nextEventId;
+        try {
+            nextEventId = firstEventId(context, stateManager);
+        } catch (IOException e) {
+            getLogger().error("Failed to read the last provenance event written", e);
+            return;
+        }
+
+        final LineProtocolWriter points = LineProtocolWriter.acquire();
+        Map<String, String> componentNames = null;
+        while (true) {
+            final List<ProvenanceEventRecord> events;
+            try {
+                events = context.getEventAccess().getProvenanceEvents(nextEventId, batchSize);
+            } catch (IOException e) {
+                getLogger().error("Failed to read provenance events from event {}", nextEventId, e);
+                return;
+            }
+            if (events.isEmpty()) {
+                return;
+            }
+
+            if (componentNames == null) {
+                componentNames = new HashMap<>();
+                collectComponentNames(context.getEventAccess().getControllerStatus(), componentNames);
+            }
+
+            points.reset();
+            final List<ProvenanceEventRecord> tracked = new ArrayList<>();
+            // Events of a data item earlier in the batch are not in the tracking state yet
+            final Map<String, Long> lastEventTimes = new HashMap<>();
+            for (final ProvenanceEventRecord event : events) {
+                if (appendEvent(points, measurement, trackingIdField, event, componentName(componentNames, event),
+                        stateService, lastEventTimes)) {
+                    tracked.add(event);
+                }
+            }
+            final long lastEventId = events.get(events.size() - 1).getEventId();
+            boolean written = true;
+            try {
+                if (points.points() > 0) {
+                    sink.write(points.buffer(), 0, points.size());
+                }
+            } catch (RejectedWriteException e) {
+                // InfluxDB rejected the points themselves and would on every run, so the cursor moves past them;
+                // any other failure, refused credentials included, keeps the cursor
+                getLogger().error("InfluxDB rejected {} tracking events derived from provenance events {} to {}, skipping them",
+                        points.points(), nextEventId, lastEventId, e);
+                written = false;
+            } catch (IOException e) {
+                // The cursor stays where it is, so the batch is read and written again on the next run
+                getLogger().error("Failed to write {} tracking events derived from provenance events {} to {}",
+                        points.points(), nextEventId, lastEventId, e);
+                return;
+            }
+            try {
+                stateManager.setState(Map.of(LAST_EVENT_ID_KEY, Long.toString(lastEventId)), Scope.LOCAL);
+            } catch (IOException e) {
+                getLogger().error("Failed to store provenance event {} as the last one written", lastEventId, e);
+                return;
+            }
+            if (written && stateService != null) {
+                for (final ProvenanceEventRecord event : tracked) {
+                    updateState(stateService, event, componentName(componentNames, event));
+                }
+            }
+            getLogger().debug("Wrote {} tracking events derived from provenance events {} to {}", points.points(), nextEventId, lastEventId);
+
+            nextEventId = lastEventId + 1;
+            if (events.size() < batchSize) {
+                return;
+            }
+        }
+    }
+
+    private long firstEventId(final ReportingContext context, final StateManager stateManager) throws IOException {
+        final StateMap state = stateManager.getState(Scope.LOCAL);
+        final String lastEventId = state.get(LAST_EVENT_ID_KEY);
+        if (lastEventId != null) {
+            return Long.parseLong(lastEventId) + 1;
+        }
+        if (START_END.getValue().equals(context.getProperty(START_POSITION).getValue())) {
+            final Long maxEventId = context.getEventAccess().getProvenanceRepository().getMaxEventId();
+            if (maxEventId != null) {
+                stateManager.setState(Map.of(LAST_EVENT_ID_KEY, Long.toString(maxEventId)), Scope.LOCAL);
+                return maxEventId + 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return true if a tracking event was derived from the provenance event
+     */
+    private boolean appendEvent(final LineProtocolWriter points, final byte[] measurement, final boolean trackingIdField,
+                                final ProvenanceEventRecord event, final String componentName, final TrackingStateService stateService,
+                                final Map<String, Long> lastEventTimes) {
+        final Map<String, String> attributes = event.getAttributes();
+        final String dataflowTrackingId = attributes.get(AbstractDataflowTrackingProcessor.TRACKING_ID_ATTRIBUTE);
+        if (dataflowTrackingId == null || "false".equals(attributes.get(AbstractDataflowTrackingProcessor.TRACED_ATTRIBUTE))
+                || TRACKING_COMPONENT_TYPES.contains(event.getComponentType())) {
+            return false;
+        }
+        final String eventType = eventType(event);
+        if (eventType == null) {
+            return false;
+        }
+
+        final long eventTime = eventTimeNanos(event);
+        long previousEventTime = parseTime(attributes.get(AbstractDataflowTrackingProcessor.LAST_EVENT_TIME_ATTRIBUTE));
+        if (stateService != null) {
+            final TrackingState state = stateService.get(dataflowTrackingId);
+            if (state != null && state.eventTimeNanos() < eventTime) {
+                previousEventTime = Math.max(previousEventTime, state.eventTimeNanos());
+            }
+        }
+        final Long batchEventTime = lastEventTimes.put(dataflowTrackingId, eventTime);
+        if (batchEventTime != null && batchEventTime <= eventTime) {
+            previousEventTime = Math.max(previousEventTime, batchEventTime);
+        }
+        final long ddsEntryTime = parseTime(attributes.get(AbstractDataflowTrackingProcessor.DDS_ENTRY_TIME_ATTRIBUTE));
+
+        final String system = UpdateDataflowTrackingEvent.EVENT_LEAVE_DDS.getValue().equals(eventType)
+                ? system(event.getTransitUri())
+                : null;
+        points.measurement(measurement);
+        if (trackingIdField) {
+            // Timestamps derived from the event IDs keep the points of different data items of this node apart, and
+            // the node tag those of other nodes
+            points.tag("event_type", eventType)
+                    .tag("nifi_component", componentName)
+                    .tag("system", system)
+                    .tag(AbstractDataflowTrackingProcessor.NIFI_CLUSTER_NAME_ATTRIBUTE,
+                            attributes.get(AbstractDataflowTrackingProcessor.NIFI_CLUSTER_NAME_ATTRIBUTE))
+                    .tag(AbstractDataflowTrackingProcessor.NIFI_NODE_TAG, AbstractDataflowTrackingProcessor.NODE_NAME)
+                    .field(AbstractDataflowTrackingProcessor.TRACKING_ID_ATTRIBUTE, dataflowTrackingId)
+                    .field("nifi_component_id", event.getComponentId());
+        } else {
+            points.tag(AbstractDataflowTrackingProcessor.TRACKING_ID_ATTRIBUTE, dataflowTrackingId)
+                    .field("event_type", eventType)
+                    .field("nifi_component", componentName)
+                    .field("nifi_component_id", event.getComponentId())
+                    .field("system", system);
+        }
+        if (previousEventTime >= 0 && previousEventTime <= eventTime) {
+            points.field("hop_latency_ns", eventTime - previousEventTime);
+        }
+        if (ddsEntryTime >= 0 && ddsEntryTime <= eventTime) {
+            points.field("dds_age_ns", eventTime - ddsEntryTime);
+        }
+        points.timestamp(eventTime);
+        return true;
+    }
+
+    private void updateState(final TrackingStateService stateService, final ProvenanceEventRecord event, final String componentName) {
+        final Map<String, String> attributes = event.getAttributes();
+        final String eventType = eventType(event);
+        stateService.update(attributes.get(AbstractDataflowTrackingProcessor.TRACKING_ID_ATTRIBUTE), eventType,
+                componentName,
+                UpdateDataflowTrackingEvent.EVENT_LEAVE_DDS.getValue().equals(eventType) ? system(event.getTransitUri()) : null,
+                eventTimeNanos(event), parseTime(attributes.get(AbstractDataflowTrackingProcessor.DDS_ENTRY_TIME_ATTRIBUTE)));
+    }
+
+    /**
+     * Collects the names of the processors, ports and remote process groups of a process group and its children by ID.
+     */
+    private static void collectComponentNames(final ProcessGroupStatus group, final Map<String, String> names) {
+        if (group == null) {
+            return;
+        }
+        for (final ProcessorStatus processor : group.getProcessorStatus()) {
+            names.put(processor.getId(), processor.getName());
+        }
+        for (final PortStatus port : group.getInputPortStatus()) {
+            names.put(port.getId(), port.getName());
+        }
+        for (final PortStatus port : group.getOutputPortStatus()) {
+            names.put(port.getId(), port.getName());
+        }
+        for (final RemoteProcessGroupStatus remoteGroup : group.getRemoteProcessGroupStatus()) {
+            names.put(remoteGroup.getId(), remoteGroup.getName());
+        }
+        for (final ProcessGroupStatus child : group.getProcessGroupStatus()) {
+            collectComponentNames(child, names);
+        }
+    }
+
+    /**
+     * @return the name of the component that recorded the event, or its ID if the component is gone, but never its
+     * type, which would merge the events of all components of the same kind
+     */
+    private static String componentName(final Map<String, String> componentNames, final ProvenanceEventRecord event) {
+        return componentNames.getOrDefault(event.getComponentId(), event.getComponentId());
+    }
+
+    private String eventType(final ProvenanceEventRecord event) {
+        final ProvenanceEventType type = event.getEventType();
+        if (ENTER_EVENT_TYPES.contains(type)) {
+            return UpdateDataflowTrackingEvent.EVENT_ENTER_NIFI.getValue();
+        }
+        if (PROCESS_EVENT_TYPES.contains(type)) {
+            return UpdateDataflowTrackingEvent.EVENT_LEAVE_NIFI.getValue();
+        }
+        if (type == ProvenanceEventType.SEND) {
+            final String transitUri = event.getTransitUri();
+            return transitUri != null && internalTransitUri.matcher(transitUri).matches()
+                    ? UpdateDataflowTrackingEvent.EVENT_LEAVE_NIFI.getValue()
+                    : UpdateDataflowTrackingEvent.EVENT_LEAVE_DDS.getValue();
+        }
+        return null;
+    }
+
+    /**
+     * Provenance event times have millisecond precision. The event ID fills in the nanoseconds, so that events of
+     * a data item in the same millisecond stay distinct points, in the order they were recorded.
+     */
+    private static long eventTimeNanos(final ProvenanceEventRecord event) {
+        return event.getEventTime() * 1_000_000L + event.getEventId() % 1_000_000L;
+    }
+
+    private static String system(final String transitUri) {
+        if (transitUri == null) {
+            return "unknown";
+        }
+        try {
+            final String host = URI.create(transitUri).getHost();
+            return host == null ? transitUri : host;
+        } catch (IllegalArgumentException e) {
+            return transitUri;
+        }
+    }
+
+    private static long parseTime(final String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
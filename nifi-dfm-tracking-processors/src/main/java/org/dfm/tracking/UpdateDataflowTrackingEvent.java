@@ -1,68 +1,127 @@
 package org.dfm.tracking;
 
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.RequestBody;
-import okhttp3.Response;
 import org.apache.nifi.annotation.behavior.SideEffectFree;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
 import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.expression.ExpressionLanguageScope;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.processor.*;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.util.StandardValidators;
-import org.dfm.tracking.services.InfluxDBService;
+import org.dfm.tracking.dedup.DedupFilter;
+import org.dfm.tracking.protocol.LineProtocolWriter;
+import org.dfm.tracking.rollup.RollupAggregator;
+import org.dfm.tracking.services.CircuitOpenException;
+import org.dfm.tracking.services.RejectedWriteException;
+import org.dfm.tracking.services.TrackingSink;
+import org.dfm.tracking.services.TrackingStateService;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 @SideEffectFree
 @Tags({"example"})
-@CapabilityDescription("Update event when a data item leaves a NiFi component, enters a new NiFi component, or leaves the DDS with system name.")
-public class UpdateDataflowTrackingEvent extends AbstractProcessor {
+@CapabilityDescription("Update event when a data item leaves a NiFi component, enters a new NiFi component, or leaves the DDS with system name. "
+        + "The event type can be read from a flow file attribute and the component and system names can be expressions, "
+        + "so that a single instance can record the events of many components. "
+        + "Data items that were not sampled for tracing are passed through without writing an event, as are events "
+        + "already written within the optional dedup window.")
+public class UpdateDataflowTrackingEvent extends AbstractDataflowTrackingProcessor {
 
     public static final Relationship REL_SUCCESS = new Relationship.Builder()
             .name("success")
             .description("All successful flow files are routed here")
             .build();
 
-    public static final PropertyDescriptor INFLUXDB_SERVICE = new PropertyDescriptor.Builder()
-            .name("InfluxDB Service")
-            .description("InfluxDB Controller Service")
-            .required(true)
-            .identifiesControllerService(InfluxDBService.class)
-            .build();
+    /** Event time of flow files whose data items are not traced. */
+    private static final long UNTRACED = Long.MIN_VALUE;
 
     public static final AllowableValue EVENT_ENTER_DDS = new AllowableValue("enter_dds", "Enter DDS", "The data item enters the DDS.");
     public static final AllowableValue EVENT_LEAVE_DDS = new AllowableValue("leave_dds", "Leave DDS", "The data item leaves the DDS.");
     public static final AllowableValue EVENT_ENTER_NIFI = new AllowableValue("enter_nifi", "Enter NiFi", "The data item enters a NiFi component.");
     public static final AllowableValue EVENT_LEAVE_NIFI = new AllowableValue("leave_nifi", "Leave NiFi", "The data item leaves a NiFi component.");
+    public static final AllowableValue EVENT_FROM_ATTRIBUTE = new AllowableValue("attribute", "From Attribute",
+            "The event type is read from the flow file attribute named by Event Type Attribute. Flow files without a "
+                    + "valid event type are passed through without writing an event.");
+
+    private static final Set<String> EVENT_TYPES = Set.of(
+            EVENT_ENTER_DDS.getValue(), EVENT_LEAVE_DDS.getValue(), EVENT_ENTER_NIFI.getValue(), EVENT_LEAVE_NIFI.getValue());
 
     public static final PropertyDescriptor EVENT_TYPE = new PropertyDescriptor.Builder()
             .name("Event Type")
             .description("Type of event")
             .required(true)
-            .allowableValues(EVENT_ENTER_DDS, EVENT_LEAVE_DDS, EVENT_ENTER_NIFI, EVENT_LEAVE_NIFI)
+            .allowableValues(EVENT_ENTER_DDS, EVENT_LEAVE_DDS, EVENT_ENTER_NIFI, EVENT_LEAVE_NIFI, EVENT_FROM_ATTRIBUTE)
             .defaultValue(EVENT_ENTER_DDS.getValue())
             .build();
 
+    public static final PropertyDescriptor EVENT_TYPE_ATTRIBUTE = new PropertyDescriptor.Builder()
+            .name("Event Type Attribute")
+            .description("Flow file attribute holding one of the event types enter_dds, leave_dds, enter_nifi or leave_nifi")
+            .required(true)
+            .defaultValue("dataflow.tracking.event.type")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .dependsOn(EVENT_TYPE, EVENT_FROM_ATTRIBUTE)
+            .build();
+
     public static final PropertyDescriptor NIFI_COMPONENT = new PropertyDescriptor.Builder()
             .name("NiFi Component")
-            .description("Name of the NiFi component")
+            .description("Name of the NiFi component. Expressions are evaluated per flow file, for example to take the "
+                    + "name from an attribute set by the component. The provenance reporting task writes the name the "
+                    + "component has in the flow instead, so events of the same hop only line up if this is that name.")
             .required(false)
+            .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
 
     public static final PropertyDescriptor SYSTEM_NAME = new PropertyDescriptor.Builder()
             .name("System Name")
-            .description("Name of the system to which the data item is sent (only for leave_dds)")
+            .description("Name of the system to which the data item is sent (only for leave_dds). Expressions are "
+                    + "evaluated per flow file.")
             .required(false)
+            .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
+
+    public static final PropertyDescriptor DEDUP_WINDOW = new PropertyDescriptor.Builder()
+            .name("Dedup Window")
+            .description("How long written events are remembered, so that an event of a data item with the same event "
+                    + "type, component and system as one written within the window is dropped before it is sent. This "
+                    + "covers cloned and re-queued flow files, and also data items looping back through the same "
+                    + "component, whose repeated events are dropped as well. Events are not deduplicated if unset.")
+            .required(false)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor DEDUP_CAPACITY = new PropertyDescriptor.Builder()
+            .name("Dedup Capacity")
+            .description("Number of events remembered per dedup window, using 32 to 64 bytes of memory each. If more "
+                    + "events are written within the window, the oldest are forgotten early.")
+            .required(true)
+            .defaultValue("100000")
+            .addValidator(StandardValidators.createLongValidator(1, 10_000_000, true))
+            .dependsOn(DEDUP_WINDOW)
+            .build();
+
+    public static final String COUNTER_INVALID_EVENT_TYPES = "Tracking Invalid Event Types";
+    public static final String COUNTER_DUPLICATE_EVENTS = "Tracking Duplicate Events Dropped";
+
+    /** Event type, component and system of a tracking event. */
+    private record Event(String eventType, String nifiComponent, String system) {
+    }
+
+    /** Event of a point and the cluster it is tagged with, which is null unless the data item ID is a field. */
+    private record PointTags(Event event, String nifiClusterName) {
+    }
     private Set<Relationship> relationships;
     private List<PropertyDescriptor> descriptors;
+    /** The event of every flow file, or null if it depends on the flow file. */
+    private volatile Event staticEvent;
+    private volatile String eventTypeAttribute;
+    private volatile DedupFilter dedupFilter;
 
     @Override
     protected void init(final ProcessorInitializationContext context) {
@@ -72,9 +131,21 @@ public class UpdateDataflowTrackingEvent extends AbstractProcessor {
 
         final List<PropertyDescriptor> descriptors = new ArrayList<>();
         descriptors.add(INFLUXDB_SERVICE);
+        descriptors.add(MEASUREMENT_NAME);
+        descriptors.add(SCHEMA_MODE);
         descriptors.add(EVENT_TYPE);
+        descriptors.add(EVENT_TYPE_ATTRIBUTE);
         descriptors.add(NIFI_COMPONENT);
         descriptors.add(SYSTEM_NAME);
+        descriptors.add(DEDUP_WINDOW);
+        descriptors.add(DEDUP_CAPACITY);
+        descriptors.add(TRACKING_STATE_SERVICE);
+        descriptors.add(BATCH_SIZE);
+        descriptors.add(MAX_BATCH_LATENCY);
+        descriptors.add(WRITE_MODE);
+        descriptors.add(EVENT_OUTPUT);
+        descriptors.add(ROLLUP_WINDOW);
+        descriptors.add(ROLLUP_MEASUREMENT_NAME);
         this.descriptors = Collections.unmodifiableList(descriptors);
     }
 
@@ -88,50 +159,295 @@ public class UpdateDataflowTrackingEvent extends AbstractProcessor {
         return descriptors;
     }
 
+    @Override
+    protected WritePlan schedule(final ProcessContext context, final TrackingSink sink) {
+        final String eventType = context.getProperty(EVENT_TYPE).getValue();
+        final boolean dynamic = eventType.equals(EVENT_FROM_ATTRIBUTE.getValue())
+                || context.getProperty(NIFI_COMPONENT).isExpressionLanguagePresent()
+                || context.getProperty(SYSTEM_NAME).isExpressionLanguagePresent();
+        this.eventTypeAttribute = context.getProperty(EVENT_TYPE_ATTRIBUTE).getValue();
+        this.staticEvent = dynamic ? null : event(eventType, context.getProperty(NIFI_COMPONENT).getValue(),
+                context.getProperty(SYSTEM_NAME).getValue());
+        this.dedupFilter = context.getProperty(DEDUP_WINDOW).isSet()
+                ? new DedupFilter(context.getProperty(DEDUP_WINDOW).asTimePeriod(TimeUnit.NANOSECONDS),
+                        context.getProperty(DEDUP_CAPACITY).asInteger(), System.nanoTime())
+                : null;
+        // Without the data item ID as a tag, the event details, cluster and node are the tags of the point, and
+        // the cluster depends on the flow file
+        final boolean trackingIdField = SCHEMA_ID_FIELD.getValue().equals(context.getProperty(SCHEMA_MODE).getValue());
+        return new WritePlan(context, sink,
+                LineProtocolWriter.encodeMeasurement(context.getProperty(MEASUREMENT_NAME).getValue()),
+                NONE,
+                dynamic || trackingIdField ? NONE : encodeEvent(staticEvent, null, false));
+    }
+
     @Override
     public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
-        FlowFile flowFile = session.get();
-        if (flowFile == null) {
+        final WritePlan plan = getWritePlan();
+        if (yieldWhileUnavailable(plan, context)) {
+            return;
+        }
+        final List<FlowFile> flowFiles = pollBatch(plan, context, session);
+        if (flowFiles.isEmpty()) {
             return;
         }
 
-        // Get necessary attributes and properties
-        String dataflowTrackingId = flowFile.getAttribute("dataflow.tracking.id");
-        String eventType = context.getProperty(EVENT_TYPE).getValue();
-        InfluxDBService influxDBService = context.getProperty(INFLUXDB_SERVICE).asControllerService(InfluxDBService.class);
-        String influxdbUrl = influxDBService.getInfluxdbUrl();
-        String influxdbDatabase = influxDBService.getInfluxdbDatabase();
-        OkHttpClient httpClient = influxDBService.getHttpClient();
-        String nifiComponent = context.getProperty(NIFI_COMPONENT).getValue();
-        String systemName = context.getProperty(SYSTEM_NAME).getValue();
-
-        // Create a point to write to InfluxDB
-        String influxData = influxdbDatabase + ",dataflow.tracking.id=" + dataflowTrackingId + " event_type=\"" + eventType + "\"";
-        if (nifiComponent != null && !nifiComponent.isEmpty()) {
-            influxData += ",nifi_component=\"" + nifiComponent + "\"";
+        // Resolve the event of every flow file and group the batch by event, so that the points of an event are
+        // written together and its tags or fields are encoded once
+        final Event[] events = resolveEvents(context, session, flowFiles);
+        // Each event of a data item follows the previous one; a missing sequence counts as -1, so the first is 0
+        final long[] sequences = new long[flowFiles.size()];
+        for (int i = 0; i < sequences.length; i++) {
+            sequences[i] = getLongAttribute(flowFiles.get(i), SEQUENCE_ATTRIBUTE, -1) + 1;
         }
-        if (eventType.equals("leave_dds") && systemName != null) {
-            influxData += ",system=\"" + systemName + "\"";
+        final DedupFilter dedupFilter = this.dedupFilter;
+        final long[] fingerprints = dedupFilter == null ? null : dropDuplicates(dedupFilter, session, flowFiles, events);
+        final Map<PointTags, byte[]> encodedEvents = new HashMap<>();
+        if (staticEvent != null && !plan.trackingIdField) {
+            encodedEvents.put(new PointTags(staticEvent, null), plan.staticFields);
         }
 
-        // Write the point to InfluxDB
-        RequestBody body = RequestBody.create(influxData, okhttp3.MediaType.parse("text/plain"));
-        Request request = new Request.Builder()
-                .url(influxdbUrl + "/write?db=" + influxdbDatabase)
-                .post(body)
-                .build();
+        // Create one point per traced flow file to write to InfluxDB
+        final RollupAggregator rollup = plan.rollup;
+        final TrackingStateService stateService = plan.stateService;
+        final long[] eventTimes = new long[flowFiles.size()];
+        // Latencies are only rolled up once the batch has been delivered, so that retried batches are counted once
+        final long[] hopLatencies = rollup == null ? null : new long[flowFiles.size()];
+        final long[] ddsAges = rollup == null ? null : new long[flowFiles.size()];
+        final LineProtocolWriter influxData = LineProtocolWriter.acquire();
+        // Flow files without a valid event are passed through
+        Arrays.fill(eventTimes, UNTRACED);
+        for (final int i : groupByEvent(events)) {
+            final FlowFile flowFile = flowFiles.get(i);
+            final boolean traced = isTraced(flowFile);
+            if (!traced && rollup == null) {
+                eventTimes[i] = UNTRACED;
+                continue;
+            }
+            final long eventTime = nextEventTimeNanos();
+            final long lastEventTime = getTimeAttribute(flowFile, LAST_EVENT_TIME_ATTRIBUTE);
+            final long ddsEntryTime = getTimeAttribute(flowFile, DDS_ENTRY_TIME_ATTRIBUTE);
+            final long hopLatency = lastEventTime >= 0 ? eventTime - lastEventTime : -1;
+            final long ddsAge = ddsEntryTime >= 0 ? eventTime - ddsEntryTime : -1;
+            if (rollup != null) {
+                // The last event time of untraced data items is not maintained
+                hopLatencies[i] = traced ? hopLatency : -1;
+                ddsAges[i] = ddsAge;
+            }
+            if (!traced) {
+                eventTimes[i] = UNTRACED;
+                continue;
+            }
+            eventTimes[i] = eventTime;
+            if (!plan.rawEvents) {
+                continue;
+            }
+
+            final PointTags pointTags = new PointTags(events[i],
+                    plan.trackingIdField ? flowFile.getAttribute(NIFI_CLUSTER_NAME_ATTRIBUTE) : null);
+            final byte[] encodedEvent = encodedEvents.computeIfAbsent(pointTags,
+                    key -> encodeEvent(key.event(), key.nifiClusterName(), plan.trackingIdField));
+            final String dataflowTrackingId = flowFile.getAttribute(TRACKING_ID_ATTRIBUTE);
+            if (plan.trackingIdField) {
+                startPoint(plan, influxData, dataflowTrackingId, encodedEvent, NONE);
+            } else {
+                startPoint(plan, influxData, dataflowTrackingId, NONE, encodedEvent);
+            }
+            if (hopLatency >= 0) {
+                influxData.field("hop_latency_ns", hopLatency);
+            }
+            if (ddsAge >= 0) {
+                influxData.field("dds_age_ns", ddsAge);
+            }
+            influxData.field(SEQUENCE_FIELD, sequences[i])
+                    .timestamp(eventTime);
+        }
 
-        try (Response response = httpClient.newCall(request).execute()) {
-            if (!response.isSuccessful()) {
-                throw new IOException("Unexpected code " + response);
+        try {
+            if (influxData.points() > 0) {
+                deliverPoints(plan, session, influxData);
             }
+        } catch (RejectedWriteException e) {
+            // Retrying would be refused again and hold up the flow, so the flow files go on without their events
+            getLogger().error("Tracking sink rejected the events of {} flow files, passing them on without the events",
+                    influxData.points(), e);
+            session.transfer(flowFiles, REL_SUCCESS);
+            return;
         } catch (IOException e) {
-            getLogger().error("Failed to write to InfluxDB", e);
-            session.transfer(flowFile, Relationship.SELF);
+            // The service has already retried with backoff. Penalize the traced flow files so that they are not
+            // pulled again right away, and yield while the circuit breaker is open.
+            getLogger().error("Failed to write to the tracking sink, retrying the batch after the penalty", e);
+            getWriteMetrics().recordRetry();
+            session.adjustCounter(COUNTER_DELIVERY_RETRIES, influxData.points(), false);
+            final List<FlowFile> penalized = new ArrayList<>(influxData.points());
+            final List<FlowFile> untraced = new ArrayList<>();
+            for (int i = 0; i < flowFiles.size(); i++) {
+                if (eventTimes[i] == UNTRACED) {
+                    untraced.add(flowFiles.get(i));
+                } else {
+                    penalized.add(session.penalize(flowFiles.get(i)));
+                }
+            }
+            session.transfer(penalized, Relationship.SELF);
+            session.transfer(untraced, REL_SUCCESS);
+            if (e instanceof CircuitOpenException) {
+                context.yield();
+            }
             return;
         }
+        // Only delivered events are remembered, so that batches which failed are not dropped when retried
+        if (fingerprints != null) {
+            dedupFilter.addAll(fingerprints, fingerprints.length, System.nanoTime());
+        }
+
+        // Remember when the event happened so that the next hop can compute its latency
+        final List<FlowFile> updated = new ArrayList<>(flowFiles.size());
+        for (int i = 0; i < flowFiles.size(); i++) {
+            final FlowFile flowFile = flowFiles.get(i);
+            final Event event = events[i];
+            if (rollup != null && event != null) {
+                rollup.record(event.eventType(), event.nifiComponent(), event.system(),
+                        flowFile.getAttribute(NIFI_CLUSTER_NAME_ATTRIBUTE), hopLatencies[i], ddsAges[i]);
+            }
+            if (eventTimes[i] == UNTRACED) {
+                updated.add(flowFile);
+                continue;
+            }
+            final String eventTimeValue = Long.toString(eventTimes[i]);
+            final Map<String, String> attributes = new HashMap<>(4);
+            attributes.put(LAST_EVENT_TIME_ATTRIBUTE, eventTimeValue);
+            attributes.put(SEQUENCE_ATTRIBUTE, Long.toString(sequences[i]));
+            final long ddsEntryTime;
+            if (event.eventType().equals(EVENT_ENTER_DDS.getValue()) && flowFile.getAttribute(DDS_ENTRY_TIME_ATTRIBUTE) == null) {
+                attributes.put(DDS_ENTRY_TIME_ATTRIBUTE, eventTimeValue);
+                ddsEntryTime = eventTimes[i];
+            } else {
+                ddsEntryTime = stateService == null ? -1 : getTimeAttribute(flowFile, DDS_ENTRY_TIME_ATTRIBUTE);
+            }
+            updated.add(session.putAllAttributes(flowFile, attributes));
+            if (stateService != null) {
+                stateService.update(flowFile.getAttribute(TRACKING_ID_ATTRIBUTE), event.eventType(), event.nifiComponent(),
+                        event.system(), eventTimes[i], ddsEntryTime);
+            }
+        }
+
+        // Transfer the batch to the success relationship
+        session.transfer(updated, REL_SUCCESS);
+    }
+
+    /**
+     * @return the event of every flow file, with null for flow files whose event type attribute is missing or invalid
+     */
+    private Event[] resolveEvents(final ProcessContext context, final ProcessSession session, final List<FlowFile> flowFiles) {
+        final Event[] events = new Event[flowFiles.size()];
+        final Event staticEvent = this.staticEvent;
+        if (staticEvent != null) {
+            Arrays.fill(events, staticEvent);
+            return events;
+        }
+
+        final String configuredEventType = context.getProperty(EVENT_TYPE).getValue();
+        final boolean fromAttribute = configuredEventType.equals(EVENT_FROM_ATTRIBUTE.getValue());
+        int invalid = 0;
+        for (int i = 0; i < events.length; i++) {
+            final FlowFile flowFile = flowFiles.get(i);
+            final String eventType = fromAttribute ? flowFile.getAttribute(eventTypeAttribute) : configuredEventType;
+            if (eventType == null || !EVENT_TYPES.contains(eventType)) {
+                getLogger().warn("{} has no valid event type in {}: {}", flowFile, eventTypeAttribute, eventType);
+                invalid++;
+                continue;
+            }
+            events[i] = event(eventType,
+                    context.getProperty(NIFI_COMPONENT).evaluateAttributeExpressions(flowFile).getValue(),
+                    context.getProperty(SYSTEM_NAME).evaluateAttributeExpressions(flowFile).getValue());
+        }
+        if (invalid > 0) {
+            session.adjustCounter(COUNTER_INVALID_EVENT_TYPES, invalid, false);
+        }
+        return events;
+    }
+
+    /**
+     * Drops the events of traced data items that were written within the dedup window or repeat within the batch,
+     * so that their flow files are passed through unchanged. An event is identified by the tracking ID, event type,
+     * component and system, not by the sequence, which a re-queued flow file has already advanced. Untraced data
+     * items are only counted in rollups, so their events are kept.
+     *
+     * @return the fingerprints of the remaining events, to be remembered once they are delivered
+     */
+    private long[] dropDuplicates(final DedupFilter dedupFilter, final ProcessSession session, final List<FlowFile> flowFiles,
+                                  final Event[] events) {
+        final long now = System.nanoTime();
+        final long[] fingerprints = new long[events.length];
+        final Set<Long> batch = new HashSet<>();
+        int count = 0;
+        int duplicates = 0;
+        for (int i = 0; i < events.length; i++) {
+            final Event event = events[i];
+            final FlowFile flowFile = flowFiles.get(i);
+            if (event == null || !isTraced(flowFile)) {
+                continue;
+            }
+            final long fingerprint = DedupFilter.fingerprint(flowFile.getAttribute(TRACKING_ID_ATTRIBUTE),
+                    event.eventType(), event.nifiComponent(), event.system());
+            if (!batch.add(fingerprint) || dedupFilter.contains(fingerprint, now)) {
+                getLogger().debug("Dropping duplicate {} event of {}", event.eventType(), flowFile);
+                events[i] = null;
+                duplicates++;
+            } else {
+                fingerprints[count++] = fingerprint;
+            }
+        }
+        if (duplicates > 0) {
+            session.adjustCounter(COUNTER_DUPLICATE_EVENTS, duplicates, false);
+        }
+        return Arrays.copyOf(fingerprints, count);
+    }
+
+    /**
+     * @return the indexes of all flow files with an event, those of the same event next to each other
+     */
+    private static int[] groupByEvent(final Event[] events) {
+        boolean single = true;
+        for (int i = 0; i < events.length && single; i++) {
+            single = events[i] != null && events[i].equals(events[0]);
+        }
+        if (single) {
+            final int[] order = new int[events.length];
+            Arrays.setAll(order, i -> i);
+            return order;
+        }
+        final Map<Event, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < events.length; i++) {
+            if (events[i] != null) {
+                groups.computeIfAbsent(events[i], event -> new ArrayList<>()).add(i);
+            }
+        }
+        return groups.values().stream().flatMap(List::stream).mapToInt(Integer::intValue).toArray();
+    }
+
+    private static Event event(final String eventType, final String nifiComponent, final String system) {
+        return new Event(eventType,
+                nifiComponent == null || nifiComponent.isEmpty() ? null : nifiComponent,
+                eventType.equals(EVENT_LEAVE_DDS.getValue()) && system != null && !system.isEmpty() ? system : null);
+    }
+
+    private static byte[] encodeEvent(final Event event, final String nifiClusterName, final boolean asTags) {
+        if (asTags) {
+            return LineProtocolWriter.encodeTags(
+                    "event_type", event.eventType(),
+                    "nifi_component", event.nifiComponent(),
+                    "system", event.system(),
+                    NIFI_CLUSTER_NAME_ATTRIBUTE, nifiClusterName,
+                    NIFI_NODE_TAG, NODE_NAME);
+        }
+        return LineProtocolWriter.encodeFields(
+                "event_type", event.eventType(),
+                "nifi_component", event.nifiComponent(),
+                "system", event.system());
+    }
 
-        // Transfer the flow file to the success relationship
-        session.transfer(flowFile, REL_SUCCESS);
+    private static boolean isTraced(final FlowFile flowFile) {
+        return !"false".equals(flowFile.getAttribute(TRACED_ATTRIBUTE));
     }
 }
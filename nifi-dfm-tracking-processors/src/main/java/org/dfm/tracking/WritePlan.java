@@ -0,0 +1,76 @@
+package org.dfm.tracking;
+
+import org.apache.nifi.processor.ProcessContext;
+import org.dfm.tracking.protocol.LineProtocolWriter;
+import org.dfm.tracking.rollup.RollupAggregator;
+import org.dfm.tracking.services.TrackingSink;
+import org.dfm.tracking.services.TrackingStateService;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Everything a tracking processor needs on its hot path, resolved once when the processor is scheduled: the
+ * tracking sink, the write mode, the batching and rollup settings, the schema mode and the pre-encoded static parts
+ * of every point. Per flow file only the data item ID and the event-specific fields remain to be written.
+ */
+final class WritePlan {
+
+    final TrackingSink sink;
+    final boolean buffered;
+    final int batchSize;
+    final long maxBatchLatencyMillis;
+
+    /** Latest event per data item, or null if no state is kept. */
+    final TrackingStateService stateService;
+    /** Whether a point is written per event and data item. */
+    final boolean rawEvents;
+    /** Counts of the events of the current rollup window, or null if no rollups are written. */
+    final RollupAggregator rollup;
+    final long rollupWindowMillis;
+    /** Escaped rollup measurement name. */
+    final byte[] rollupMeasurement;
+
+    /** Escaped measurement name. */
+    final byte[] measurement;
+    /** Whether the data item ID is written as a field instead of a tag. */
+    final boolean trackingIdField;
+    /** Tags written with the data item ID. */
+    final byte[] staticTags;
+    /** Fields with the same value for every point. */
+    final byte[] staticFields;
+
+    WritePlan(final ProcessContext context, final TrackingSink sink,
+              final byte[] measurement, final byte[] staticTags, final byte[] staticFields) {
+        this.sink = sink;
+        this.buffered = AbstractDataflowTrackingProcessor.WRITE_MODE_BUFFERED.getValue()
+                .equals(context.getProperty(AbstractDataflowTrackingProcessor.WRITE_MODE).getValue());
+        // Processors that do not batch flow files do not support the batching properties
+        final Integer batchSize = context.getProperty(AbstractDataflowTrackingProcessor.BATCH_SIZE).asInteger();
+        final Long maxBatchLatencyMillis = context.getProperty(AbstractDataflowTrackingProcessor.MAX_BATCH_LATENCY).asTimePeriod(TimeUnit.MILLISECONDS);
+        this.batchSize = batchSize == null ? 1 : batchSize;
+        this.maxBatchLatencyMillis = maxBatchLatencyMillis == null ? 0 : maxBatchLatencyMillis;
+
+        // Processors that do not keep state or aggregate events do not support the corresponding properties
+        this.stateService = context.getProperty(AbstractDataflowTrackingProcessor.TRACKING_STATE_SERVICE)
+                .asControllerService(TrackingStateService.class);
+        final String eventOutput = context.getProperty(AbstractDataflowTrackingProcessor.EVENT_OUTPUT).getValue();
+        this.rawEvents = eventOutput == null || !AbstractDataflowTrackingProcessor.EVENT_OUTPUT_ROLLUP.getValue().equals(eventOutput);
+        if (eventOutput == null || AbstractDataflowTrackingProcessor.EVENT_OUTPUT_RAW.getValue().equals(eventOutput)) {
+            this.rollup = null;
+            this.rollupWindowMillis = 0;
+            this.rollupMeasurement = null;
+        } else {
+            this.rollup = new RollupAggregator();
+            this.rollupWindowMillis = context.getProperty(AbstractDataflowTrackingProcessor.ROLLUP_WINDOW).asTimePeriod(TimeUnit.MILLISECONDS);
+            this.rollupMeasurement = LineProtocolWriter.encodeMeasurement(
+                    context.getProperty(AbstractDataflowTrackingProcessor.ROLLUP_MEASUREMENT_NAME).getValue());
+        }
+
+        // Processors that do not support the schema mode write the data item ID as a tag
+        this.trackingIdField = AbstractDataflowTrackingProcessor.SCHEMA_ID_FIELD.getValue()
+                .equals(context.getProperty(AbstractDataflowTrackingProcessor.SCHEMA_MODE).getValue());
+        this.measurement = measurement;
+        this.staticTags = staticTags;
+        this.staticFields = staticFields;
+    }
+}
@@ -0,0 +1,141 @@
+package org.dfm.tracking.dedup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Remembers the 64-bit fingerprints of recently written events, so that an event written again within the window
+ * can be dropped. Fingerprints live in two open-addressing tables of primitive longs: new ones go into the current
+ * table, lookups check both. Once the window has elapsed, or the current table is full, the tables rotate and the
+ * older one is cleared. An event is therefore remembered for at least one window unless more events than the
+ * capacity arrive within it, and memory stays fixed at 32 to 64 bytes per entry of capacity.
+ * <p>
+ * Unlike a Bloom filter of the same size, collisions of 64-bit fingerprints are negligible, so no distinct event
+ * is ever dropped in practice.
+ */
+public final class DedupFilter {
+
+    private static final long FNV_OFFSET_BASIS = 0xCBF29CE484222325L;
+    private static final long FNV_PRIME = 0x100000001B3L;
+    private static final long EMPTY = 0;
+
+    private final long windowNanos;
+    private final int capacity;
+    private final int mask;
+
+    // Guarded by this
+    private long[] current;
+    private long[] previous;
+    private int size;
+    private long rotatedAt;
+    private long rotations;
+
+    /**
+     * @param capacity number of events remembered per window
+     */
+    public DedupFilter(final long windowNanos, final int capacity, final long nowNanos) {
+        this.windowNanos = windowNanos;
+        this.capacity = capacity;
+        // At most half full, so that probe sequences stay short
+        final int tableSize = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) << 1;
+        this.mask = tableSize - 1;
+        this.current = new long[tableSize];
+        this.previous = new long[tableSize];
+        this.rotatedAt = nowNanos;
+    }
+
+    /**
+     * @return true if the event with the given fingerprint was added within the window
+     */
+    public synchronized boolean contains(final long fingerprint, final long nowNanos) {
+        rotateIfDue(nowNanos);
+        return contains(current, fingerprint) || contains(previous, fingerprint);
+    }
+
+    /**
+     * Remembers the events with the first {@code count} of the given fingerprints.
+     */
+    public synchronized void addAll(final long[] fingerprints, final int count, final long nowNanos) {
+        rotateIfDue(nowNanos);
+        for (int i = 0; i < count; i++) {
+            if (size >= capacity) {
+                rotate(nowNanos);
+            }
+            if (add(current, fingerprints[i])) {
+                size++;
+            }
+        }
+    }
+
+    /**
+     * @return how often the tables have rotated; rotations more frequent than the window mean the capacity is too
+     * small for the event rate
+     */
+    public synchronized long getRotations() {
+        return rotations;
+    }
+
+    /**
+     * Fingerprint of an event, never 0.
+     */
+    public static long fingerprint(final String... identity) {
+        long hash = FNV_OFFSET_BASIS;
+        for (final String part : identity) {
+            if (part != null) {
+                for (final byte b : part.getBytes(StandardCharsets.UTF_8)) {
+                    hash = (hash ^ (b & 0xFF)) * FNV_PRIME;
+                }
+            }
+            // Separates the parts, so that ("ab", "c") and ("a", "bc") differ
+            hash = (hash ^ 0xFF) * FNV_PRIME;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        return hash == EMPTY ? 1 : hash;
+    }
+
+    private void rotateIfDue(final long nowNanos) {
+        if (nowNanos - rotatedAt >= windowNanos) {
+            rotate(nowNanos);
+        }
+    }
+
+    private void rotate(final long nowNanos) {
+        final long[] cleared = previous;
+        Arrays.fill(cleared, EMPTY);
+        this.previous = current;
+        this.current = cleared;
+        this.size = 0;
+        this.rotatedAt = nowNanos;
+        this.rotations++;
+    }
+
+    private boolean contains(final long[] table, final long fingerprint) {
+        for (int slot = (int) fingerprint & mask; ; slot = (slot + 1) & mask) {
+            final long entry = table[slot];
+            if (entry == fingerprint) {
+                return true;
+            }
+            if (entry == EMPTY) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @return true if the fingerprint was not in the table yet
+     */
+    private boolean add(final long[] table, final long fingerprint) {
+        for (int slot = (int) fingerprint & mask; ; slot = (slot + 1) & mask) {
+            final long entry = table[slot];
+            if (entry == fingerprint) {
+                return false;
+            }
+            if (entry == EMPTY) {
+                table[slot] = fingerprint;
+                return true;
+            }
+        }
+    }
+}
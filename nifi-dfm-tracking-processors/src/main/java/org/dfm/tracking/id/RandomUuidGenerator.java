@@ -0,0 +1,14 @@
+package org.dfm.tracking.id;
+
+import java.util.UUID;
+
+/**
+ * Random (version 4) UUIDs from the shared {@link java.security.SecureRandom}.
+ */
+public class RandomUuidGenerator implements TrackingIdGenerator {
+
+    @Override
+    public String nextId() {
+        return UUID.randomUUID().toString();
+    }
+}
@@ -0,0 +1,35 @@
+package org.dfm.tracking.id;
+
+import java.security.SecureRandom;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counter-based IDs in UUID format (version 8). Each generator draws a random 32-bit instance nonce once, each
+ * thread claims a 24-bit thread index once, and every ID then only increments a 50-bit counter owned by the
+ * calling thread, so generating an ID involves no shared state at all. IDs are unique as long as the nonce
+ * differs between generator instances, which holds with overwhelming probability.
+ */
+public class ThreadLocalCounterIdGenerator implements TrackingIdGenerator {
+
+    private static final long COUNTER_MASK = (1L << 50) - 1;
+
+    private final long nonceAndNode;
+    private final AtomicInteger threadIndexes = new AtomicInteger();
+    private final ThreadLocal<long[]> threadState = ThreadLocal.withInitial(() -> new long[]{threadIndexes.getAndIncrement() & 0xFFFFFF, 0});
+
+    public ThreadLocalCounterIdGenerator(final int nodeId) {
+        final long nonce = new SecureRandom().nextInt() & 0xFFFFFFFFL;
+        this.nonceAndNode = (nonce << 32) | ((long) (nodeId & 0xFFFF) << 16);
+    }
+
+    @Override
+    public String nextId() {
+        final long[] state = threadState.get();
+        final long threadIndex = state[0];
+        final long counter = state[1]++ & COUNTER_MASK;
+        final long mostSigBits = nonceAndNode | 0x8000L | (threadIndex >>> 12);
+        final long leastSigBits = 0x8000000000000000L | ((threadIndex & 0xFFF) << 50) | counter;
+        return new UUID(mostSigBits, leastSigBits).toString();
+    }
+}
@@ -0,0 +1,42 @@
+package org.dfm.tracking.id;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Version 7 UUIDs: a 48-bit Unix millisecond timestamp followed by a 12-bit sequence, the node component and
+ * 46 random bits. The timestamp and sequence are advanced with a lock-free compare-and-set, so IDs generated
+ * on one node are strictly increasing, and the random bits come from {@link ThreadLocalRandom} instead of the
+ * shared {@link java.security.SecureRandom}.
+ */
+public class TimeOrderedIdGenerator implements TrackingIdGenerator {
+
+    private static final int SEQUENCE_BITS = 12;
+
+    private final long nodeBits;
+    private final AtomicLong lastTimestampAndSequence = new AtomicLong();
+
+    public TimeOrderedIdGenerator(final int nodeId) {
+        this.nodeBits = (long) (nodeId & 0xFFFF) << 46;
+    }
+
+    @Override
+    public String nextId() {
+        final long now = System.currentTimeMillis() << SEQUENCE_BITS;
+        long previous;
+        long next;
+        do {
+            previous = lastTimestampAndSequence.get();
+            // Within the same millisecond, or if the clock went backwards, keep counting from the last value;
+            // a sequence overflow carries into the timestamp
+            next = Math.max(now, previous + 1);
+        } while (!lastTimestampAndSequence.compareAndSet(previous, next));
+
+        final long timestamp = next >>> SEQUENCE_BITS;
+        final long sequence = next & ((1L << SEQUENCE_BITS) - 1);
+        final long mostSigBits = (timestamp << 16) | 0x7000L | sequence;
+        final long leastSigBits = 0x8000000000000000L | nodeBits | (ThreadLocalRandom.current().nextLong() & 0x3FFFFFFFFFFFL);
+        return new UUID(mostSigBits, leastSigBits).toString();
+    }
+}
@@ -0,0 +1,31 @@
+package org.dfm.tracking.id;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Generates the values of the {@code dataflow.tracking.id} attribute. Implementations are thread-safe.
+ */
+public interface TrackingIdGenerator {
+
+    String nextId();
+
+    /**
+     * Derives a 16-bit node component from the cluster name and the local host name, so that generators on
+     * different nodes of the same cluster produce disjoint IDs.
+     */
+    static int nodeId(final String clusterName) {
+        String hostName;
+        try {
+            hostName = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            hostName = "";
+        }
+        int hash = 0x811C9DC5;
+        for (final byte b : (clusterName + '/' + hostName).getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ (b & 0xFF)) * 0x01000193;
+        }
+        return (hash ^ (hash >>> 16)) & 0xFFFF;
+    }
+}
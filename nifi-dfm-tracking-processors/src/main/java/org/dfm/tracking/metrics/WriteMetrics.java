@@ -0,0 +1,93 @@
+package org.dfm.tracking.metrics;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms describing how tracking events are written. All methods are lock-free and safe to
+ * call from any number of concurrent tasks.
+ */
+public final class WriteMetrics {
+
+    private final LongAdder pointsWritten = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder bytesSpilled = new LongAdder();
+    private final Histogram writeLatency = new Histogram();
+    private final Histogram batchSize = new Histogram();
+
+    /**
+     * Records a successful write of {@code points} points taking {@code latencyNanos}.
+     */
+    public void recordWrite(final long points, final long bytes, final long latencyNanos) {
+        pointsWritten.add(points);
+        bytesSent.add(bytes);
+        writes.increment();
+        writeLatency.record(latencyNanos);
+        batchSize.record(points);
+    }
+
+    public void recordFailure() {
+        failures.increment();
+    }
+
+    public void recordRetry() {
+        retries.increment();
+    }
+
+    public void recordSpill(final long bytes) {
+        bytesSpilled.add(bytes);
+    }
+
+    public long getPointsWritten() {
+        return pointsWritten.sum();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    public long getWrites() {
+        return writes.sum();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    public long getBytesSpilled() {
+        return bytesSpilled.sum();
+    }
+
+    public Histogram getWriteLatency() {
+        return writeLatency;
+    }
+
+    public Histogram getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Adds the current values to {@code metrics}, keyed by dotted metric names.
+     */
+    public void snapshot(final Map<String, Number> metrics) {
+        metrics.put("points.written", getPointsWritten());
+        metrics.put("bytes.sent", getBytesSent());
+        metrics.put("writes", getWrites());
+        metrics.put("failures", getFailures());
+        metrics.put("retries", getRetries());
+        metrics.put("bytes.spilled", getBytesSpilled());
+        metrics.put("write.latency.mean.ns", writeLatency.getMean());
+        metrics.put("write.latency.p50.ns", writeLatency.getPercentile(0.5));
+        metrics.put("write.latency.p99.ns", writeLatency.getPercentile(0.99));
+        metrics.put("write.latency.max.ns", writeLatency.getMax());
+        metrics.put("batch.size.mean", batchSize.getMean());
+        metrics.put("batch.size.max", batchSize.getMax());
+    }
+}
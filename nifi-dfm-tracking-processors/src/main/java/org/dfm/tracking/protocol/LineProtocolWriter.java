@@ -0,0 +1,374 @@
+package org.dfm.tracking.protocol;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Encodes InfluxDB line protocol points straight into a reusable UTF-8 byte buffer, escaping measurement
+ * names, tags and field values as required by the protocol. Each thread has its own pooled writer, obtained
+ * through {@link #acquire()}, so encoding a batch does not create intermediate Strings.
+ * <p>
+ * Points are newline-delimited. A typical point is written as
+ * {@code writer.measurement(m).tag(k, v).field(k, v).timestamp(ns)}.
+ */
+public final class LineProtocolWriter {
+
+    public static final MediaType LINE_PROTOCOL = MediaType.parse("text/plain; charset=utf-8");
+
+    private static final int INITIAL_CAPACITY = 8 * 1024;
+    private static final int MAX_RETAINED_CAPACITY = 4 * 1024 * 1024;
+    private static final ThreadLocal<LineProtocolWriter> POOL = ThreadLocal.withInitial(LineProtocolWriter::new);
+
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private int size;
+    private int points;
+    private boolean hasFields;
+
+    /**
+     * Returns the calling thread's writer, emptied. The writer and any {@link RequestBody} created from it stay
+     * valid until the same thread acquires the writer again.
+     */
+    public static LineProtocolWriter acquire() {
+        final LineProtocolWriter writer = POOL.get();
+        writer.reset();
+        return writer;
+    }
+
+    public LineProtocolWriter() {
+    }
+
+    /**
+     * Starts a new point.
+     */
+    public LineProtocolWriter measurement(final String measurement) {
+        if (points > 0) {
+            writeByte('\n');
+        }
+        points++;
+        hasFields = false;
+        writeEscaped(measurement, false);
+        return this;
+    }
+
+    /**
+     * Starts a new point with a measurement, and optionally tags, encoded by {@link #encodeMeasurement(String)}.
+     */
+    public LineProtocolWriter measurement(final byte[] encodedMeasurement) {
+        if (points > 0) {
+            writeByte('\n');
+        }
+        points++;
+        hasFields = false;
+        writeBytes(encodedMeasurement);
+        return this;
+    }
+
+    /**
+     * Adds a complete point which is already encoded, for example one read back from staged points.
+     *
+     * @param encodedPoint buffer holding the point, without the newline delimiting it
+     */
+    public LineProtocolWriter point(final byte[] encodedPoint, final int offset, final int length) {
+        if (points > 0) {
+            writeByte('\n');
+        }
+        points++;
+        hasFields = true;
+        ensureCapacity(length);
+        System.arraycopy(encodedPoint, offset, buffer, size, length);
+        size += length;
+        return this;
+    }
+
+    /**
+     * Adds tags encoded by {@link #encodeTags(String...)} to the current point.
+     */
+    public LineProtocolWriter tags(final byte[] encodedTags) {
+        writeBytes(encodedTags);
+        return this;
+    }
+
+    /**
+     * Adds fields encoded by {@link #encodeFields(String...)} to the current point.
+     */
+    public LineProtocolWriter fields(final byte[] encodedFields) {
+        if (encodedFields.length > 0) {
+            writeByte(hasFields ? ',' : ' ');
+            hasFields = true;
+            writeBytes(encodedFields);
+        }
+        return this;
+    }
+
+    /**
+     * Adds a tag to the current point. Tags without a value are omitted, as InfluxDB does not accept them.
+     * All tags must be written before the first field.
+     */
+    public LineProtocolWriter tag(final String key, final String value) {
+        if (value == null || value.isEmpty()) {
+            return this;
+        }
+        writeByte(',');
+        writeEscaped(key, true);
+        writeByte('=');
+        writeEscaped(value, true);
+        return this;
+    }
+
+    /**
+     * Adds a string field to the current point. Fields without a value are omitted.
+     */
+    public LineProtocolWriter field(final String key, final String value) {
+        if (value == null) {
+            return this;
+        }
+        startField(key);
+        writeByte('"');
+        final int length = value.length();
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                writeByte('\\');
+            } else if (c == '\n' || c == '\r') {
+                writeByte(' ');
+                continue;
+            }
+            i = writeChar(value, i);
+        }
+        writeByte('"');
+        return this;
+    }
+
+    /**
+     * Adds an integer field to the current point.
+     */
+    public LineProtocolWriter field(final String key, final long value) {
+        startField(key);
+        writeLong(value);
+        writeByte('i');
+        return this;
+    }
+
+    /**
+     * Ends the current point with a timestamp in the precision the points are written with.
+     */
+    public LineProtocolWriter timestamp(final long timestamp) {
+        writeByte(' ');
+        writeLong(timestamp);
+        return this;
+    }
+
+    /**
+     * @return the backing buffer; only the first {@link #size()} bytes are valid
+     */
+    public byte[] buffer() {
+        return buffer;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of points written since the last reset
+     */
+    public int points() {
+        return points;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+
+    public void reset() {
+        if (buffer.length > MAX_RETAINED_CAPACITY) {
+            buffer = new byte[INITIAL_CAPACITY];
+        }
+        size = 0;
+        points = 0;
+        hasFields = false;
+    }
+
+    /**
+     * Creates a request body which streams the encoded points from this writer's buffer without copying them.
+     */
+    public RequestBody toRequestBody() {
+        final byte[] body = buffer;
+        final int length = size;
+        return new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return LINE_PROTOCOL;
+            }
+
+            @Override
+            public long contentLength() {
+                return length;
+            }
+
+            @Override
+            public void writeTo(final BufferedSink sink) throws IOException {
+                sink.write(body, 0, length);
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, 0, size, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Pre-encodes a measurement name for {@link #measurement(byte[])}.
+     */
+    public static byte[] encodeMeasurement(final String measurement) {
+        final LineProtocolWriter writer = new LineProtocolWriter();
+        writer.writeEscaped(measurement, false);
+        return writer.toByteArray();
+    }
+
+    /**
+     * Pre-encodes tags for {@link #tags(byte[])}. Tags without a value are omitted.
+     *
+     * @param keysAndValues alternating tag keys and values
+     */
+    public static byte[] encodeTags(final String... keysAndValues) {
+        final LineProtocolWriter writer = new LineProtocolWriter();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            writer.tag(keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return writer.toByteArray();
+    }
+
+    /**
+     * Pre-encodes string fields for {@link #fields(byte[])}. Fields without a value are omitted.
+     *
+     * @param keysAndValues alternating field keys and values
+     */
+    public static byte[] encodeFields(final String... keysAndValues) {
+        final LineProtocolWriter writer = new LineProtocolWriter();
+        writer.hasFields = true;
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            writer.field(keysAndValues[i], keysAndValues[i + 1]);
+        }
+        // Drop the separator in front of the first field
+        return writer.size == 0 ? new byte[0] : Arrays.copyOfRange(writer.buffer, 1, writer.size);
+    }
+
+    /**
+     * @return the number of newline-delimited points in the given range of encoded points
+     */
+    public static int countPoints(final byte[] points, final int offset, final int length) {
+        int lines = 0;
+        for (int i = offset; i < offset + length; i++) {
+            if (points[i] == '\n') {
+                lines++;
+            }
+        }
+        return length > 0 && points[offset + length - 1] != '\n' ? lines + 1 : lines;
+    }
+
+    private void startField(final String key) {
+        writeByte(hasFields ? ',' : ' ');
+        hasFields = true;
+        writeEscaped(key, true);
+        writeByte('=');
+    }
+
+    /**
+     * Writes a measurement name, tag key, tag value or field key. Commas and spaces are always escaped,
+     * equals signs only in tags and field keys.
+     */
+    private void writeEscaped(final String value, final boolean escapeEquals) {
+        final int length = value.length();
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            if (c == ',' || c == ' ' || (escapeEquals && c == '=')) {
+                writeByte('\\');
+            } else if (c == '\n' || c == '\r') {
+                // Line breaks cannot be escaped and would end the point
+                writeByte('\\');
+                writeByte(' ');
+                continue;
+            }
+            i = writeChar(value, i);
+        }
+    }
+
+    /**
+     * Writes the character at {@code index} as UTF-8 and returns the index of the last char consumed.
+     */
+    private int writeChar(final String value, final int index) {
+        final char c = value.charAt(index);
+        if (c < 0x80) {
+            writeByte(c);
+        } else if (c < 0x800) {
+            ensureCapacity(2);
+            buffer[size++] = (byte) (0xC0 | (c >> 6));
+            buffer[size++] = (byte) (0x80 | (c & 0x3F));
+        } else if (Character.isHighSurrogate(c) && index + 1 < value.length() && Character.isLowSurrogate(value.charAt(index + 1))) {
+            final int codePoint = Character.toCodePoint(c, value.charAt(index + 1));
+            ensureCapacity(4);
+            buffer[size++] = (byte) (0xF0 | (codePoint >> 18));
+            buffer[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+            buffer[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            buffer[size++] = (byte) (0x80 | (codePoint & 0x3F));
+            return index + 1;
+        } else if (Character.isSurrogate(c)) {
+            writeByte('?');
+        } else {
+            ensureCapacity(3);
+            buffer[size++] = (byte) (0xE0 | (c >> 12));
+            buffer[size++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            buffer[size++] = (byte) (0x80 | (c & 0x3F));
+        }
+        return index;
+    }
+
+    private void writeLong(final long value) {
+        if (value == Long.MIN_VALUE) {
+            final String digits = Long.toString(value);
+            for (int i = 0; i < digits.length(); i++) {
+                writeByte(digits.charAt(i));
+            }
+            return;
+        }
+        long remaining = value;
+        if (remaining < 0) {
+            writeByte('-');
+            remaining = -remaining;
+        }
+        int digits = 1;
+        for (long bound = 10; digits < 19 && remaining >= bound; bound *= 10) {
+            digits++;
+        }
+        ensureCapacity(digits);
+        for (int i = size + digits - 1; i >= size; i--) {
+            buffer[i] = (byte) ('0' + (remaining % 10));
+            remaining /= 10;
+        }
+        size += digits;
+    }
+
+    private void writeBytes(final byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, size, bytes.length);
+        size += bytes.length;
+    }
+
+    private void writeByte(final int b) {
+        ensureCapacity(1);
+        buffer[size++] = (byte) b;
+    }
+
+    private void ensureCapacity(final int additional) {
+        if (size + additional > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + additional));
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package org.dfm.tracking.rollup;
+
+import org.dfm.tracking.protocol.LineProtocolWriter;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts tracking events per event type, NiFi component, system and cluster, and turns the counts of every
+ * window into one compact rollup point per key. Recording is lock-free: the counters are striped
+ * {@link LongAdder}s that only ever grow, and each drain writes the difference to the previous drain, so
+ * events recorded while a window is drained are counted in the next window instead of being lost.
+ */
+public final class RollupAggregator {
+
+    /** Keys beyond this many are counted under a single overflow key to bound the number of series. */
+    static final int MAX_KEYS = 10_000;
+    static final String OVERFLOW = "_overflow";
+
+    private final ConcurrentHashMap<Key, Counters> counters = new ConcurrentHashMap<>();
+    private final Key overflowKey = new Key(OVERFLOW, OVERFLOW, OVERFLOW, OVERFLOW);
+
+    /**
+     * Records one event.
+     *
+     * @param hopLatencyNanos time since the previous event of the data item, or a negative value if unknown
+     * @param ddsAgeNanos time since the data item entered the DDS, or a negative value if unknown
+     */
+    public void record(final String eventType, final String nifiComponent, final String system, final String nifiCluster,
+                       final long hopLatencyNanos, final long ddsAgeNanos) {
+        counters(new Key(eventType, nifiComponent, system, nifiCluster)).record(hopLatencyNanos, ddsAgeNanos);
+    }
+
+    /**
+     * Records several events without latencies.
+     */
+    public void record(final String eventType, final String nifiComponent, final String system, final String nifiCluster,
+                       final long events) {
+        counters(new Key(eventType, nifiComponent, system, nifiCluster)).count.add(events);
+    }
+
+    private Counters counters(final Key key) {
+        final Counters existing = counters.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        if (counters.size() >= MAX_KEYS) {
+            return counters.computeIfAbsent(overflowKey, k -> new Counters());
+        }
+        return counters.computeIfAbsent(key, k -> new Counters());
+    }
+
+    /**
+     * Writes one point per key with events since the previous drain.
+     *
+     * @return the number of points written
+     */
+    public synchronized int drain(final LineProtocolWriter points, final byte[] measurement, final long timestamp) {
+        int written = 0;
+        for (final Map.Entry<Key, Counters> entry : counters.entrySet()) {
+            final Key key = entry.getKey();
+            final Counters window = entry.getValue();
+            final long count = window.count.sum();
+            final long hopLatencyCount = window.hopLatencyCount.sum();
+            final long hopLatencySum = window.hopLatencySum.sum();
+            final long ddsAgeCount = window.ddsAgeCount.sum();
+            final long ddsAgeSum = window.ddsAgeSum.sum();
+            if (count == window.drainedCount) {
+                continue;
+            }
+
+            points.measurement(measurement)
+                    .tag("event_type", key.eventType())
+                    .tag("nifi_component", key.nifiComponent())
+                    .tag("system", key.system())
+                    .tag("nifi_cluster_name", key.nifiCluster())
+                    .field("count", count - window.drainedCount);
+            if (hopLatencyCount > window.drainedHopLatencyCount) {
+                points.field("hop_latency_count", hopLatencyCount - window.drainedHopLatencyCount)
+                        .field("hop_latency_ns_sum", hopLatencySum - window.drainedHopLatencySum);
+            }
+            if (ddsAgeCount > window.drainedDdsAgeCount) {
+                points.field("dds_age_count", ddsAgeCount - window.drainedDdsAgeCount)
+                        .field("dds_age_ns_sum", ddsAgeSum - window.drainedDdsAgeSum);
+            }
+            points.timestamp(timestamp);
+            written++;
+
+            window.drainedCount = count;
+            window.drainedHopLatencyCount = hopLatencyCount;
+            window.drainedHopLatencySum = hopLatencySum;
+            window.drainedDdsAgeCount = ddsAgeCount;
+            window.drainedDdsAgeSum = ddsAgeSum;
+        }
+        return written;
+    }
+
+    private record Key(String eventType, String nifiComponent, String system, String nifiCluster) {
+    }
+
+    private static final class Counters {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder hopLatencyCount = new LongAdder();
+        private final LongAdder hopLatencySum = new LongAdder();
+        private final LongAdder ddsAgeCount = new LongAdder();
+        private final LongAdder ddsAgeSum = new LongAdder();
+
+        // Values at the previous drain, guarded by the aggregator's monitor
+        private long drainedCount;
+        private long drainedHopLatencyCount;
+        private long drainedHopLatencySum;
+        private long drainedDdsAgeCount;
+        private long drainedDdsAgeSum;
+
+        void record(final long hopLatencyNanos, final long ddsAgeNanos) {
+            if (hopLatencyNanos >= 0) {
+                hopLatencyCount.increment();
+                hopLatencySum.add(hopLatencyNanos);
+            }
+            if (ddsAgeNanos >= 0) {
+                ddsAgeCount.increment();
+                ddsAgeSum.add(ddsAgeNanos);
+            }
+            // Counted last, so that a drain which sees the event also sees its latencies
+            count.increment();
+        }
+    }
+}
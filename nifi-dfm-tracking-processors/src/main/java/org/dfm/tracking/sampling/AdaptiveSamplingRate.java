@@ -0,0 +1,69 @@
+package org.dfm.tracking.sampling;
+
+/**
+ * Sampling rate that follows the write latency of the tracking sink: it is halved whenever the mean latency
+ * of the writes since the last adjustment exceeds the target, and raised by a tenth of the maximum rate while
+ * the latency stays below it. Adjustments happen at most once per interval; reading the rate is lock-free.
+ */
+public final class AdaptiveSamplingRate {
+
+    private final double minRate;
+    private final double maxRate;
+    private final long targetLatencyNanos;
+    private final long intervalNanos;
+
+    private volatile double rate;
+    private volatile long nextAdjustment;
+
+    // Guarded by this
+    private long lastWrites;
+    private long lastLatencyTotal;
+
+    public AdaptiveSamplingRate(final double minRate, final double maxRate, final long targetLatencyNanos,
+                                final long intervalNanos, final long nowNanos) {
+        this.minRate = Math.min(minRate, maxRate);
+        this.maxRate = maxRate;
+        this.targetLatencyNanos = targetLatencyNanos;
+        this.intervalNanos = intervalNanos;
+        this.rate = maxRate;
+        this.nextAdjustment = nowNanos + intervalNanos;
+        this.lastWrites = -1;
+    }
+
+    public double get() {
+        return rate;
+    }
+
+    public boolean isDue(final long nowNanos) {
+        return nowNanos - nextAdjustment >= 0;
+    }
+
+    /**
+     * Adjusts the rate to the writes observed since the previous call.
+     *
+     * @param writes cumulative number of writes of the sink
+     * @param latencyTotalNanos cumulative latency of those writes
+     * @return the new rate
+     */
+    public synchronized double update(final long nowNanos, final long writes, final long latencyTotalNanos) {
+        if (!isDue(nowNanos)) {
+            return rate;
+        }
+        nextAdjustment = nowNanos + intervalNanos;
+        final long windowWrites = writes - lastWrites;
+        final long windowLatency = latencyTotalNanos - lastLatencyTotal;
+        final boolean first = lastWrites < 0;
+        lastWrites = writes;
+        lastLatencyTotal = latencyTotalNanos;
+        if (first || windowWrites <= 0) {
+            return rate;
+        }
+
+        if (windowLatency / windowWrites > targetLatencyNanos) {
+            rate = Math.max(minRate, rate / 2);
+        } else {
+            rate = Math.min(maxRate, rate + maxRate / 10);
+        }
+        return rate;
+    }
+}
@@ -0,0 +1,54 @@
+package org.dfm.tracking.sampling;
+
+/**
+ * Decides from the data item ID alone whether a data item is traced, so that the decision is the same on
+ * every node and for every event of the item. Sampling is monotonic: the items traced at a lower rate are a
+ * subset of the items traced at a higher rate, so lowering the rate drops whole paths instead of single events.
+ */
+public final class TraceSampler {
+
+    private static final long FNV_OFFSET_BASIS = 0xCBF29CE484222325L;
+    private static final long FNV_PRIME = 0x100000001B3L;
+
+    private TraceSampler() {
+    }
+
+    /**
+     * Converts a sampling rate between 0 and 1 into the threshold compared against {@link #hash(String)}.
+     */
+    public static long threshold(final double rate) {
+        if (rate >= 1.0) {
+            return Long.MAX_VALUE;
+        }
+        if (rate <= 0.0) {
+            return 0;
+        }
+        return (long) (rate * 0x1p63);
+    }
+
+    /**
+     * @return true if the data item with the given ID is traced at the rate the threshold was derived from
+     */
+    public static boolean isTraced(final String dataflowTrackingId, final long threshold) {
+        return threshold == Long.MAX_VALUE || hash(dataflowTrackingId) < threshold;
+    }
+
+    /**
+     * FNV-1a over the characters of the ID, finished with the MurmurHash3 mixer so that IDs differing only in
+     * their last characters, such as counters, still spread evenly.
+     *
+     * @return a uniformly distributed non-negative hash of the ID
+     */
+    public static long hash(final String dataflowTrackingId) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < dataflowTrackingId.length(); i++) {
+            hash = (hash ^ dataflowTrackingId.charAt(i)) * FNV_PRIME;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return hash >>> 1;
+    }
+}
@@ -0,0 +1,868 @@
+package org.dfm.tracking.services;
+
+import okhttp3.ConnectionPool;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Protocol;
+import okhttp3.Response;
+import org.apache.nifi.annotation.lifecycle.OnDisabled;
+import org.apache.nifi.annotation.lifecycle.OnEnabled;
+import org.apache.nifi.components.AllowableValue;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.processor.DataUnit;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.reporting.InitializationException;
+import org.dfm.tracking.metrics.WriteMetrics;
+import org.dfm.tracking.protocol.LineProtocolWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Base of the InfluxDB tracking sinks. Provides the HTTP clients of one or more endpoints, synchronous writes
+ * with retries behind a circuit breaker per endpoint, the write buffer with its background flusher and the spill
+ * journal with its replayer. Subclasses only add the connection properties and the write request of their
+ * InfluxDB API version.
+ */
+public abstract class AbstractInfluxDBService extends AbstractControllerService implements TrackingSink {
+
+    public static final PropertyDescriptor INFLUXDB_URL = new PropertyDescriptor.Builder()
+            .name("InfluxDB URL")
+            .description("URL of the InfluxDB instance, or a comma-separated list of URLs of several instances that the "
+                    + "writes are spread across according to the Endpoint Routing")
+            .required(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final AllowableValue ROUTING_FAILOVER = new AllowableValue("failover", "Failover",
+            "All points are written to the first URL; the next URLs only take over while the ones before them fail");
+    public static final AllowableValue ROUTING_ROUND_ROBIN = new AllowableValue("round-robin", "Round Robin",
+            "Writes are spread evenly across all URLs, for instances that replicate or are queried together");
+    public static final AllowableValue ROUTING_CONSISTENT_HASH = new AllowableValue("consistent-hash", "Consistent Hashing",
+            "Every point is written to the URL its data item ID hashes to, so all events of a data item are stored on the "
+                    + "same instance. While an instance fails, only its data items move to the other instances.");
+
+    public static final PropertyDescriptor ENDPOINT_ROUTING = new PropertyDescriptor.Builder()
+            .name("Endpoint Routing")
+            .description("How writes are distributed when the InfluxDB URL lists several instances. Every instance has its "
+                    + "own connection pool and circuit breaker; instances with an open circuit are skipped.")
+            .required(true)
+            .allowableValues(ROUTING_FAILOVER, ROUTING_ROUND_ROBIN, ROUTING_CONSISTENT_HASH)
+            .defaultValue(ROUTING_FAILOVER.getValue())
+            .build();
+
+    public static final PropertyDescriptor MAX_IDLE_CONNECTIONS = new PropertyDescriptor.Builder()
+            .name("Max Idle Connections")
+            .description("Maximum number of idle connections kept in the connection pool of each InfluxDB instance")
+            .required(true)
+            .defaultValue("16")
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor KEEP_ALIVE_DURATION = new PropertyDescriptor.Builder()
+            .name("Keep Alive Duration")
+            .description("How long an idle connection is kept in the connection pool")
+            .required(true)
+            .defaultValue("5 mins")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor MAX_REQUESTS_PER_HOST = new PropertyDescriptor.Builder()
+            .name("Max Requests Per Host")
+            .description("Maximum number of concurrent write requests to each InfluxDB instance. Further writes wait "
+                    + "until one of the requests in flight completes.")
+            .required(true)
+            .defaultValue("16")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor CONNECT_TIMEOUT = new PropertyDescriptor.Builder()
+            .name("Connect Timeout")
+            .description("Maximum time to establish a connection to InfluxDB")
+            .required(true)
+            .defaultValue("10 secs")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor READ_TIMEOUT = new PropertyDescriptor.Builder()
+            .name("Read Timeout")
+            .description("Maximum time to wait for data from InfluxDB")
+            .required(true)
+            .defaultValue("30 secs")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor WRITE_TIMEOUT = new PropertyDescriptor.Builder()
+            .name("Write Timeout")
+            .description("Maximum time to wait while sending data to InfluxDB")
+            .required(true)
+            .defaultValue("30 secs")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final AllowableValue PROTOCOL_NEGOTIATE = new AllowableValue("negotiate", "Negotiate",
+            "HTTP/2 when an HTTPS server offers it, HTTP/1.1 otherwise");
+    public static final AllowableValue PROTOCOL_HTTP_1_1 = new AllowableValue("http/1.1", "HTTP/1.1",
+            "Always use HTTP/1.1");
+    public static final AllowableValue PROTOCOL_H2_PRIOR_KNOWLEDGE = new AllowableValue("h2_prior_knowledge", "HTTP/2 Cleartext",
+            "HTTP/2 without TLS, for an InfluxDB URL with the http scheme behind a proxy that is known to support it");
+
+    public static final PropertyDescriptor HTTP_PROTOCOL = new PropertyDescriptor.Builder()
+            .name("HTTP Protocol")
+            .description("HTTP protocol version used to talk to InfluxDB. With HTTP/2 all writes share a single multiplexed connection.")
+            .required(true)
+            .allowableValues(PROTOCOL_NEGOTIATE, PROTOCOL_HTTP_1_1, PROTOCOL_H2_PRIOR_KNOWLEDGE)
+            .defaultValue(PROTOCOL_NEGOTIATE.getValue())
+            .build();
+
+    public static final PropertyDescriptor COMPRESS_REQUESTS = new PropertyDescriptor.Builder()
+            .name("Compress Requests")
+            .description("Whether write requests larger than 1 KB are sent gzip-compressed")
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("true")
+            .build();
+
+    public static final PropertyDescriptor WRITE_BUFFER_SIZE = new PropertyDescriptor.Builder()
+            .name("Write Buffer Size")
+            .description("Capacity of the in-memory buffer holding points queued by processors in Buffered write mode")
+            .required(true)
+            .defaultValue("16 MB")
+            .addValidator(StandardValidators.createDataSizeBoundsValidator(1024, Integer.MAX_VALUE))
+            .build();
+
+    public static final PropertyDescriptor MAX_WRITE_SIZE = new PropertyDescriptor.Builder()
+            .name("Max Write Size")
+            .description("Buffered points are written as soon as this much data has accumulated")
+            .required(true)
+            .defaultValue("1 MB")
+            .addValidator(StandardValidators.createDataSizeBoundsValidator(1, Integer.MAX_VALUE))
+            .build();
+
+    public static final PropertyDescriptor FLUSH_INTERVAL = new PropertyDescriptor.Builder()
+            .name("Flush Interval")
+            .description("Maximum time buffered points wait before they are written, regardless of Max Write Size")
+            .required(true)
+            .defaultValue("1 sec")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor ENQUEUE_TIMEOUT = new PropertyDescriptor.Builder()
+            .name("Enqueue Timeout")
+            .description("Maximum time a processor waits for free space when the write buffer is full before the points are rejected")
+            .required(true)
+            .defaultValue("1 sec")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor SPILL_DIRECTORY = new PropertyDescriptor.Builder()
+            .name("Spill Directory")
+            .description("Local directory of a write-ahead journal for points that cannot be written to InfluxDB. When set, "
+                    + "failed writes and points that do not fit into the write buffer are journaled instead of failing, and "
+                    + "a background task replays the journal once InfluxDB is reachable again. Points that InfluxDB "
+                    + "rejects as invalid (400, 413 or 422) are never journaled, and dropped if they are replayed.")
+            .required(false)
+            .addValidator(StandardValidators.createDirectoryExistsValidator(false, true))
+            .build();
+
+    public static final PropertyDescriptor SPILL_SEGMENT_SIZE = new PropertyDescriptor.Builder()
+            .name("Spill Segment Size")
+            .description("Size of each memory-mapped journal segment file. A single write larger than a segment cannot be journaled.")
+            .required(true)
+            .defaultValue("64 MB")
+            .addValidator(StandardValidators.createDataSizeBoundsValidator(1024, Integer.MAX_VALUE))
+            .build();
+
+    public static final PropertyDescriptor MAX_RETRIES = new PropertyDescriptor.Builder()
+            .name("Max Retries")
+            .description("How often a write is retried after a connection failure or any response other than 400, 413 "
+                    + "or 422, which reject the points themselves, before it fails. "
+                    + "Retries wait with exponential backoff and random jitter.")
+            .required(true)
+            .defaultValue("2")
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor INITIAL_BACKOFF = new PropertyDescriptor.Builder()
+            .name("Initial Backoff")
+            .description("Upper bound of the random wait before the first retry; it doubles with every further retry")
+            .required(true)
+            .defaultValue("100 ms")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor MAX_BACKOFF = new PropertyDescriptor.Builder()
+            .name("Max Backoff")
+            .description("Maximum wait before a retry")
+            .required(true)
+            .defaultValue("10 secs")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor CIRCUIT_BREAKER_THRESHOLD = new PropertyDescriptor.Builder()
+            .name("Circuit Breaker Threshold")
+            .description("Number of consecutive failed write attempts to an InfluxDB instance after which its circuit "
+                    + "breaker opens. While it is open, writes go to the other instances; once the circuits of all "
+                    + "instances are open, writes fail immediately and the tracking processors yield.")
+            .required(true)
+            .defaultValue("5")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor CIRCUIT_BREAKER_OPEN_DURATION = new PropertyDescriptor.Builder()
+            .name("Circuit Breaker Open Duration")
+            .description("How long the circuit breaker stays open before a single trial write is let through")
+            .required(true)
+            .defaultValue("30 secs")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor METRICS_REPORT_INTERVAL = new PropertyDescriptor.Builder()
+            .name("Metrics Report Interval")
+            .description("How often the write metrics are logged. While InfluxDB is unreachable or spilled points are "
+                    + "pending, the report is logged as a warning, so that it appears as a bulletin. 0 secs turns the "
+                    + "report off.")
+            .required(true)
+            .defaultValue("5 mins")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    private final WriteMetrics metrics = new WriteMetrics();
+    private final AtomicBoolean writeFailing = new AtomicBoolean();
+
+    private volatile EndpointRouter router;
+    private int maxRetries;
+    private long initialBackoffNanos;
+    private long maxBackoffNanos;
+    private String influxdbUrl;
+    private LineProtocolRingBuffer writeBuffer;
+    private Thread flusher;
+    private SpillJournal spillJournal;
+    private Thread replayer;
+    private volatile boolean replaying;
+    private int maxWriteSize;
+    private long flushIntervalNanos;
+    private long enqueueTimeoutNanos;
+    private long metricsReportIntervalNanos;
+    private long lastMetricsReport;
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        final List<PropertyDescriptor> descriptors = new ArrayList<>();
+        descriptors.add(INFLUXDB_URL);
+        descriptors.add(ENDPOINT_ROUTING);
+        descriptors.addAll(getConnectionDescriptors());
+        descriptors.add(MAX_IDLE_CONNECTIONS);
+        descriptors.add(KEEP_ALIVE_DURATION);
+        descriptors.add(MAX_REQUESTS_PER_HOST);
+        descriptors.add(CONNECT_TIMEOUT);
+        descriptors.add(READ_TIMEOUT);
+        descriptors.add(WRITE_TIMEOUT);
+        descriptors.add(HTTP_PROTOCOL);
+        descriptors.add(COMPRESS_REQUESTS);
+        descriptors.add(MAX_RETRIES);
+        descriptors.add(INITIAL_BACKOFF);
+        descriptors.add(MAX_BACKOFF);
+        descriptors.add(CIRCUIT_BREAKER_THRESHOLD);
+        descriptors.add(CIRCUIT_BREAKER_OPEN_DURATION);
+        descriptors.add(WRITE_BUFFER_SIZE);
+        descriptors.add(MAX_WRITE_SIZE);
+        descriptors.add(FLUSH_INTERVAL);
+        descriptors.add(ENQUEUE_TIMEOUT);
+        descriptors.add(SPILL_DIRECTORY);
+        descriptors.add(SPILL_SEGMENT_SIZE);
+        descriptors.add(METRICS_REPORT_INTERVAL);
+        return descriptors;
+    }
+
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+        final List<ValidationResult> results = new ArrayList<>();
+        final String urls = context.getProperty(INFLUXDB_URL).getValue();
+        if (urls != null) {
+            for (final String url : parseUrls(urls)) {
+                if (HttpUrl.parse(url) == null) {
+                    results.add(new ValidationResult.Builder()
+                            .subject(INFLUXDB_URL.getDisplayName())
+                            .input(url)
+                            .valid(false)
+                            .explanation("not an http or https URL")
+                            .build());
+                }
+            }
+        }
+        return results;
+    }
+
+    @OnEnabled
+    public void onEnabled(final ConfigurationContext context) throws InitializationException {
+        final List<String> urls = parseUrls(context.getProperty(INFLUXDB_URL).getValue());
+        final InfluxDBEndpoint[] endpoints = new InfluxDBEndpoint[urls.size()];
+        for (int i = 0; i < endpoints.length; i++) {
+            endpoints[i] = new InfluxDBEndpoint(urls.get(i), createHttpClient(context),
+                    createWriteRequest(context, HttpUrl.get(urls.get(i))).build(),
+                    new CircuitBreaker(context.getProperty(CIRCUIT_BREAKER_THRESHOLD).asInteger(),
+                            context.getProperty(CIRCUIT_BREAKER_OPEN_DURATION).asTimePeriod(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS),
+                    context.getProperty(MAX_REQUESTS_PER_HOST).asInteger());
+        }
+        final String routing = context.getProperty(ENDPOINT_ROUTING).getValue();
+        this.router = new EndpointRouter(endpoints, ROUTING_CONSISTENT_HASH.getValue().equals(routing)
+                ? EndpointRouter.Strategy.CONSISTENT_HASH
+                : ROUTING_ROUND_ROBIN.getValue().equals(routing) ? EndpointRouter.Strategy.ROUND_ROBIN : EndpointRouter.Strategy.FAILOVER);
+        this.influxdbUrl = urls.get(0);
+
+        this.maxRetries = context.getProperty(MAX_RETRIES).asInteger();
+        this.initialBackoffNanos = context.getProperty(INITIAL_BACKOFF).asTimePeriod(TimeUnit.NANOSECONDS);
+        this.maxBackoffNanos = context.getProperty(MAX_BACKOFF).asTimePeriod(TimeUnit.NANOSECONDS);
+
+        this.maxWriteSize = context.getProperty(MAX_WRITE_SIZE).asDataSize(DataUnit.B).intValue();
+        this.flushIntervalNanos = context.getProperty(FLUSH_INTERVAL).asTimePeriod(TimeUnit.NANOSECONDS);
+        this.enqueueTimeoutNanos = context.getProperty(ENQUEUE_TIMEOUT).asTimePeriod(TimeUnit.NANOSECONDS);
+        this.metricsReportIntervalNanos = context.getProperty(METRICS_REPORT_INTERVAL).asTimePeriod(TimeUnit.NANOSECONDS);
+        this.lastMetricsReport = System.nanoTime();
+
+        final String spillDirectory = context.getProperty(SPILL_DIRECTORY).getValue();
+        if (spillDirectory != null) {
+            try {
+                this.spillJournal = new SpillJournal(Paths.get(spillDirectory),
+                        context.getProperty(SPILL_SEGMENT_SIZE).asDataSize(DataUnit.B).intValue());
+            } catch (IOException e) {
+                throw new InitializationException("Failed to open spill journal in " + spillDirectory, e);
+            }
+            this.replaying = true;
+            this.replayer = new Thread(this::runReplayer, "InfluxDB Spill Replayer " + getIdentifier());
+            this.replayer.setDaemon(true);
+            this.replayer.start();
+        }
+
+        this.writeBuffer = new LineProtocolRingBuffer(context.getProperty(WRITE_BUFFER_SIZE).asDataSize(DataUnit.B).intValue());
+        this.flusher = new Thread(this::runFlusher, "InfluxDB Flusher " + getIdentifier());
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * @return the properties identifying the database and credentials, listed after the URL
+     */
+    protected abstract List<PropertyDescriptor> getConnectionDescriptors();
+
+    /**
+     * Creates the template of every write request to one InfluxDB instance: the URL of the write endpoint with all
+     * query parameters, including nanosecond precision, and the authentication headers. The body is added per write.
+     *
+     * @param baseUrl URL of the instance as configured
+     */
+    protected abstract Request.Builder createWriteRequest(ConfigurationContext context, HttpUrl baseUrl);
+
+    private static List<String> parseUrls(final String urls) {
+        return Arrays.stream(urls.split(","))
+                .map(String::trim)
+                .filter(url -> !url.isEmpty())
+                .toList();
+    }
+
+    private OkHttpClient createHttpClient(final ConfigurationContext context) {
+        final OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(context.getProperty(MAX_IDLE_CONNECTIONS).asInteger(),
+                        context.getProperty(KEEP_ALIVE_DURATION).asTimePeriod(TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS))
+                .connectTimeout(context.getProperty(CONNECT_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS)
+                .readTimeout(context.getProperty(READ_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS)
+                .writeTimeout(context.getProperty(WRITE_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+
+        final String protocol = context.getProperty(HTTP_PROTOCOL).getValue();
+        if (PROTOCOL_HTTP_1_1.getValue().equals(protocol)) {
+            builder.protocols(Collections.singletonList(Protocol.HTTP_1_1));
+        } else if (PROTOCOL_H2_PRIOR_KNOWLEDGE.getValue().equals(protocol)) {
+            builder.protocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE));
+        }
+        if (context.getProperty(COMPRESS_REQUESTS).asBoolean()) {
+            builder.addInterceptor(new GzipRequestInterceptor());
+        }
+        return builder.build();
+    }
+
+    @OnDisabled
+    public void onDisabled() {
+        if (writeBuffer != null) {
+            writeBuffer.close();
+            try {
+                flusher.join(TimeUnit.NANOSECONDS.toMillis(flushIntervalNanos) + 30_000L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            flush();
+            this.writeBuffer = null;
+            this.flusher = null;
+        }
+        if (replayer != null) {
+            replaying = false;
+            replayer.interrupt();
+            try {
+                replayer.join(30_000L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            this.replayer = null;
+        }
+        if (spillJournal != null) {
+            spillJournal.close();
+            this.spillJournal = null;
+        }
+        if (router != null) {
+            for (final InfluxDBEndpoint endpoint : router.getEndpoints()) {
+                endpoint.close();
+            }
+            this.router = null;
+        }
+        this.influxdbUrl = null;
+    }
+
+    /**
+     * @return the HTTP client of the first InfluxDB instance
+     */
+    public OkHttpClient getHttpClient() {
+        final EndpointRouter router = this.router;
+        return router == null ? null : router.getEndpoints()[0].httpClient;
+    }
+
+    /**
+     * @return the URL of the first InfluxDB instance
+     */
+    public String getInfluxdbUrl() {
+        return this.influxdbUrl;
+    }
+
+    @Override
+    public boolean enqueue(final byte[] points, final int offset, final int length) {
+        final LineProtocolRingBuffer buffer = this.writeBuffer;
+        if (buffer == null) {
+            return false;
+        }
+        // With a journal there is no reason to wait for space: points that do not fit are spilled right away
+        final long timeout = spillJournal == null ? enqueueTimeoutNanos : 0;
+        try {
+            if (buffer.offer(points, offset, length, timeout, TimeUnit.NANOSECONDS)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (spill(points, offset, length)) {
+            return true;
+        }
+        getLogger().warn("Write buffer full: rejected {} bytes with {} points queued", length, buffer.getPoints());
+        return false;
+    }
+
+    @Override
+    public void flush() {
+        final LineProtocolRingBuffer buffer = this.writeBuffer;
+        if (buffer == null) {
+            return;
+        }
+        byte[] points;
+        while ((points = buffer.drain(maxWriteSize)) != null) {
+            send(points);
+        }
+    }
+
+    @Override
+    public boolean spill(final byte[] points, final int offset, final int length) {
+        final SpillJournal journal = this.spillJournal;
+        if (journal == null) {
+            return false;
+        }
+        try {
+            journal.append(points, offset, length);
+            metrics.recordSpill(length);
+            return true;
+        } catch (IOException e) {
+            getLogger().error("Failed to append {} bytes to the spill journal", length, e);
+            return false;
+        }
+    }
+
+    @Override
+    public long getQueueDepth() {
+        final LineProtocolRingBuffer buffer = this.writeBuffer;
+        return buffer == null ? 0 : buffer.getPoints();
+    }
+
+    @Override
+    public Map<String, Number> getMetrics() {
+        final Map<String, Number> snapshot = new LinkedHashMap<>();
+        metrics.snapshot(snapshot);
+        final LineProtocolRingBuffer buffer = this.writeBuffer;
+        snapshot.put("queue.depth.points", buffer == null ? 0 : buffer.getPoints());
+        snapshot.put("queue.size.bytes", buffer == null ? 0 : buffer.getSize());
+        final SpillJournal journal = this.spillJournal;
+        snapshot.put("spill.pending.bytes", journal == null ? 0 : journal.getPendingBytes());
+        snapshot.put("circuit.open", getCircuitState() == CircuitBreaker.State.OPEN ? 1 : 0);
+        final EndpointRouter router = this.router;
+        if (router == null) {
+            snapshot.put("circuit.opens", 0);
+            return snapshot;
+        }
+        final InfluxDBEndpoint[] endpoints = router.getEndpoints();
+        long opens = 0;
+        for (final InfluxDBEndpoint endpoint : endpoints) {
+            opens += endpoint.circuitBreaker.getOpens();
+        }
+        snapshot.put("circuit.opens", opens);
+        if (endpoints.length > 1) {
+            for (int i = 0; i < endpoints.length; i++) {
+                snapshot.put("endpoint." + i + ".writes", endpoints[i].writes.get());
+                snapshot.put("endpoint." + i + ".failures", endpoints[i].failures.get());
+                snapshot.put("endpoint." + i + ".circuit.open", endpoints[i].isAvailable() ? 0 : 1);
+            }
+        }
+        return snapshot;
+    }
+
+    @Override
+    public long getWrites() {
+        return metrics.getWrites();
+    }
+
+    @Override
+    public long getWriteLatencySumNanos() {
+        return metrics.getWriteLatency().getSum();
+    }
+
+    /**
+     * @return the most available state of the circuit breakers of all InfluxDB instances, so that the sink only
+     * counts as open while every instance refuses writes
+     */
+    @Override
+    public CircuitBreaker.State getCircuitState() {
+        final EndpointRouter router = this.router;
+        if (router == null) {
+            return CircuitBreaker.State.CLOSED;
+        }
+        CircuitBreaker.State state = CircuitBreaker.State.OPEN;
+        for (final InfluxDBEndpoint endpoint : router.getEndpoints()) {
+            final CircuitBreaker.State endpointState = endpoint.circuitBreaker.getState();
+            if (endpointState == CircuitBreaker.State.CLOSED) {
+                return endpointState;
+            }
+            if (endpointState == CircuitBreaker.State.HALF_OPEN) {
+                state = endpointState;
+            }
+        }
+        return state;
+    }
+
+    @Override
+    public boolean isAcceptingWrites() {
+        // With a journal, writes refused by the open circuit are journaled and the flow keeps going
+        return spillJournal != null || getCircuitState() != CircuitBreaker.State.OPEN;
+    }
+
+    private void runFlusher() {
+        final LineProtocolRingBuffer buffer = this.writeBuffer;
+        while (!buffer.isClosed()) {
+            try {
+                buffer.awaitSize(maxWriteSize, flushIntervalNanos, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            final byte[] points = buffer.drain(maxWriteSize);
+            if (points != null) {
+                send(points);
+            }
+            reportMetricsIfDue();
+        }
+    }
+
+    /**
+     * Logs the metrics snapshot once per report interval. Controller services have neither counters nor status of
+     * their own, so the log and, while writes are degraded, the bulletin board are where operators see them.
+     */
+    private void reportMetricsIfDue() {
+        final long now = System.nanoTime();
+        if (metricsReportIntervalNanos == 0 || now - lastMetricsReport < metricsReportIntervalNanos) {
+            return;
+        }
+        lastMetricsReport = now;
+        final Map<String, Number> snapshot = getMetrics();
+        if (snapshot.get("circuit.open").intValue() != 0 || snapshot.get("spill.pending.bytes").longValue() > 0) {
+            getLogger().warn("InfluxDB writes are degraded: {}", snapshot);
+        } else {
+            getLogger().info("InfluxDB write metrics: {}", snapshot);
+        }
+    }
+
+    private void runReplayer() {
+        final SpillJournal journal = this.spillJournal;
+        boolean failing = false;
+        // Bytes of a rejected write that are replayed record by record, so that only the rejected records are dropped
+        long isolating = 0;
+        while (replaying) {
+            try {
+                final byte[] points = journal.peek(isolating > 0 ? 1 : maxWriteSize);
+                if (points == null) {
+                    journal.force();
+                    Thread.sleep(TimeUnit.NANOSECONDS.toMillis(flushIntervalNanos));
+                    continue;
+                }
+                try {
+                    write(points, 0, points.length);
+                } catch (RejectedWriteException e) {
+                    if (isolating == 0) {
+                        isolating = points.length;
+                        continue;
+                    }
+                    // Retrying can never succeed and would block everything journaled behind the record
+                    getLogger().error("InfluxDB rejected {} bytes of journaled points, dropping them", points.length, e);
+                    journal.acknowledge();
+                    isolating = Math.max(0, isolating - points.length);
+                    continue;
+                } catch (IOException | RuntimeException e) {
+                    if (!failing) {
+                        getLogger().warn("Replaying the spill journal failed, {} bytes pending", journal.getPendingBytes(), e);
+                        failing = true;
+                    }
+                    Thread.sleep(TimeUnit.NANOSECONDS.toMillis(flushIntervalNanos));
+                    continue;
+                }
+                journal.acknowledge();
+                isolating = Math.max(0, isolating - points.length);
+                if (failing) {
+                    getLogger().info("Replaying the spill journal succeeded again, {} bytes pending", journal.getPendingBytes());
+                    failing = false;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                getLogger().error("Failed to read the spill journal", e);
+                return;
+            }
+        }
+    }
+
+    private void send(final byte[] points) {
+        try {
+            write(points, 0, points.length);
+        } catch (RejectedWriteException e) {
+            getLogger().error("InfluxDB rejected {} bytes of buffered points, dropping them", points.length, e);
+            return;
+        } catch (IOException | RuntimeException e) {
+            if (spill(points, 0, points.length)) {
+                // Warn once per outage rather than once per write to keep bulletins readable
+                if (writeFailing.compareAndSet(false, true)) {
+                    getLogger().warn("Writing buffered points to InfluxDB failed, spilling to the journal until it recovers", e);
+                } else {
+                    getLogger().debug("Spilled {} bytes of buffered points after failed write", points.length, e);
+                }
+            } else {
+                getLogger().error("Failed to write {} bytes of buffered points to InfluxDB", points.length, e);
+            }
+            return;
+        }
+        if (writeFailing.compareAndSet(true, false)) {
+            getLogger().info("Writing buffered points to InfluxDB succeeded again: {}", getMetrics());
+        }
+    }
+
+    @Override
+    public void write(final byte[] points, final int offset, final int length) throws IOException {
+        final EndpointRouter router = this.router;
+        if (!router.isSharding()) {
+            write(router, router.select(), points, offset, length);
+            return;
+        }
+
+        final InfluxDBEndpoint[] endpoints = router.getEndpoints();
+        final ByteArrayOutputStream[] shards = new ByteArrayOutputStream[endpoints.length];
+        final int end = offset + length;
+        int lineStart = offset;
+        while (lineStart < end) {
+            int lineEnd = lineStart;
+            while (lineEnd < end && points[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            if (lineEnd > lineStart) {
+                final int shard = router.route(points, lineStart, lineEnd);
+                if (shards[shard] == null) {
+                    shards[shard] = new ByteArrayOutputStream(length / endpoints.length + 256);
+                }
+                shards[shard].write(points, lineStart, lineEnd - lineStart);
+                shards[shard].write('\n');
+            }
+            lineStart = lineEnd + 1;
+        }
+
+        // Points of shards that were written are written again if the caller retries; InfluxDB overwrites
+        // identical points, so this only costs a few requests
+        IOException failure = null;
+        for (int i = 0; i < shards.length; i++) {
+            if (shards[i] == null) {
+                continue;
+            }
+            final byte[] shard = shards[i].toByteArray();
+            try {
+                write(router, i, shard, 0, shard.length);
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else if (failure instanceof RejectedWriteException && !(e instanceof RejectedWriteException)) {
+                    // Shards that can be retried decide, so that the batch is retried or journaled
+                    e.addSuppressed(failure);
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Writes points to the preferred endpoint and, while attempts fail, to the other endpoints in turn, retrying
+     * with backoff once every endpoint has been tried.
+     */
+    private void write(final EndpointRouter router, final int preferred, final byte[] points, final int offset, final int length) throws IOException {
+        final InfluxDBEndpoint[] endpoints = router.getEndpoints();
+        final RequestBody body = RequestBody.create(points, LineProtocolWriter.LINE_PROTOCOL, offset, length);
+        IOException failure = null;
+
+        for (int attempt = 0; ; attempt++) {
+            final InfluxDBEndpoint endpoint = acquire(endpoints, preferred + attempt);
+            if (endpoint == null) {
+                metrics.recordFailure();
+                final CircuitOpenException open = new CircuitOpenException(endpoints.length == 1
+                        ? "Circuit breaker open for another " + endpoints[0].circuitBreaker.getRemainingOpenMillis() + " ms"
+                        : "Circuit breakers of all " + endpoints.length + " InfluxDB instances open");
+                if (failure != null) {
+                    open.addSuppressed(failure);
+                }
+                throw open;
+            }
+
+            final CircuitBreaker breaker = endpoint.circuitBreaker;
+            final Request request = endpoint.writeRequest.newBuilder().post(body).build();
+            final long start = System.nanoTime();
+            boolean retryable = true;
+            // Writes are synchronous calls, which OkHttp's dispatcher does not limit, so the endpoint's permits do
+            endpoint.requests.acquireUninterruptibly();
+            try (Response response = endpoint.httpClient.newCall(request).execute()) {
+                if (response.isSuccessful()) {
+                    if (breaker.onSuccess()) {
+                        getLogger().info("InfluxDB at {} is reachable again, circuit breaker closed", endpoint.url);
+                    }
+                    if (endpoint.refusing.compareAndSet(true, false)) {
+                        getLogger().info("InfluxDB at {} accepts writes again", endpoint.url);
+                    }
+                    endpoint.writes.incrementAndGet();
+                    metrics.recordWrite(LineProtocolWriter.countPoints(points, offset, length), length, System.nanoTime() - start);
+                    return;
+                }
+                retryable = !isRejection(response.code());
+                failure = retryable
+                        ? new IOException("Unexpected code " + response)
+                        : new RejectedWriteException("InfluxDB rejected the write: " + response);
+                if (isRefusal(response.code()) && endpoint.refusing.compareAndSet(false, true)) {
+                    // Not an outage that fixes itself, so it is reported as an error once until writes succeed again
+                    getLogger().error("InfluxDB at {} refused writes with {}, check the credentials and the database; "
+                            + "points are retried and journaled until it accepts them", endpoint.url, response);
+                }
+            } catch (IOException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                // The outcome must be reported, or a half-open trial would stay in flight and the endpoint refuse
+                // all writes from then on
+                endpoint.failures.incrementAndGet();
+                metrics.recordFailure();
+                breaker.onFailure();
+                throw e;
+            } finally {
+                endpoint.requests.release();
+            }
+
+            endpoint.failures.incrementAndGet();
+            metrics.recordFailure();
+            if (!retryable) {
+                // InfluxDB answered, so it is healthy; the points themselves were refused
+                breaker.onSuccess();
+                throw failure;
+            }
+            if (breaker.onFailure()) {
+                getLogger().warn("Circuit breaker opened after repeated failed writes to InfluxDB at {}: {}", endpoint.url, failure.toString());
+            }
+            // Every endpoint gets one attempt before the retries start
+            if (attempt >= maxRetries + endpoints.length - 1) {
+                throw failure;
+            }
+            metrics.recordRetry();
+            if (attempt + 1 < endpoints.length) {
+                continue;
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(backoffNanos(attempt + 1 - endpoints.length));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                final InterruptedIOException interrupted = new InterruptedIOException("Interrupted while waiting to retry the write");
+                interrupted.addSuppressed(failure);
+                throw interrupted;
+            }
+        }
+    }
+
+    /**
+     * @return the first endpoint from {@code first} on, wrapping around, whose circuit breaker lets a write through,
+     * or null if all refuse
+     */
+    private static InfluxDBEndpoint acquire(final InfluxDBEndpoint[] endpoints, final int first) {
+        for (int i = 0; i < endpoints.length; i++) {
+            final InfluxDBEndpoint endpoint = endpoints[(first + i) % endpoints.length];
+            if (endpoint.circuitBreaker.tryAcquire()) {
+                return endpoint;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Full jitter: a random wait between 0 and the exponentially growing bound, so that concurrent writers
+     * retrying after the same outage spread out instead of hitting InfluxDB in lockstep.
+     */
+    private long backoffNanos(final int attempt) {
+        final long bound = Math.min(maxBackoffNanos, initialBackoffNanos << Math.min(attempt, 30));
+        return bound <= 0 ? 0 : ThreadLocalRandom.current().nextLong(bound + 1);
+    }
+
+    /**
+     * @return true if InfluxDB rejected the points themselves, malformed, too large or conflicting with the schema,
+     * so that writing them again cannot succeed. Every other status, including refused credentials and a missing
+     * database, is an outage the points wait out.
+     */
+    private static boolean isRejection(final int code) {
+        return code == 400 || code == 413 || code == 422;
+    }
+
+    private static boolean isRefusal(final int code) {
+        return code == 401 || code == 403 || code == 404;
+    }
+
+}
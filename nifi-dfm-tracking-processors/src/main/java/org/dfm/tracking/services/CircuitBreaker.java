@@ -0,0 +1,102 @@
+package org.dfm.tracking.services;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free circuit breaker guarding writes to InfluxDB. After a number of consecutive failed attempts the
+ * circuit opens and writes are refused without contacting InfluxDB. Once the open duration has elapsed the
+ * circuit is half-open: a single trial write is let through, which closes the circuit on success and opens it
+ * again on failure.
+ */
+public final class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static final long CLOSED = Long.MIN_VALUE;
+
+    private final int failureThreshold;
+    private final long openDurationNanos;
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    /** System.nanoTime() at which the circuit last opened, or CLOSED. */
+    private final AtomicLong openedAt = new AtomicLong(CLOSED);
+    private final AtomicBoolean trialInFlight = new AtomicBoolean();
+    private final AtomicLong opens = new AtomicLong();
+
+    public CircuitBreaker(final int failureThreshold, final long openDuration, final TimeUnit unit) {
+        this.failureThreshold = failureThreshold;
+        this.openDurationNanos = unit.toNanos(openDuration);
+    }
+
+    /**
+     * @return true if the caller may attempt a write, in which case it must report the outcome through
+     * {@link #onSuccess()} or {@link #onFailure()}
+     */
+    public boolean tryAcquire() {
+        final long opened = openedAt.get();
+        if (opened == CLOSED) {
+            return true;
+        }
+        if (System.nanoTime() - opened < openDurationNanos) {
+            return false;
+        }
+        return trialInFlight.compareAndSet(false, true);
+    }
+
+    /**
+     * @return true if this closed the circuit
+     */
+    public boolean onSuccess() {
+        consecutiveFailures.set(0);
+        final boolean closed = openedAt.getAndSet(CLOSED) != CLOSED;
+        trialInFlight.set(false);
+        return closed;
+    }
+
+    /**
+     * @return true if this opened the circuit
+     */
+    public boolean onFailure() {
+        if (openedAt.get() != CLOSED) {
+            // A failed trial keeps the circuit open for another period
+            openedAt.set(System.nanoTime());
+            trialInFlight.set(false);
+            return false;
+        }
+        if (consecutiveFailures.incrementAndGet() >= failureThreshold && openedAt.compareAndSet(CLOSED, System.nanoTime())) {
+            opens.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    public State getState() {
+        final long opened = openedAt.get();
+        if (opened == CLOSED) {
+            return State.CLOSED;
+        }
+        return System.nanoTime() - opened < openDurationNanos ? State.OPEN : State.HALF_OPEN;
+    }
+
+    /**
+     * @return how long the circuit stays open, or 0 if it is not open
+     */
+    public long getRemainingOpenMillis() {
+        final long opened = openedAt.get();
+        if (opened == CLOSED) {
+            return 0;
+        }
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(openDurationNanos - (System.nanoTime() - opened)));
+    }
+
+    /**
+     * @return how often the circuit has opened
+     */
+    public long getOpens() {
+        return opens.get();
+    }
+}
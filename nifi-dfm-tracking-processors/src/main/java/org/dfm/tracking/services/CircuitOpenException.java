@@ -0,0 +1,13 @@
+package org.dfm.tracking.services;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of attempting a write while the circuit breaker of the InfluxDB service is open.
+ */
+public class CircuitOpenException extends IOException {
+
+    public CircuitOpenException(final String message) {
+        super(message);
+    }
+}
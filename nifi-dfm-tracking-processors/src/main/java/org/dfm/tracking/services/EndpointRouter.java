@@ -0,0 +1,190 @@
+package org.dfm.tracking.services;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks the InfluxDB endpoint a write goes to. Endpoints whose circuit breaker is open are skipped as long as
+ * another one is available.
+ * <ul>
+ *     <li>Failover writes to the first available endpoint in the configured order.</li>
+ *     <li>Round robin spreads whole writes evenly across the available endpoints.</li>
+ *     <li>Consistent hashing routes every point by its data item ID, or by its series key if it has none, so
+ *     that all events of a data item end up on the same endpoint. Each endpoint owns many points on a hash
+ *     ring; when one is unavailable only its data items move, each to the next available endpoint on the ring.</li>
+ * </ul>
+ */
+final class EndpointRouter {
+
+    enum Strategy {
+        FAILOVER, ROUND_ROBIN, CONSISTENT_HASH
+    }
+
+    private static final int VIRTUAL_NODES = 128;
+    private static final long FNV_OFFSET_BASIS = 0xCBF29CE484222325L;
+    private static final long FNV_PRIME = 0x100000001B3L;
+    private static final byte[] ID_TAG = ",dataflow.tracking.id=".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ID_FIELD = "dataflow.tracking.id=\"".getBytes(StandardCharsets.US_ASCII);
+
+    private final InfluxDBEndpoint[] endpoints;
+    private final Strategy strategy;
+    private final AtomicInteger next = new AtomicInteger();
+    private final long[] ringHashes;
+    private final int[] ringEndpoints;
+
+    EndpointRouter(final InfluxDBEndpoint[] endpoints, final Strategy strategy) {
+        this.endpoints = endpoints;
+        this.strategy = strategy;
+
+        final long[][] ring = new long[endpoints.length * VIRTUAL_NODES][];
+        for (int i = 0; i < endpoints.length; i++) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                final byte[] node = (endpoints[i].url + '#' + v).getBytes(StandardCharsets.UTF_8);
+                ring[i * VIRTUAL_NODES + v] = new long[]{hash(node, 0, node.length), i};
+            }
+        }
+        Arrays.sort(ring, (a, b) -> Long.compare(a[0], b[0]));
+        this.ringHashes = new long[ring.length];
+        this.ringEndpoints = new int[ring.length];
+        for (int i = 0; i < ring.length; i++) {
+            ringHashes[i] = ring[i][0];
+            ringEndpoints[i] = (int) ring[i][1];
+        }
+    }
+
+    InfluxDBEndpoint[] getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * @return true if the points of a write have to be split up by {@link #route(byte[], int, int)}
+     */
+    boolean isSharding() {
+        return strategy == Strategy.CONSISTENT_HASH && endpoints.length > 1;
+    }
+
+    /**
+     * @return the index of the endpoint a whole write goes to first
+     */
+    int select() {
+        final int start = strategy == Strategy.ROUND_ROBIN ? Math.floorMod(next.getAndIncrement(), endpoints.length) : 0;
+        for (int i = 0; i < endpoints.length; i++) {
+            final int index = (start + i) % endpoints.length;
+            if (endpoints[index].isAvailable()) {
+                return index;
+            }
+        }
+        return start;
+    }
+
+    /**
+     * @return the index of the endpoint the point in {@code points[start, end)} goes to first
+     */
+    int route(final byte[] points, final int start, final int end) {
+        final long hash = hashRoutingKey(points, start, end);
+        int position = Arrays.binarySearch(ringHashes, hash);
+        if (position < 0) {
+            position = -position - 1;
+        }
+        for (int i = 0; i < ringHashes.length; i++) {
+            final int endpoint = ringEndpoints[(position + i) % ringHashes.length];
+            if (endpoints[endpoint].isAvailable()) {
+                return endpoint;
+            }
+        }
+        return ringEndpoints[position % ringHashes.length];
+    }
+
+    /**
+     * Hashes the value of the data item ID tag or field of a point, so that all events of a data item go to the
+     * same endpoint, or its whole series key (measurement and tags) if it has neither.
+     */
+    static long hashRoutingKey(final byte[] points, final int start, final int end) {
+        boolean escaped = false;
+        for (int i = start; i < end; i++) {
+            final byte b = points[i];
+            if (escaped) {
+                escaped = false;
+            } else if (b == '\\') {
+                escaped = true;
+            } else if (b == ' ') {
+                final int valueStart = findIdField(points, i + 1, end);
+                if (valueStart < 0) {
+                    return hash(points, start, i);
+                }
+                int valueEnd = valueStart;
+                while (valueEnd < end && points[valueEnd] != '"') {
+                    valueEnd += points[valueEnd] == '\\' ? 2 : 1;
+                }
+                return hash(points, valueStart, Math.min(valueEnd, end));
+            } else if (b == ',' && matches(points, i, end, ID_TAG)) {
+                final int valueStart = i + ID_TAG.length;
+                int valueEnd = valueStart;
+                while (valueEnd < end && points[valueEnd] != ',' && points[valueEnd] != ' ') {
+                    valueEnd += points[valueEnd] == '\\' ? 2 : 1;
+                }
+                return hash(points, valueStart, Math.min(valueEnd, end));
+            }
+        }
+        return hash(points, start, end);
+    }
+
+    /**
+     * @return the position of the value of the data item ID field in the field set starting at {@code from}, or -1
+     * if there is no such field
+     */
+    private static int findIdField(final byte[] points, final int from, final int end) {
+        boolean fieldStart = true;
+        boolean quoted = false;
+        boolean escaped = false;
+        for (int i = from; i < end; i++) {
+            if (fieldStart && matches(points, i, end, ID_FIELD)) {
+                return i + ID_FIELD.length;
+            }
+            fieldStart = false;
+            final byte b = points[i];
+            if (escaped) {
+                escaped = false;
+            } else if (b == '\\') {
+                escaped = true;
+            } else if (b == '"') {
+                quoted = !quoted;
+            } else if (!quoted && b == ',') {
+                fieldStart = true;
+            } else if (!quoted && b == ' ') {
+                // The timestamp follows the fields
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean matches(final byte[] points, final int offset, final int end, final byte[] pattern) {
+        if (end - offset < pattern.length) {
+            return false;
+        }
+        for (int i = 0; i < pattern.length; i++) {
+            if (points[offset + i] != pattern[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * FNV-1a finished with the MurmurHash3 mixer, as for trace sampling.
+     */
+    private static long hash(final byte[] bytes, final int start, final int end) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = start; i < end; i++) {
+            hash = (hash ^ (bytes[i] & 0xFF)) * FNV_PRIME;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,59 @@
+package org.dfm.tracking.services;
+
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+
+import java.io.IOException;
+
+/**
+ * Compresses request bodies with gzip. Line protocol is highly repetitive text, so writes shrink considerably.
+ * Bodies smaller than {@link #MIN_SIZE} are sent as they are.
+ */
+final class GzipRequestInterceptor implements Interceptor {
+
+    static final long MIN_SIZE = 1024;
+
+    @Override
+    public Response intercept(final Chain chain) throws IOException {
+        final Request request = chain.request();
+        final RequestBody body = request.body();
+        if (body == null || body.contentLength() < MIN_SIZE || request.header("Content-Encoding") != null) {
+            return chain.proceed(request);
+        }
+
+        // Compress into a buffer so that the request has a known length and can be retried
+        final Buffer compressed = new Buffer();
+        try (BufferedSink gzip = Okio.buffer(new GzipSink(compressed))) {
+            body.writeTo(gzip);
+        }
+        final MediaType contentType = body.contentType();
+        final RequestBody compressedBody = new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return contentType;
+            }
+
+            @Override
+            public long contentLength() {
+                return compressed.size();
+            }
+
+            @Override
+            public void writeTo(final BufferedSink sink) throws IOException {
+                sink.write(compressed.snapshot());
+            }
+        };
+
+        return chain.proceed(request.newBuilder()
+                .header("Content-Encoding", "gzip")
+                .method(request.method(), compressedBody)
+                .build());
+    }
+}
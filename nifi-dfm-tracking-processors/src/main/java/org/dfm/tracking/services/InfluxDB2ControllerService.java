@@ -0,0 +1,57 @@
+package org.dfm.tracking.services;
+
+import okhttp3.HttpUrl;
+import okhttp3.Request;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import java.util.List;
+
+@Tags({"influxdb", "tracking", "sink"})
+@CapabilityDescription("Writes tracking events to InfluxDB 2.x through the /api/v2/write endpoint, authenticating "
+        + "with an API token.")
+public class InfluxDB2ControllerService extends AbstractInfluxDBService {
+
+    public static final PropertyDescriptor INFLUXDB_ORGANIZATION = new PropertyDescriptor.Builder()
+            .name("InfluxDB Organization")
+            .description("Name or ID of the organization owning the bucket")
+            .required(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor INFLUXDB_BUCKET = new PropertyDescriptor.Builder()
+            .name("InfluxDB Bucket")
+            .description("Bucket the tracking events are written to")
+            .required(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor INFLUXDB_TOKEN = new PropertyDescriptor.Builder()
+            .name("InfluxDB Token")
+            .description("API token with write permission on the bucket")
+            .required(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .sensitive(true)
+            .build();
+
+    @Override
+    protected List<PropertyDescriptor> getConnectionDescriptors() {
+        return List.of(INFLUXDB_ORGANIZATION, INFLUXDB_BUCKET, INFLUXDB_TOKEN);
+    }
+
+    @Override
+    protected Request.Builder createWriteRequest(final ConfigurationContext context, final HttpUrl baseUrl) {
+        final HttpUrl writeUrl = baseUrl.newBuilder()
+                .addPathSegments("api/v2/write")
+                .addQueryParameter("org", context.getProperty(INFLUXDB_ORGANIZATION).getValue())
+                .addQueryParameter("bucket", context.getProperty(INFLUXDB_BUCKET).getValue())
+                .addQueryParameter("precision", "ns")
+                .build();
+        return new Request.Builder()
+                .url(writeUrl)
+                .header("Authorization", "Token " + context.getProperty(INFLUXDB_TOKEN).getValue());
+    }
+}
@@ -1,27 +1,20 @@
 package org.dfm.tracking.services;
 
 import okhttp3.Credentials;
-import okhttp3.OkHttpClient;
+import okhttp3.HttpUrl;
 import okhttp3.Request;
-import org.apache.nifi.annotation.lifecycle.OnDisabled;
-import org.apache.nifi.annotation.lifecycle.OnEnabled;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
 import org.apache.nifi.components.PropertyDescriptor;
-import org.apache.nifi.controller.AbstractControllerService;
 import org.apache.nifi.controller.ConfigurationContext;
 import org.apache.nifi.processor.util.StandardValidators;
-import org.apache.nifi.reporting.InitializationException;
 
-import java.util.ArrayList;
 import java.util.List;
 
-public class InfluxDBControllerService extends AbstractControllerService implements InfluxDBService {
-
-    public static final PropertyDescriptor INFLUXDB_URL = new PropertyDescriptor.Builder()
-            .name("InfluxDB URL")
-            .description("URL of the InfluxDB instance")
-            .required(true)
-            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
-            .build();
+@Tags({"influxdb", "tracking", "sink"})
+@CapabilityDescription("Writes tracking events to InfluxDB 1.x through the /write endpoint, authenticating with a "
+        + "username and password if configured.")
+public class InfluxDBControllerService extends AbstractInfluxDBService implements InfluxDBService {
 
     public static final PropertyDescriptor INFLUXDB_DATABASE = new PropertyDescriptor.Builder()
             .name("InfluxDB Database")
@@ -45,48 +38,27 @@ public class InfluxDBControllerService extends AbstractControllerService impleme
             .sensitive(true)
             .build();
 
-    private OkHttpClient httpClient;
-    private String influxdbUrl;
-    private String influxdbDatabase;
-    private String influxdbUsername;
-    private String influxdbPassword;
+    private volatile String influxdbDatabase;
+    private volatile String influxdbUsername;
+    private volatile String influxdbPassword;
 
     @Override
-    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
-        final List<PropertyDescriptor> descriptors = new ArrayList<>();
-        descriptors.add(INFLUXDB_URL);
-        descriptors.add(INFLUXDB_DATABASE);
-        descriptors.add(INFLUXDB_USERNAME);
-        descriptors.add(INFLUXDB_PASSWORD);
-        return descriptors;
+    protected List<PropertyDescriptor> getConnectionDescriptors() {
+        return List.of(INFLUXDB_DATABASE, INFLUXDB_USERNAME, INFLUXDB_PASSWORD);
     }
 
-    @OnEnabled
-    public void onEnabled(final ConfigurationContext context) throws InitializationException {
-        this.influxdbUrl = context.getProperty(INFLUXDB_URL).getValue();
+    @Override
+    protected Request.Builder createWriteRequest(final ConfigurationContext context, final HttpUrl baseUrl) {
         this.influxdbDatabase = context.getProperty(INFLUXDB_DATABASE).getValue();
         this.influxdbUsername = context.getProperty(INFLUXDB_USERNAME).getValue();
         this.influxdbPassword = context.getProperty(INFLUXDB_PASSWORD).getValue();
-        this.httpClient = new OkHttpClient();
-    }
 
-    @OnDisabled
-    public void onDisabled() {
-        this.httpClient = null;
-        this.influxdbUrl = null;
-        this.influxdbDatabase = null;
-        this.influxdbUsername = null;
-        this.influxdbPassword = null;
-    }
-
-    @Override
-    public OkHttpClient getHttpClient() {
-        return this.httpClient;
-    }
-
-    @Override
-    public String getInfluxdbUrl() {
-        return this.influxdbUrl;
+        final HttpUrl writeUrl = baseUrl.newBuilder()
+                .addPathSegment("write")
+                .addQueryParameter("precision", "ns")
+                .addQueryParameter("db", getInfluxdbDatabase())
+                .build();
+        return addAuthentication(new Request.Builder().url(writeUrl));
     }
 
     @Override
@@ -104,6 +76,7 @@ public class InfluxDBControllerService extends AbstractControllerService impleme
         return this.influxdbPassword;
     }
 
+    @Override
     public Request.Builder addAuthentication(Request.Builder requestBuilder) {
         if (influxdbUsername != null && influxdbPassword != null) {
             String credential = Credentials.basic(influxdbUsername, influxdbPassword);
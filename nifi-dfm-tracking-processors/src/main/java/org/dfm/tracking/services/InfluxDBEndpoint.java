@@ -0,0 +1,47 @@
+package org.dfm.tracking.services;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One InfluxDB instance written to by an {@link AbstractInfluxDBService}, with its own HTTP client and connection
+ * pool, its write request template, the permits bounding concurrent writes to it and the circuit breaker tracking
+ * its health.
+ */
+final class InfluxDBEndpoint {
+
+    final String url;
+    final OkHttpClient httpClient;
+    final Request writeRequest;
+    final CircuitBreaker circuitBreaker;
+    final Semaphore requests;
+    final AtomicLong writes = new AtomicLong();
+    final AtomicLong failures = new AtomicLong();
+    /** Whether the instance refuses writes for its credentials or database, reported once until it recovers. */
+    final AtomicBoolean refusing = new AtomicBoolean();
+
+    InfluxDBEndpoint(final String url, final OkHttpClient httpClient, final Request writeRequest,
+                     final CircuitBreaker circuitBreaker, final int maxRequests) {
+        this.url = url;
+        this.httpClient = httpClient;
+        this.writeRequest = writeRequest;
+        this.circuitBreaker = circuitBreaker;
+        this.requests = new Semaphore(maxRequests);
+    }
+
+    /**
+     * @return false while the circuit breaker refuses writes to this endpoint
+     */
+    boolean isAvailable() {
+        return circuitBreaker.getState() != CircuitBreaker.State.OPEN;
+    }
+
+    void close() {
+        httpClient.dispatcher().executorService().shutdown();
+        httpClient.connectionPool().evictAll();
+    }
+}
@@ -2,9 +2,12 @@ package org.dfm.tracking.services;
 
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
-import org.apache.nifi.controller.ControllerService;
 
-public interface InfluxDBService extends ControllerService {
+/**
+ * Tracking sink writing to InfluxDB 1.x. Connection failures and all responses except 400, 413 and 422, which
+ * reject the points themselves, are retried with exponential backoff and repeated failures open the circuit breaker.
+ */
+public interface InfluxDBService extends TrackingSink {
 
     OkHttpClient getHttpClient();
 
@@ -0,0 +1,196 @@
+package org.dfm.tracking.services;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded, byte-oriented ring buffer of newline-delimited line protocol points. Producers append whole
+ * chunks of points; the consumer drains whole lines so that every drained slice is a valid write body.
+ */
+final class LineProtocolRingBuffer {
+
+    private static final byte NEWLINE = '\n';
+
+    private final byte[] buffer;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    private int head;
+    private int size;
+    private long points;
+    private boolean closed;
+
+    LineProtocolRingBuffer(final int capacity) {
+        this.buffer = new byte[capacity];
+    }
+
+    /**
+     * Appends a chunk of points, waiting up to the given timeout for free space. The chunk is appended
+     * completely or not at all.
+     *
+     * @return false if the buffer is closed, the chunk can never fit, or no space became available in time
+     */
+    boolean offer(final byte[] src, final int offset, final int length, final long timeout, final TimeUnit unit)
+            throws InterruptedException {
+        if (length == 0) {
+            return true;
+        }
+        final boolean terminated = src[offset + length - 1] == NEWLINE;
+        final int required = terminated ? length : length + 1;
+        if (required > buffer.length) {
+            return false;
+        }
+
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (!closed && buffer.length - size < required) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            if (closed) {
+                return false;
+            }
+
+            int lines = 0;
+            int tail = (head + size) % buffer.length;
+            for (int i = offset; i < offset + length; i++) {
+                final byte b = src[i];
+                if (b == NEWLINE) {
+                    lines++;
+                }
+                buffer[tail] = b;
+                tail = tail + 1 == buffer.length ? 0 : tail + 1;
+            }
+            if (!terminated) {
+                buffer[tail] = NEWLINE;
+                lines++;
+            }
+            size += required;
+            points += lines;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until at least {@code minBytes} are buffered, the timeout elapses or the buffer is closed.
+     *
+     * @return the number of buffered bytes
+     */
+    int awaitSize(final int minBytes, final long timeout, final TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (!closed && size < minBytes && nanos > 0) {
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes whole lines totalling at most {@code maxBytes}. A single line longer than {@code maxBytes} is
+     * drained on its own.
+     *
+     * @return the drained points, or null if the buffer is empty
+     */
+    byte[] drain(final int maxBytes) {
+        lock.lock();
+        try {
+            if (size == 0) {
+                return null;
+            }
+
+            int length = 0;
+            for (int i = Math.min(size, maxBytes); i > 0; i--) {
+                if (byteAt(i - 1) == NEWLINE) {
+                    length = i;
+                    break;
+                }
+            }
+            if (length == 0) {
+                length = maxBytes;
+                while (byteAt(length - 1) != NEWLINE) {
+                    length++;
+                }
+            }
+
+            final byte[] drained = new byte[length];
+            final int firstPart = Math.min(length, buffer.length - head);
+            System.arraycopy(buffer, head, drained, 0, firstPart);
+            System.arraycopy(buffer, 0, drained, firstPart, length - firstPart);
+
+            int lines = 0;
+            for (final byte b : drained) {
+                if (b == NEWLINE) {
+                    lines++;
+                }
+            }
+            head = (head + length) % buffer.length;
+            size -= length;
+            points -= lines;
+            notFull.signalAll();
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting points and wakes up all waiting threads. Buffered points can still be drained.
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getPoints() {
+        lock.lock();
+        try {
+            return points;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getSize() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getCapacity() {
+        return buffer.length;
+    }
+
+    private byte byteAt(final int index) {
+        return buffer[(head + index) % buffer.length];
+    }
+}
@@ -0,0 +1,15 @@
+package org.dfm.tracking.services;
+
+import java.io.IOException;
+
+/**
+ * Thrown when InfluxDB rejects the points of a write themselves: 400 for malformed points or a field type conflict,
+ * 413 for a too large request or 422 for points outside the retention policy. Retrying cannot change the outcome,
+ * so the points must not be retried or journaled. Refused credentials and missing databases are not rejections.
+ */
+public class RejectedWriteException extends IOException {
+
+    public RejectedWriteException(final String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,426 @@
+package org.dfm.tracking.services;
+
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnDisabled;
+import org.apache.nifi.annotation.lifecycle.OnEnabled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.processor.DataUnit;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.reporting.InitializationException;
+import org.dfm.tracking.metrics.WriteMetrics;
+import org.dfm.tracking.protocol.LineProtocolWriter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+@Tags({"file", "tracking", "sink"})
+@CapabilityDescription("Writes tracking events as InfluxDB line protocol into gzip-compressed segment files in a local "
+        + "directory. Points are compressed as they arrive and written through a file channel; a segment is completed and "
+        + "renamed from .lp.gz.partial to .lp.gz once it reaches the maximum size or age, so that downstream consumers "
+        + "only ever see complete files. A segment which cannot be written to is abandoned as .lp.gz.failed, and "
+        + "partial segments left behind by a crash are renamed to .lp.gz.recovered when the service is enabled.")
+public class RollingFileTrackingSink extends AbstractControllerService implements TrackingSink {
+
+    public static final PropertyDescriptor DIRECTORY = new PropertyDescriptor.Builder()
+            .name("Directory")
+            .description("Directory the segment files are written to")
+            .required(true)
+            .addValidator(StandardValidators.createDirectoryExistsValidator(false, true))
+            .build();
+
+    public static final PropertyDescriptor FILE_PREFIX = new PropertyDescriptor.Builder()
+            .name("File Prefix")
+            .description("Prefix of the segment file names, which are completed with the time the segment was opened and a sequence number")
+            .required(true)
+            .defaultValue("tracking")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor MAX_SEGMENT_SIZE = new PropertyDescriptor.Builder()
+            .name("Max Segment Size")
+            .description("Uncompressed amount of points after which a segment is completed")
+            .required(true)
+            .defaultValue("128 MB")
+            .addValidator(StandardValidators.createDataSizeBoundsValidator(1, Long.MAX_VALUE))
+            .build();
+
+    public static final PropertyDescriptor ROLL_INTERVAL = new PropertyDescriptor.Builder()
+            .name("Roll Interval")
+            .description("Maximum time a segment stays open before it is completed, even if it is not full")
+            .required(true)
+            .defaultValue("5 mins")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor COMPRESSION_LEVEL = new PropertyDescriptor.Builder()
+            .name("Compression Level")
+            .description("Deflate compression level from 0 (none) to 9 (smallest files). Line protocol compresses well even at 1, "
+                    + "which is the fastest.")
+            .required(true)
+            .defaultValue("1")
+            .addValidator(StandardValidators.createLongValidator(0, 9, true))
+            .build();
+
+    static final String SEGMENT_SUFFIX = ".lp.gz";
+    static final String PARTIAL_SUFFIX = ".partial";
+    static final String FAILED_SUFFIX = ".failed";
+    static final String RECOVERED_SUFFIX = ".recovered";
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final byte[] NEWLINE = {'\n'};
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final WriteMetrics metrics = new WriteMetrics();
+    private final AtomicLong segmentsCompleted = new AtomicLong();
+    private final CRC32 crc = new CRC32();
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    private Path directory;
+    private String filePrefix;
+    private long maxSegmentSize;
+    private long rollIntervalNanos;
+    private Deflater deflater;
+    private ScheduledExecutorService roller;
+    private long sequence;
+
+    // Current segment, guarded by lock
+    private FileChannel channel;
+    private Path segment;
+    private long segmentSize;
+    private long segmentOpenedAt;
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        final List<PropertyDescriptor> descriptors = new ArrayList<>();
+        descriptors.add(DIRECTORY);
+        descriptors.add(FILE_PREFIX);
+        descriptors.add(MAX_SEGMENT_SIZE);
+        descriptors.add(ROLL_INTERVAL);
+        descriptors.add(COMPRESSION_LEVEL);
+        return descriptors;
+    }
+
+    @OnEnabled
+    public void onEnabled(final ConfigurationContext context) throws InitializationException {
+        this.directory = Paths.get(context.getProperty(DIRECTORY).getValue());
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new InitializationException("Failed to create " + directory, e);
+        }
+        this.filePrefix = context.getProperty(FILE_PREFIX).getValue();
+        recoverPartialSegments();
+        this.maxSegmentSize = context.getProperty(MAX_SEGMENT_SIZE).asDataSize(DataUnit.B).longValue();
+        this.rollIntervalNanos = context.getProperty(ROLL_INTERVAL).asTimePeriod(TimeUnit.NANOSECONDS);
+        this.deflater = new Deflater(context.getProperty(COMPRESSION_LEVEL).asInteger(), true);
+
+        final long checkMillis = Math.max(10, Math.min(1000, TimeUnit.NANOSECONDS.toMillis(rollIntervalNanos) / 2));
+        this.roller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "Rolling File Tracking Sink " + getIdentifier());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.roller.scheduleWithFixedDelay(this::rollIfDue, checkMillis, checkMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @OnDisabled
+    public void onDisabled() {
+        if (roller != null) {
+            roller.shutdown();
+            try {
+                roller.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            this.roller = null;
+        }
+        lock.lock();
+        try {
+            completeSegment();
+        } catch (IOException e) {
+            getLogger().error("Failed to complete segment {}", segment, e);
+        } finally {
+            lock.unlock();
+        }
+        if (deflater != null) {
+            deflater.end();
+            this.deflater = null;
+        }
+    }
+
+    @Override
+    public void write(final byte[] points, final int offset, final int length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        final long start = System.nanoTime();
+        lock.lock();
+        try {
+            if (channel == null) {
+                openSegment();
+            }
+            compress(points, offset, length);
+            if (points[offset + length - 1] != '\n') {
+                compress(NEWLINE, 0, 1);
+            }
+            if (segmentSize >= maxSegmentSize) {
+                completeSegment();
+            }
+        } catch (IOException e) {
+            metrics.recordFailure();
+            abandonSegment();
+            throw e;
+        } finally {
+            lock.unlock();
+        }
+        metrics.recordWrite(LineProtocolWriter.countPoints(points, offset, length), length, System.nanoTime() - start);
+    }
+
+    /**
+     * Compressing on the calling thread is as fast as copying into a buffer would be, so points are written
+     * right away.
+     */
+    @Override
+    public boolean enqueue(final byte[] points, final int offset, final int length) {
+        try {
+            write(points, offset, length);
+            return true;
+        } catch (IOException e) {
+            getLogger().error("Failed to write {} bytes to {}", length, segment, e);
+            return false;
+        }
+    }
+
+    @Override
+    public boolean spill(final byte[] points, final int offset, final int length) {
+        return false;
+    }
+
+    /**
+     * Makes all points written so far readable from the current segment file.
+     */
+    @Override
+    public void flush() {
+        lock.lock();
+        try {
+            if (channel != null) {
+                deflate(Deflater.SYNC_FLUSH);
+                drain();
+            }
+        } catch (IOException e) {
+            getLogger().error("Failed to flush {}", segment, e);
+            abandonSegment();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getQueueDepth() {
+        return 0;
+    }
+
+    @Override
+    public Map<String, Number> getMetrics() {
+        final Map<String, Number> snapshot = new LinkedHashMap<>();
+        metrics.snapshot(snapshot);
+        snapshot.put("segments.completed", segmentsCompleted.get());
+        return snapshot;
+    }
+
+    @Override
+    public long getWrites() {
+        return metrics.getWrites();
+    }
+
+    @Override
+    public long getWriteLatencySumNanos() {
+        return metrics.getWriteLatency().getSum();
+    }
+
+    @Override
+    public CircuitBreaker.State getCircuitState() {
+        return CircuitBreaker.State.CLOSED;
+    }
+
+    @Override
+    public boolean isAcceptingWrites() {
+        return true;
+    }
+
+    private void rollIfDue() {
+        lock.lock();
+        try {
+            if (channel != null && System.nanoTime() - segmentOpenedAt >= rollIntervalNanos) {
+                completeSegment();
+            }
+        } catch (IOException e) {
+            getLogger().error("Failed to complete segment {}", segment, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void openSegment() throws IOException {
+        // The sequence starts over when NiFi restarts, so skip names already taken by an earlier segment
+        final String timestamp = LocalDateTime.now().format(TIMESTAMP);
+        while (true) {
+            final Path segment = directory.resolve(filePrefix + "-" + timestamp + "-" + (sequence++) + SEGMENT_SUFFIX);
+            if (Files.exists(segment) || Files.exists(renamed(segment, FAILED_SUFFIX))
+                    || Files.exists(renamed(segment, RECOVERED_SUFFIX))) {
+                continue;
+            }
+            try {
+                this.channel = FileChannel.open(partial(segment), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            } catch (FileAlreadyExistsException e) {
+                continue;
+            }
+            this.segment = segment;
+            break;
+        }
+        this.segmentSize = 0;
+        this.segmentOpenedAt = System.nanoTime();
+        crc.reset();
+        deflater.reset();
+        buffer.clear();
+        buffer.put(GZIP_HEADER);
+    }
+
+    private void completeSegment() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        try {
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflater.deflate(buffer);
+                if (!buffer.hasRemaining()) {
+                    drain();
+                }
+            }
+            // The gzip trailer: CRC-32 and uncompressed size modulo 2^32, little endian
+            if (buffer.remaining() < 8) {
+                drain();
+            }
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt((int) crc.getValue());
+            buffer.putInt((int) segmentSize);
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            drain();
+            channel.force(false);
+            channel.close();
+        } catch (IOException e) {
+            abandonSegment();
+            throw e;
+        }
+        this.channel = null;
+        // Without REPLACE_EXISTING the move fails rather than overwrite a completed segment
+        Files.move(partial(segment), segment);
+        segmentsCompleted.incrementAndGet();
+    }
+
+    /**
+     * Closes the current segment after a failed write, which leaves the compressed stream unusable, and renames it
+     * to a .failed name. The next write starts a new segment.
+     */
+    private void abandonSegment() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            getLogger().debug("Failed to close {}", segment, e);
+        }
+        this.channel = null;
+        final Path failed = renamed(segment, FAILED_SUFFIX);
+        try {
+            Files.move(partial(segment), failed);
+            getLogger().warn("Abandoned segment {} after a failed write, continuing with a new segment", failed);
+        } catch (IOException e) {
+            getLogger().error("Failed to rename abandoned segment {} to {}", partial(segment), failed, e);
+        }
+    }
+
+    /**
+     * Renames the partial segments of this prefix left behind by a crash, which lack the gzip trailer, so that
+     * they are neither mistaken for segments in progress nor lost.
+     */
+    private void recoverPartialSegments() throws InitializationException {
+        final String partialSuffix = SEGMENT_SUFFIX + PARTIAL_SUFFIX;
+        try (DirectoryStream<Path> partials = Files.newDirectoryStream(directory, file -> {
+            final String name = file.getFileName().toString();
+            return name.startsWith(filePrefix + "-") && name.endsWith(partialSuffix);
+        })) {
+            for (final Path partial : partials) {
+                final String name = partial.getFileName().toString();
+                final Path recovered = renamed(directory.resolve(name.substring(0, name.length() - PARTIAL_SUFFIX.length())), RECOVERED_SUFFIX);
+                Files.move(partial, recovered);
+                getLogger().warn("Renamed {}, which was left incomplete, to {}; it holds the points up to the last "
+                        + "flush but lacks the gzip trailer", partial, recovered);
+            }
+        } catch (IOException e) {
+            throw new InitializationException("Failed to recover partial segments in " + directory, e);
+        }
+    }
+
+    private static Path partial(final Path segment) {
+        return renamed(segment, PARTIAL_SUFFIX);
+    }
+
+    private static Path renamed(final Path segment, final String suffix) {
+        return segment.resolveSibling(segment.getFileName() + suffix);
+    }
+
+    private void compress(final byte[] points, final int offset, final int length) throws IOException {
+        crc.update(points, offset, length);
+        segmentSize += length;
+        deflater.setInput(points, offset, length);
+        deflate(Deflater.NO_FLUSH);
+    }
+
+    private void deflate(final int flush) throws IOException {
+        while (true) {
+            deflater.deflate(buffer, flush);
+            if (!buffer.hasRemaining()) {
+                drain();
+            } else if (flush != Deflater.NO_FLUSH || deflater.needsInput()) {
+                return;
+            }
+        }
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
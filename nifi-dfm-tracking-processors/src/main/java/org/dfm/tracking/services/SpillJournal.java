@@ -0,0 +1,238 @@
+package org.dfm.tracking.services;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.TreeSet;
+
+/**
+ * Write-ahead journal for points that could not be written to InfluxDB. Points are appended as length-prefixed
+ * records to memory-mapped segment files of a fixed size; a new segment is started when the current one is full.
+ * A memory-mapped cursor file records how far the journal has been replayed, so unreplayed points survive a
+ * restart. Segments are deleted once they have been replayed completely.
+ * <p>
+ * Appends only reach the page cache; {@link #force()} flushes them to disk.
+ */
+final class SpillJournal implements Closeable {
+
+    private static final String SEGMENT_SUFFIX = ".segment";
+    private static final String CURSOR_FILE = "journal.cursor";
+    private static final int HEADER_SIZE = Integer.BYTES;
+    private static final byte NEWLINE = '\n';
+
+    private final Path directory;
+    private final int segmentSize;
+    private final TreeSet<Long> segmentIds = new TreeSet<>();
+    private final MappedByteBuffer cursor;
+
+    private long writeSegmentId;
+    private MappedByteBuffer writeSegment;
+    private int writePosition;
+
+    private long readSegmentId;
+    private MappedByteBuffer readSegment;
+    private int readPosition;
+    private int peekedPosition = -1;
+    private int peekedBytes;
+
+    private long pendingBytes;
+
+    SpillJournal(final Path directory, final int segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+
+        this.cursor = map(directory.resolve(CURSOR_FILE), 2 * Long.BYTES);
+        final long cursorSegmentId = cursor.getLong(0);
+        final int cursorPosition = (int) cursor.getLong(Long.BYTES);
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (final Path segment : stream) {
+                final String name = segment.getFileName().toString();
+                final long id = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                if (id < cursorSegmentId) {
+                    Files.delete(segment);
+                } else {
+                    segmentIds.add(id);
+                }
+            }
+        }
+        if (segmentIds.isEmpty()) {
+            segmentIds.add(cursorSegmentId);
+        }
+
+        this.writeSegmentId = segmentIds.last();
+        this.writeSegment = mapSegment(writeSegmentId);
+        this.writePosition = endOf(writeSegment, 0);
+
+        this.readSegmentId = segmentIds.first();
+        this.readSegment = readSegmentId == writeSegmentId ? writeSegment : mapSegment(readSegmentId);
+        this.readPosition = readSegmentId == cursorSegmentId ? Math.min(cursorPosition, endOf(readSegment, 0)) : 0;
+
+        for (final long id : segmentIds) {
+            final MappedByteBuffer segment = id == readSegmentId ? readSegment : id == writeSegmentId ? writeSegment : mapSegment(id);
+            int position = id == readSegmentId ? readPosition : 0;
+            int recordLength;
+            while ((recordLength = recordLengthAt(segment, position)) > 0) {
+                pendingBytes += recordLength;
+                position += HEADER_SIZE + recordLength;
+            }
+        }
+        saveCursor();
+    }
+
+    /**
+     * Appends newline-delimited points as a single record, starting a new segment if the current one is full.
+     */
+    synchronized void append(final byte[] points, final int offset, final int length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        final boolean terminated = points[offset + length - 1] == NEWLINE;
+        final int recordLength = terminated ? length : length + 1;
+        if (HEADER_SIZE + recordLength > segmentSize) {
+            throw new IOException("Points of " + length + " bytes exceed the spill segment size of " + segmentSize + " bytes");
+        }
+        if (segmentSize - writePosition < HEADER_SIZE + recordLength) {
+            rotate();
+        }
+
+        // Write the payload before its length so that a torn append is never read back as a record
+        writeSegment.put(writePosition + HEADER_SIZE, points, offset, length);
+        if (!terminated) {
+            writeSegment.put(writePosition + HEADER_SIZE + length, NEWLINE);
+        }
+        writeSegment.putInt(writePosition, recordLength);
+        writePosition += HEADER_SIZE + recordLength;
+        pendingBytes += recordLength;
+    }
+
+    /**
+     * Reads journaled points from the cursor without consuming them. Records are combined up to {@code maxBytes},
+     * but at least one record is returned. The points are consumed by a subsequent {@link #acknowledge()}.
+     *
+     * @return the points, or null if the journal is empty
+     */
+    synchronized byte[] peek(final int maxBytes) throws IOException {
+        while (recordLengthAt(readSegment, readPosition) == 0) {
+            if (readSegmentId == writeSegmentId) {
+                return null;
+            }
+            advanceReadSegment();
+        }
+
+        int position = readPosition;
+        int length = 0;
+        int recordLength;
+        while ((recordLength = recordLengthAt(readSegment, position)) > 0 && (length == 0 || length + recordLength <= maxBytes)) {
+            length += recordLength;
+            position += HEADER_SIZE + recordLength;
+        }
+
+        final byte[] points = new byte[length];
+        int pointsOffset = 0;
+        for (int record = readPosition; record < position; ) {
+            recordLength = readSegment.getInt(record);
+            readSegment.get(record + HEADER_SIZE, points, pointsOffset, recordLength);
+            pointsOffset += recordLength;
+            record += HEADER_SIZE + recordLength;
+        }
+        peekedPosition = position;
+        peekedBytes = length;
+        return points;
+    }
+
+    /**
+     * Consumes the points returned by the last {@link #peek(int)} and persists the cursor.
+     */
+    synchronized void acknowledge() {
+        if (peekedPosition < 0) {
+            return;
+        }
+        readPosition = peekedPosition;
+        pendingBytes -= peekedBytes;
+        peekedPosition = -1;
+        saveCursor();
+    }
+
+    synchronized boolean isEmpty() {
+        return pendingBytes == 0;
+    }
+
+    /**
+     * @return the number of journaled bytes not yet replayed
+     */
+    synchronized long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    synchronized void force() {
+        writeSegment.force();
+        cursor.force();
+    }
+
+    @Override
+    public synchronized void close() {
+        force();
+    }
+
+    private void rotate() throws IOException {
+        writeSegment.force();
+        writeSegmentId++;
+        writeSegment = mapSegment(writeSegmentId);
+        writePosition = 0;
+        segmentIds.add(writeSegmentId);
+    }
+
+    private void advanceReadSegment() throws IOException {
+        final long exhausted = readSegmentId;
+        readSegmentId = segmentIds.higher(exhausted);
+        readSegment = readSegmentId == writeSegmentId ? writeSegment : mapSegment(readSegmentId);
+        readPosition = 0;
+        peekedPosition = -1;
+        saveCursor();
+        segmentIds.remove(exhausted);
+        Files.deleteIfExists(segmentPath(exhausted));
+    }
+
+    private void saveCursor() {
+        cursor.putLong(0, readSegmentId);
+        cursor.putLong(Long.BYTES, readPosition);
+    }
+
+    private int endOf(final MappedByteBuffer segment, final int from) {
+        int position = from;
+        int recordLength;
+        while ((recordLength = recordLengthAt(segment, position)) > 0) {
+            position += HEADER_SIZE + recordLength;
+        }
+        return position;
+    }
+
+    private int recordLengthAt(final MappedByteBuffer segment, final int position) {
+        if (position + HEADER_SIZE > segmentSize) {
+            return 0;
+        }
+        final int recordLength = segment.getInt(position);
+        return recordLength > 0 && position + HEADER_SIZE + recordLength <= segmentSize ? recordLength : 0;
+    }
+
+    private MappedByteBuffer mapSegment(final long id) throws IOException {
+        return map(segmentPath(id), segmentSize);
+    }
+
+    private Path segmentPath(final long id) {
+        return directory.resolve(String.format("%020d%s", id, SEGMENT_SUFFIX));
+    }
+
+    private static MappedByteBuffer map(final Path path, final int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+}
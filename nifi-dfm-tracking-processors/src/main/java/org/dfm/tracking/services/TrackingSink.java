@@ -0,0 +1,70 @@
+package org.dfm.tracking.services;
+
+import org.apache.nifi.controller.ControllerService;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Destination of tracking events. Events are newline-delimited InfluxDB line protocol points with nanosecond
+ * timestamps, as encoded by the tracking processors; each implementation decides where they end up.
+ */
+public interface TrackingSink extends ControllerService {
+
+    /**
+     * Writes newline-delimited line protocol points on the calling thread.
+     *
+     * @throws CircuitOpenException if the sink is refusing writes and the write was not attempted
+     * @throws IOException if the write failed
+     */
+    void write(byte[] points, int offset, int length) throws IOException;
+
+    /**
+     * Queues newline-delimited line protocol points for asynchronous writing.
+     *
+     * @return true if all points were queued, false if they were rejected
+     */
+    boolean enqueue(byte[] points, int offset, int length);
+
+    /**
+     * Appends newline-delimited line protocol points to the sink's spill journal, from which they are replayed
+     * in the background.
+     *
+     * @return true if the points were journaled, false if the sink has no journal or appending failed
+     */
+    boolean spill(byte[] points, int offset, int length);
+
+    /**
+     * Writes all queued points on the calling thread.
+     */
+    void flush();
+
+    /**
+     * @return the number of points queued and not yet written
+     */
+    long getQueueDepth();
+
+    /**
+     * @return a snapshot of the write metrics of this sink, keyed by dotted metric names such as
+     * {@code points.written} or {@code write.latency.p99.ns}
+     */
+    Map<String, Number> getMetrics();
+
+    /**
+     * @return the number of successful writes so far
+     */
+    long getWrites();
+
+    /**
+     * @return the total time spent in the successful writes counted by {@link #getWrites()}, in nanoseconds
+     */
+    long getWriteLatencySumNanos();
+
+    CircuitBreaker.State getCircuitState();
+
+    /**
+     * @return false while the sink refuses writes and cannot journal them either, in which case processors
+     * should yield rather than pull flow files they cannot track
+     */
+    boolean isAcceptingWrites();
+}
@@ -0,0 +1,12 @@
+package org.dfm.tracking.services;
+
+/**
+ * Latest tracking event of a data item.
+ *
+ * @param nifiComponent NiFi component of the event, or null
+ * @param system system the data item left the DDS to, or null
+ * @param ddsEntryTimeNanos epoch nanoseconds at which the data item entered the DDS, or -1 if unknown
+ */
+public record TrackingState(String eventType, String nifiComponent, String system, long eventTimeNanos,
+                            long ddsEntryTimeNanos) {
+}
@@ -0,0 +1,240 @@
+package org.dfm.tracking.services;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Fixed-size, set-associative cache of the latest tracking event per data item. Entries live in primitive arrays
+ * keyed by the 128 bits of the data item ID, so the cache neither allocates per entry nor grows: when all slots
+ * of a set are taken, the entry with the oldest event is evicted. The arrays are split into segments, each with
+ * its own lock; lookups are optimistic and only lock when they race with a write.
+ */
+final class TrackingStateCache {
+
+    /** Bytes per entry: two key longs, two time longs and a descriptor int. */
+    static final int ENTRY_BYTES = 4 * Long.BYTES + Integer.BYTES;
+
+    private static final int SEGMENTS = 64;
+    private static final int WAYS = 8;
+    private static final int MAX_DESCRIPTORS = 1 << 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final int setMask;
+    private final AtomicLong evictions = new AtomicLong();
+
+    // Event type, component and system repeat across data items; entries only store an index into these
+    private final ConcurrentHashMap<Descriptor, Integer> descriptorIndexes = new ConcurrentHashMap<>();
+    private volatile Descriptor[] descriptors = new Descriptor[16];
+    private int descriptorCount;
+
+    /**
+     * @param maxBytes upper bound of the memory used by the entries
+     */
+    TrackingStateCache(final long maxBytes) {
+        final long sets = Math.max(1, maxBytes / ENTRY_BYTES / WAYS / SEGMENTS);
+        final int setsPerSegment = Integer.highestOneBit((int) Math.min(sets, 1 << 24));
+        this.setMask = setsPerSegment - 1;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(setsPerSegment * WAYS);
+        }
+    }
+
+    long getCapacity() {
+        return (long) SEGMENTS * segments[0].descriptors.length;
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    void put(final String dataflowTrackingId, final String eventType, final String nifiComponent, final String system,
+             final long eventTimeNanos, final long ddsEntryTimeNanos) {
+        final long high = keyHigh(dataflowTrackingId);
+        final long low = keyLow(dataflowTrackingId, high);
+        final long hash = mix(high ^ Long.rotateLeft(low, 32));
+        final Segment segment = segments[(int) (hash & (SEGMENTS - 1))];
+        final int set = (int) ((hash >>> 6) & setMask) * WAYS;
+        final int descriptor = descriptorIndex(eventType, nifiComponent, system);
+
+        final long stamp = segment.lock.writeLock();
+        try {
+            int victim = -1;
+            long victimTime = Long.MAX_VALUE;
+            for (int slot = set; slot < set + WAYS; slot++) {
+                if (segment.keys[2 * slot] == high && segment.keys[2 * slot + 1] == low) {
+                    if (segment.times[2 * slot] <= eventTimeNanos) {
+                        segment.set(slot, high, low, descriptor, eventTimeNanos, ddsEntryTimeNanos);
+                    }
+                    return;
+                }
+                if (segment.descriptors[slot] == Segment.EMPTY) {
+                    if (victimTime != Long.MIN_VALUE) {
+                        victim = slot;
+                        victimTime = Long.MIN_VALUE;
+                    }
+                } else if (segment.times[2 * slot] < victimTime) {
+                    victim = slot;
+                    victimTime = segment.times[2 * slot];
+                }
+            }
+            if (victimTime != Long.MIN_VALUE) {
+                evictions.incrementAndGet();
+            }
+            segment.set(victim, high, low, descriptor, eventTimeNanos, ddsEntryTimeNanos);
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    TrackingState get(final String dataflowTrackingId) {
+        final long high = keyHigh(dataflowTrackingId);
+        final long low = keyLow(dataflowTrackingId, high);
+        final long hash = mix(high ^ Long.rotateLeft(low, 32));
+        final Segment segment = segments[(int) (hash & (SEGMENTS - 1))];
+        final int set = (int) ((hash >>> 6) & setMask) * WAYS;
+
+        long stamp = segment.lock.tryOptimisticRead();
+        int descriptor = Segment.EMPTY;
+        long eventTime = 0;
+        long ddsEntryTime = 0;
+        for (int attempt = 0; attempt < 2; attempt++) {
+            descriptor = Segment.EMPTY;
+            for (int slot = set; slot < set + WAYS; slot++) {
+                if (segment.keys[2 * slot] == high && segment.keys[2 * slot + 1] == low) {
+                    descriptor = segment.descriptors[slot];
+                    eventTime = segment.times[2 * slot];
+                    ddsEntryTime = segment.times[2 * slot + 1];
+                    break;
+                }
+            }
+            if (attempt == 1) {
+                segment.lock.unlockRead(stamp);
+            } else if (segment.lock.validate(stamp)) {
+                break;
+            } else {
+                stamp = segment.lock.readLock();
+            }
+        }
+
+        if (descriptor == Segment.EMPTY) {
+            return null;
+        }
+        final Descriptor values = descriptor(descriptor);
+        return new TrackingState(values.eventType(), values.nifiComponent(), values.system(), eventTime, ddsEntryTime);
+    }
+
+    private int descriptorIndex(final String eventType, final String nifiComponent, final String system) {
+        final Descriptor descriptor = new Descriptor(eventType, nifiComponent, system);
+        final Integer index = descriptorIndexes.get(descriptor);
+        if (index != null) {
+            return index;
+        }
+        synchronized (descriptorIndexes) {
+            final Integer existing = descriptorIndexes.get(descriptor);
+            if (existing != null) {
+                return existing;
+            }
+            if (descriptorCount >= MAX_DESCRIPTORS) {
+                return Segment.UNKNOWN;
+            }
+            final int added = descriptorCount++;
+            final Descriptor[] descriptors = added < this.descriptors.length
+                    ? this.descriptors
+                    : Arrays.copyOf(this.descriptors, 2 * this.descriptors.length);
+            descriptors[added] = descriptor;
+            // Published before the index can be stored in an entry
+            this.descriptors = descriptors;
+            descriptorIndexes.put(descriptor, added);
+            return added;
+        }
+    }
+
+    private Descriptor descriptor(final int index) {
+        return index == Segment.UNKNOWN ? Descriptor.UNKNOWN : descriptors[index];
+    }
+
+    /**
+     * @return the first 64 bits of a canonical UUID, or a hash of any other ID
+     */
+    static long keyHigh(final String id) {
+        if (isUuid(id)) {
+            return parseHex(id, 0, 8) << 32 | parseHex(id, 9, 13) << 16 | parseHex(id, 14, 18);
+        }
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < id.length(); i++) {
+            hash = (hash ^ id.charAt(i)) * 0x100000001B3L;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * @return the last 64 bits of a canonical UUID, or a second, independent hash of any other ID
+     */
+    static long keyLow(final String id, final long high) {
+        long low;
+        if (isUuid(id)) {
+            low = parseHex(id, 19, 23) << 48 | parseHex(id, 24, 36);
+        } else {
+            long hash = id.length();
+            for (int i = 0; i < id.length(); i++) {
+                hash = hash * 31 + id.charAt(i);
+            }
+            low = mix(hash ^ 0x9E3779B97F4A7C15L);
+        }
+        // The all-zero key marks empty slots
+        return high == 0 && low == 0 ? 1 : low;
+    }
+
+    private static boolean isUuid(final String id) {
+        return id.length() == 36 && id.charAt(8) == '-' && id.charAt(13) == '-' && id.charAt(18) == '-' && id.charAt(23) == '-';
+    }
+
+    private static long parseHex(final String id, final int from, final int to) {
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            value = value << 4 | Character.digit(id.charAt(i), 16) & 0xF;
+        }
+        return value;
+    }
+
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private record Descriptor(String eventType, String nifiComponent, String system) {
+        static final Descriptor UNKNOWN = new Descriptor(null, null, null);
+    }
+
+    private static final class Segment {
+        static final int EMPTY = -1;
+        static final int UNKNOWN = -2;
+
+        final StampedLock lock = new StampedLock();
+        final long[] keys;
+        final long[] times;
+        final int[] descriptors;
+
+        Segment(final int slots) {
+            keys = new long[2 * slots];
+            times = new long[2 * slots];
+            descriptors = new int[slots];
+            Arrays.fill(descriptors, EMPTY);
+        }
+
+        void set(final int slot, final long high, final long low, final int descriptor, final long eventTime,
+                 final long ddsEntryTime) {
+            keys[2 * slot] = high;
+            keys[2 * slot + 1] = low;
+            times[2 * slot] = eventTime;
+            times[2 * slot + 1] = ddsEntryTime;
+            descriptors[slot] = descriptor;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package org.dfm.tracking.services;
+
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnDisabled;
+import org.apache.nifi.annotation.lifecycle.OnEnabled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.lookup.RecordLookupService;
+import org.apache.nifi.processor.DataUnit;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+@Tags({"tracking", "lookup", "cache", "record"})
+@CapabilityDescription("Keeps the latest tracking event of every data item seen on this node in a memory-bounded cache, "
+        + "fed by the tracking processors that reference this service. Answers status queries such as where a data "
+        + "item is and when it entered the DDS from memory, both directly and as a Record Lookup Service keyed by "
+        + TrackingStateLookupService.ID_KEY + ". When the cache is full, the data items with the oldest events are evicted.")
+public class TrackingStateLookupService extends AbstractControllerService implements TrackingStateService, RecordLookupService {
+
+    public static final String ID_KEY = "dataflow.tracking.id";
+
+    public static final PropertyDescriptor MAX_CACHE_SIZE = new PropertyDescriptor.Builder()
+            .name("Max Cache Size")
+            .description("Memory reserved for the cached events. Every data item takes " + TrackingStateCache.ENTRY_BYTES
+                    + " bytes, so 64 MB hold the state of almost two million data items.")
+            .required(true)
+            .defaultValue("64 MB")
+            .addValidator(StandardValidators.createDataSizeBoundsValidator(1024, Integer.MAX_VALUE * (long) TrackingStateCache.ENTRY_BYTES))
+            .build();
+
+    static final RecordSchema STATE_SCHEMA = new SimpleRecordSchema(List.of(
+            new RecordField("event_type", RecordFieldType.STRING.getDataType()),
+            new RecordField("nifi_component", RecordFieldType.STRING.getDataType()),
+            new RecordField("system", RecordFieldType.STRING.getDataType()),
+            new RecordField("event_time_ns", RecordFieldType.LONG.getDataType()),
+            new RecordField("dds_entry_time_ns", RecordFieldType.LONG.getDataType())));
+
+    private volatile TrackingStateCache cache;
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        final List<PropertyDescriptor> descriptors = new ArrayList<>();
+        descriptors.add(MAX_CACHE_SIZE);
+        return descriptors;
+    }
+
+    @OnEnabled
+    public void onEnabled(final ConfigurationContext context) {
+        this.cache = new TrackingStateCache(context.getProperty(MAX_CACHE_SIZE).asDataSize(DataUnit.B).longValue());
+        getLogger().info("Caching the state of up to {} data items", cache.getCapacity());
+    }
+
+    @OnDisabled
+    public void onDisabled() {
+        this.cache = null;
+    }
+
+    @Override
+    public void update(final String dataflowTrackingId, final String eventType, final String nifiComponent,
+                       final String system, final long eventTimeNanos, final long ddsEntryTimeNanos) {
+        final TrackingStateCache cache = this.cache;
+        if (cache != null && dataflowTrackingId != null) {
+            cache.put(dataflowTrackingId, eventType, nifiComponent, system, eventTimeNanos, ddsEntryTimeNanos);
+        }
+    }
+
+    @Override
+    public TrackingState get(final String dataflowTrackingId) {
+        final TrackingStateCache cache = this.cache;
+        return cache == null || dataflowTrackingId == null ? null : cache.get(dataflowTrackingId);
+    }
+
+    @Override
+    public Optional<Record> lookup(final Map<String, Object> coordinates) {
+        final Object id = coordinates.get(ID_KEY);
+        final TrackingState state = id == null ? null : get(id.toString());
+        if (state == null) {
+            return Optional.empty();
+        }
+        final Map<String, Object> values = new HashMap<>(8);
+        values.put("event_type", state.eventType());
+        values.put("nifi_component", state.nifiComponent());
+        values.put("system", state.system());
+        values.put("event_time_ns", state.eventTimeNanos());
+        values.put("dds_entry_time_ns", state.ddsEntryTimeNanos() < 0 ? null : state.ddsEntryTimeNanos());
+        return Optional.of(new MapRecord(STATE_SCHEMA, values));
+    }
+
+    @Override
+    public Set<String> getRequiredKeys() {
+        return Set.of(ID_KEY);
+    }
+
+    /**
+     * @return the number of data items evicted to make room for others since the service was enabled
+     */
+    public long getEvictions() {
+        final TrackingStateCache cache = this.cache;
+        return cache == null ? 0 : cache.getEvictions();
+    }
+}
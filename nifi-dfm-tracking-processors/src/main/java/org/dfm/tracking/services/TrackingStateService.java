@@ -0,0 +1,23 @@
+package org.dfm.tracking.services;
+
+import org.apache.nifi.controller.ControllerService;
+
+/**
+ * Latest tracking event of every data item seen on this node, kept in memory so that status queries do not
+ * need to go to the tracking sink. The tracking processors record their events into it when configured to.
+ */
+public interface TrackingStateService extends ControllerService {
+
+    /**
+     * Records an event, unless a later event of the same data item is already known.
+     *
+     * @param ddsEntryTimeNanos epoch nanoseconds at which the data item entered the DDS, or a negative value if unknown
+     */
+    void update(String dataflowTrackingId, String eventType, String nifiComponent, String system,
+                long eventTimeNanos, long ddsEntryTimeNanos);
+
+    /**
+     * @return the latest event of the data item, or null if it is unknown or has been evicted
+     */
+    TrackingState get(String dataflowTrackingId);
+}
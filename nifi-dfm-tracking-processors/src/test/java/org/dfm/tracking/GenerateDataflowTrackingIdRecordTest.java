@@ -0,0 +1,139 @@
+package org.dfm.tracking;
+
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.dfm.tracking.services.InfluxDBControllerService;
+import org.dfm.tracking.util.CsvRecordReaderService;
+import org.dfm.tracking.util.CsvRecordWriterService;
+import org.dfm.tracking.util.InfluxDBStub;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class GenerateDataflowTrackingIdRecordTest {
+
+    private InfluxDBStub influxdb;
+    private TestRunner testRunner;
+    private InfluxDBControllerService influxDBControllerService;
+
+    @BeforeEach
+    public void setUp() throws IOException, InitializationException {
+        influxdb = new InfluxDBStub();
+
+        testRunner = TestRunners.newTestRunner(GenerateDataflowTrackingIdRecord.class);
+        influxDBControllerService = new InfluxDBControllerService();
+        testRunner.addControllerService("influxDBControllerService", influxDBControllerService);
+        testRunner.setProperty(influxDBControllerService, InfluxDBControllerService.INFLUXDB_URL, influxdb.getUrl());
+        testRunner.setProperty(influxDBControllerService, InfluxDBControllerService.INFLUXDB_DATABASE, "testdb");
+        testRunner.enableControllerService(influxDBControllerService);
+
+        final CsvRecordReaderService reader = new CsvRecordReaderService();
+        testRunner.addControllerService("reader", reader);
+        testRunner.enableControllerService(reader);
+        final CsvRecordWriterService writer = new CsvRecordWriterService();
+        testRunner.addControllerService("writer", writer);
+        testRunner.enableControllerService(writer);
+
+        testRunner.setProperty(GenerateDataflowTrackingIdRecord.INFLUXDB_SERVICE, "influxDBControllerService");
+        testRunner.setProperty(GenerateDataflowTrackingIdRecord.RECORD_READER, "reader");
+        testRunner.setProperty(GenerateDataflowTrackingIdRecord.RECORD_WRITER, "writer");
+        testRunner.setProperty(GenerateDataflowTrackingId.NIFI_CLUSTER_NAME, "test-cluster");
+    }
+
+    @AfterEach
+    public void tearDown() {
+        testRunner.disableControllerService(influxDBControllerService);
+        influxdb.close();
+    }
+
+    @Test
+    public void testTrackingIdAsField() {
+        testRunner.setProperty(GenerateDataflowTrackingIdRecord.SCHEMA_MODE, GenerateDataflowTrackingIdRecord.SCHEMA_ID_FIELD.getValue());
+        testRunner.enqueue("name,size\na,1\nb,2\n");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(GenerateDataflowTrackingIdRecord.REL_SUCCESS, 1);
+        final MockFlowFile flowFile = testRunner.getFlowFilesForRelationship(GenerateDataflowTrackingIdRecord.REL_SUCCESS).get(0);
+        final List<String> points = influxdb.getWrittenPoints();
+        assertEquals(2, points.size());
+        final Set<String> timestamps = new HashSet<>();
+        for (final String point : points) {
+            assertTrue(point.startsWith("dataflow_tracking_events,event_type=enter_dds,nifi_cluster_name=test-cluster,"
+                    + "nifi_node=" + AbstractDataflowTrackingProcessor.NODE_NAME + " dataflow.tracking.id=\""), point);
+            assertTrue(timestamps.add(point.substring(point.lastIndexOf(' ') + 1)), point);
+        }
+        // The first record enters the DDS when the flow file does
+        assertTrue(timestamps.contains(flowFile.getAttribute(AbstractDataflowTrackingProcessor.DDS_ENTRY_TIME_ATTRIBUTE)));
+    }
+
+    @Test
+    public void testEveryRecordGetsAnId() {
+        testRunner.enqueue("name,size\na,1\nb,2\nc,3\n");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(GenerateDataflowTrackingIdRecord.REL_SUCCESS, 1);
+        final MockFlowFile flowFile = testRunner.getFlowFilesForRelationship(GenerateDataflowTrackingIdRecord.REL_SUCCESS).get(0);
+        flowFile.assertAttributeEquals("record.count", "3");
+        flowFile.assertAttributeEquals("mime.type", "text/csv");
+        flowFile.assertAttributeEquals("nifi_cluster_name", "test-cluster");
+        flowFile.assertAttributeExists(AbstractDataflowTrackingProcessor.DDS_ENTRY_TIME_ATTRIBUTE);
+
+        final String[] lines = flowFile.getContent().split("\n");
+        assertEquals("name,size,dataflow_tracking_id", lines[0]);
+        final List<String> points = influxdb.getWrittenPoints();
+        assertEquals(3, points.size());
+        assertEquals(1, influxdb.getRequestUris().size());
+        final Set<String> ids = new HashSet<>();
+        for (int i = 1; i < lines.length; i++) {
+            final String id = lines[i].substring(lines[i].lastIndexOf(',') + 1);
+            assertTrue(ids.add(id), id);
+            assertTrue(points.get(i - 1).startsWith("dataflow_tracking_events,dataflow.tracking.id=" + id + ",nifi_cluster_name=test-cluster event_type=\"enter_dds\",sequence=0i "),
+                    points.get(i - 1));
+        }
+    }
+
+    @Test
+    public void testLargeFlowFilesAreWrittenInChunks() {
+        testRunner.setProperty(GenerateDataflowTrackingIdRecord.RECORDS_PER_WRITE, "2");
+        testRunner.enqueue("name\na\nb\nc\nd\ne\n");
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(GenerateDataflowTrackingIdRecord.REL_SUCCESS, 1);
+        assertEquals(5, influxdb.getWrittenPoints().size());
+        assertEquals(3, influxdb.getRequestUris().size());
+    }
+
+    @Test
+    public void testUnreadableFlowFileWritesNoEvents() {
+        testRunner.setProperty(GenerateDataflowTrackingIdRecord.RECORDS_PER_WRITE, "2");
+        // The reader fails on the fourth record, after the first chunk of events was complete
+        final String content = "name\na\nb\nc\nd,e\nf\n";
+        testRunner.enqueue(content);
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(GenerateDataflowTrackingIdRecord.REL_FAILURE, 1);
+        testRunner.getFlowFilesForRelationship(GenerateDataflowTrackingIdRecord.REL_FAILURE).get(0).assertContentEquals(content);
+        assertTrue(influxdb.getRequestUris().isEmpty(), influxdb.getRequestUris().toString());
+    }
+
+    @Test
+    public void testFailedWriteRoutesOriginalToFailure() {
+        influxdb.setStatus(503);
+        final String content = "name\na\nb\n";
+        testRunner.enqueue(content);
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(GenerateDataflowTrackingIdRecord.REL_FAILURE, 1);
+        testRunner.getFlowFilesForRelationship(GenerateDataflowTrackingIdRecord.REL_FAILURE).get(0).assertContentEquals(content);
+    }
+}
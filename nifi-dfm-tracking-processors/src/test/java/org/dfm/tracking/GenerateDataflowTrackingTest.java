@@ -1,114 +1,197 @@
 package org.dfm.tracking;
 
-import okhttp3.Call;
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.Response;
 import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.util.MockFlowFile;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
+import org.dfm.tracking.sampling.TraceSampler;
 import org.dfm.tracking.services.InfluxDBControllerService;
-import org.dfm.tracking.services.InfluxDBService;
-import org.junit.Before;
-import org.junit.Test;
-import org.mockito.Mockito;
+import org.dfm.tracking.util.InfluxDBStub;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
+import java.util.UUID;
 
-import static org.mockito.Mockito.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class GenerateDataflowTrackingTest {
 
+    private InfluxDBStub influxdb;
     private TestRunner testRunner;
-    private InfluxDBService influxDBService;
     private InfluxDBControllerService influxDBControllerService;
-    private OkHttpClient httpClient;
-    private Response response;
-    private Call call;
 
-    @Before
+    @BeforeEach
     public void setUp() throws InitializationException, IOException {
-        // Mock the InfluxDBService interface
-        influxDBService = Mockito.mock(InfluxDBService.class);
-        httpClient = Mockito.mock(OkHttpClient.class);
-        response = Mockito.mock(Response.class);
-        call = Mockito.mock(Call.class);
-
-        // Mock the methods in InfluxDBService
-        when(influxDBService.getHttpClient()).thenReturn(httpClient);
-        when(influxDBService.getInfluxdbUrl()).thenReturn("http://localhost:8086");
-        when(influxDBService.getInfluxdbDatabase()).thenReturn("testdb");
-        when(influxDBService.addAuthentication(any(Request.Builder.class))).thenAnswer(invocation -> {
-            Request.Builder builder = invocation.getArgument(0);
-            return builder.url("http://localhost:8086/write?db=testdb");
-        });
-
-        // Ensure the correct call mock is returned
-        when(httpClient.newCall(any(Request.class))).thenReturn(call);
-        when(call.execute()).thenReturn(response);
-
-        // Initialize the TestRunner
-        testRunner = TestRunners.newTestRunner(GenerateDataflowTrackingId.class);
+        influxdb = new InfluxDBStub();
 
-        // Create and configure the real instance of the controller service
-        influxDBControllerService = new InfluxDBControllerService() {
-            @Override
-            public OkHttpClient getHttpClient() {
-                return influxDBService.getHttpClient();
-            }
-
-            @Override
-            public String getInfluxdbUrl() {
-                return influxDBService.getInfluxdbUrl();
-            }
-
-            @Override
-            public String getInfluxdbDatabase() {
-                return influxDBService.getInfluxdbDatabase();
-            }
-
-            @Override
-            public Request.Builder addAuthentication(Request.Builder builder) {
-                return influxDBService.addAuthentication(builder);
-            }
-        };
-
-        // Add and enable the controller service
+        testRunner = TestRunners.newTestRunner(GenerateDataflowTrackingId.class);
+        influxDBControllerService = new InfluxDBControllerService();
         testRunner.addControllerService("influxDBControllerService", influxDBControllerService);
-        testRunner.setProperty(influxDBControllerService, InfluxDBControllerService.INFLUXDB_URL, "http://localhost:8086");
+        testRunner.setProperty(influxDBControllerService, InfluxDBControllerService.INFLUXDB_URL, influxdb.getUrl());
         testRunner.setProperty(influxDBControllerService, InfluxDBControllerService.INFLUXDB_DATABASE, "testdb");
+        testRunner.setProperty(influxDBControllerService, InfluxDBControllerService.MAX_RETRIES, "0");
         testRunner.enableControllerService(influxDBControllerService);
 
-        // Set the properties for the processor
         testRunner.setProperty(GenerateDataflowTrackingId.INFLUXDB_SERVICE, "influxDBControllerService");
         testRunner.setProperty(GenerateDataflowTrackingId.NIFI_CLUSTER_NAME, "test-cluster");
         testRunner.setProperty(GenerateDataflowTrackingId.MEASUREMENT_NAME, "test_measurement");
     }
 
-    @Test
-    public void testOnTrigger_Success() throws IOException {
-        when(response.isSuccessful()).thenReturn(true);
+    @AfterEach
+    public void tearDown() {
+        testRunner.disableControllerService(influxDBControllerService);
+        influxdb.close();
+    }
 
+    @Test
+    public void testOnTrigger_Success() {
         testRunner.enqueue(new byte[0]);
         testRunner.run();
 
         testRunner.assertAllFlowFilesTransferred(GenerateDataflowTrackingId.REL_SUCCESS, 1);
         testRunner.getFlowFilesForRelationship(GenerateDataflowTrackingId.REL_SUCCESS).get(0).assertAttributeExists("dataflow.tracking.id");
         testRunner.getFlowFilesForRelationship(GenerateDataflowTrackingId.REL_SUCCESS).get(0).assertAttributeEquals("nifi_cluster_name", "test-cluster");
+        testRunner.getFlowFilesForRelationship(GenerateDataflowTrackingId.REL_SUCCESS).get(0).assertAttributeExists(GenerateDataflowTrackingId.DDS_ENTRY_TIME_ATTRIBUTE);
 
-        verify(httpClient, times(1)).newCall(any(Request.class));
+        assertEquals(1, influxdb.getRequestUris().size());
+        assertTrue(influxdb.getWrittenPoints().get(0).startsWith("test_measurement,"), influxdb.getWrittenPoints().get(0));
     }
 
     @Test
-    public void testOnTrigger_Failure() throws IOException {
-        when(response.isSuccessful()).thenReturn(false);
+    public void testOnTrigger_Failure() {
+        influxdb.setStatus(503);
 
         testRunner.enqueue(new byte[0]);
         testRunner.run();
 
         testRunner.assertAllFlowFilesTransferred(GenerateDataflowTrackingId.REL_FAILURE, 1);
 
-        verify(httpClient, times(1)).newCall(any(Request.class));
+        assertEquals(1, influxdb.getRequestUris().size());
+    }
+
+    @Test
+    public void testOnTrigger_Batch() {
+        testRunner.setProperty(GenerateDataflowTrackingId.BATCH_SIZE, "10");
+
+        for (int i = 0; i < 5; i++) {
+            testRunner.enqueue(new byte[0]);
+        }
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(GenerateDataflowTrackingId.REL_SUCCESS, 5);
+        assertEquals(1, influxdb.getRequestUris().size());
+
+        assertEquals(5, testRunner.getCounterValue(GenerateDataflowTrackingId.COUNTER_POINTS_DELIVERED));
+        final GenerateDataflowTrackingId processor = (GenerateDataflowTrackingId) testRunner.getProcessor();
+        assertEquals(5L, processor.getMetrics().get("points.written"));
+        assertEquals(1L, processor.getMetrics().get("writes"));
+        assertEquals(5L, processor.getMetrics().get("batch.size.max"));
+    }
+
+    @Test
+    public void testOnTrigger_BatchFailure() {
+        influxdb.setStatus(503);
+        testRunner.setProperty(GenerateDataflowTrackingId.BATCH_SIZE, "10");
+
+        for (int i = 0; i < 3; i++) {
+            testRunner.enqueue(new byte[0]);
+        }
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(GenerateDataflowTrackingId.REL_FAILURE, 3);
+        assertEquals(1, influxdb.getRequestUris().size());
+        assertEquals(1, testRunner.getCounterValue(GenerateDataflowTrackingId.COUNTER_DELIVERY_FAILURES));
+    }
+
+    @Test
+    public void testOnTrigger_WaitsForBatchToFill() {
+        testRunner.setProperty(GenerateDataflowTrackingId.BATCH_SIZE, "10");
+        testRunner.setProperty(GenerateDataflowTrackingId.MAX_BATCH_LATENCY, "1 hour");
+
+        testRunner.enqueue(new byte[0]).setLastEnqueuedDate(System.currentTimeMillis());
+        testRunner.run();
+
+        testRunner.assertQueueNotEmpty();
+        testRunner.assertTransferCount(GenerateDataflowTrackingId.REL_SUCCESS, 0);
+        assertEquals(0, influxdb.getRequestUris().size());
+    }
+
+    @Test
+    public void testOnTrigger_Buffered() {
+        testRunner.disableControllerService(influxDBControllerService);
+        testRunner.setProperty(influxDBControllerService, InfluxDBControllerService.FLUSH_INTERVAL, "1 hour");
+        testRunner.enableControllerService(influxDBControllerService);
+        testRunner.setProperty(GenerateDataflowTrackingId.WRITE_MODE, GenerateDataflowTrackingId.WRITE_MODE_BUFFERED);
+        testRunner.setProperty(GenerateDataflowTrackingId.BATCH_SIZE, "10");
+
+        for (int i = 0; i < 4; i++) {
+            testRunner.enqueue(new byte[0]);
+        }
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(GenerateDataflowTrackingId.REL_SUCCESS, 4);
+        assertEquals(4, influxDBControllerService.getQueueDepth());
+
+        influxDBControllerService.flush();
+
+        assertEquals(0, influxDBControllerService.getQueueDepth());
+        assertEquals(1, influxdb.getRequestUris().size());
+    }
+
+    @Test
+    public void testOnTrigger_TimeOrderedIds() {
+        testRunner.setProperty(GenerateDataflowTrackingId.ID_STRATEGY, GenerateDataflowTrackingId.ID_STRATEGY_TIME_ORDERED);
+
+        testRunner.enqueue(new byte[0]);
+        testRunner.enqueue(new byte[0]);
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(GenerateDataflowTrackingId.REL_SUCCESS, 2);
+        final String first = testRunner.getFlowFilesForRelationship(GenerateDataflowTrackingId.REL_SUCCESS).get(0).getAttribute("dataflow.tracking.id");
+        final String second = testRunner.getFlowFilesForRelationship(GenerateDataflowTrackingId.REL_SUCCESS).get(1).getAttribute("dataflow.tracking.id");
+        assertEquals(7, UUID.fromString(first).version());
+        assertTrue(second.compareTo(first) > 0);
+    }
+
+    @Test
+    public void testOnTrigger_Sampling() {
+        testRunner.setProperty(GenerateDataflowTrackingId.SAMPLING_MODE, GenerateDataflowTrackingId.SAMPLING_FIXED);
+        testRunner.setProperty(GenerateDataflowTrackingId.SAMPLING_RATE, "0.5");
+        testRunner.setProperty(GenerateDataflowTrackingId.BATCH_SIZE, "100");
+
+        for (int i = 0; i < 100; i++) {
+            testRunner.enqueue(new byte[0]);
+        }
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(GenerateDataflowTrackingId.REL_SUCCESS, 100);
+        final long threshold = TraceSampler.threshold(0.5);
+        int traced = 0;
+        for (final MockFlowFile flowFile : testRunner.getFlowFilesForRelationship(GenerateDataflowTrackingId.REL_SUCCESS)) {
+            final boolean expected = TraceSampler.isTraced(flowFile.getAttribute(GenerateDataflowTrackingId.TRACKING_ID_ATTRIBUTE), threshold);
+            flowFile.assertAttributeEquals(GenerateDataflowTrackingId.TRACED_ATTRIBUTE, Boolean.toString(expected));
+            traced += expected ? 1 : 0;
+        }
+        assertEquals(traced, testRunner.getCounterValue(GenerateDataflowTrackingId.COUNTER_POINTS_DELIVERED));
+        assertEquals(100 - traced, testRunner.getCounterValue(GenerateDataflowTrackingId.COUNTER_ITEMS_NOT_TRACED));
+        assertEquals(1, influxdb.getRequestUris().size());
+    }
+
+    @Test
+    public void testOnTrigger_NothingSampled() {
+        testRunner.setProperty(GenerateDataflowTrackingId.SAMPLING_MODE, GenerateDataflowTrackingId.SAMPLING_FIXED);
+        testRunner.setProperty(GenerateDataflowTrackingId.SAMPLING_RATE, "0");
+
+        testRunner.enqueue(new byte[0]);
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(GenerateDataflowTrackingId.REL_SUCCESS, 1);
+        testRunner.getFlowFilesForRelationship(GenerateDataflowTrackingId.REL_SUCCESS).get(0)
+                .assertAttributeEquals(GenerateDataflowTrackingId.TRACED_ATTRIBUTE, "false");
+        assertEquals(0, influxdb.getRequestUris().size());
     }
 
     @Test
@@ -0,0 +1,60 @@
+package org.dfm.tracking;
+
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.dfm.tracking.services.TrackingStateLookupService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+public class LookupDataflowTrackingStateTest {
+
+    private TestRunner testRunner;
+    private TrackingStateLookupService stateService;
+
+    @BeforeEach
+    public void setUp() throws InitializationException {
+        testRunner = TestRunners.newTestRunner(LookupDataflowTrackingState.class);
+        stateService = new TrackingStateLookupService();
+        testRunner.addControllerService("stateService", stateService);
+        testRunner.enableControllerService(stateService);
+        testRunner.setProperty(LookupDataflowTrackingState.TRACKING_STATE_SERVICE, "stateService");
+    }
+
+    @AfterEach
+    public void tearDown() {
+        testRunner.disableControllerService(stateService);
+    }
+
+    @Test
+    public void testEnrichesKnownItems() {
+        stateService.update("item-1", "leave_nifi", "ConvertRecord", "", 2000, 1000);
+        stateService.update("item-2", "leave_dds", "PutKafka", "billing", 3000, 1000);
+
+        testRunner.enqueue(new byte[0], Map.of(AbstractDataflowTrackingProcessor.TRACKING_ID_ATTRIBUTE, "item-1"));
+        testRunner.enqueue(new byte[0], Map.of(
+                AbstractDataflowTrackingProcessor.TRACKING_ID_ATTRIBUTE, "item-2",
+                AbstractDataflowTrackingProcessor.DDS_ENTRY_TIME_ATTRIBUTE, "900"));
+        testRunner.enqueue(new byte[0], Map.of(AbstractDataflowTrackingProcessor.TRACKING_ID_ATTRIBUTE, "item-3"));
+        testRunner.enqueue(new byte[0]);
+        testRunner.run();
+
+        testRunner.assertTransferCount(LookupDataflowTrackingState.REL_MATCHED, 2);
+        testRunner.assertTransferCount(LookupDataflowTrackingState.REL_UNMATCHED, 2);
+        final MockFlowFile first = testRunner.getFlowFilesForRelationship(LookupDataflowTrackingState.REL_MATCHED).get(0);
+        first.assertAttributeEquals(LookupDataflowTrackingState.EVENT_TYPE_ATTRIBUTE, "leave_nifi");
+        first.assertAttributeEquals(LookupDataflowTrackingState.NIFI_COMPONENT_ATTRIBUTE, "ConvertRecord");
+        first.assertAttributeNotExists(LookupDataflowTrackingState.SYSTEM_ATTRIBUTE);
+        first.assertAttributeEquals(LookupDataflowTrackingState.EVENT_TIME_ATTRIBUTE, "2000");
+        first.assertAttributeEquals(AbstractDataflowTrackingProcessor.DDS_ENTRY_TIME_ATTRIBUTE, "1000");
+
+        // The entry time the flow file already carries is kept
+        final MockFlowFile second = testRunner.getFlowFilesForRelationship(LookupDataflowTrackingState.REL_MATCHED).get(1);
+        second.assertAttributeEquals(LookupDataflowTrackingState.SYSTEM_ATTRIBUTE, "billing");
+        second.assertAttributeEquals(AbstractDataflowTrackingProcessor.DDS_ENTRY_TIME_ATTRIBUTE, "900");
+    }
+}
@@ -0,0 +1,218 @@
+package org.dfm.tracking;
+
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.controller.status.ProcessGroupStatus;
+import org.apache.nifi.controller.status.ProcessorStatus;
+import org.apache.nifi.provenance.ProvenanceEventRecord;
+import org.apache.nifi.provenance.ProvenanceEventType;
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.state.MockStateManager;
+import org.apache.nifi.util.MockComponentLog;
+import org.apache.nifi.util.MockConfigurationContext;
+import org.apache.nifi.util.MockReportingContext;
+import org.apache.nifi.util.MockReportingInitializationContext;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.dfm.tracking.services.InfluxDBControllerService;
+import org.dfm.tracking.util.InfluxDBStub;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ProvenanceTrackingReportingTaskTest {
+
+    private static final long EVENT_TIME = 1_700_000_000_000L;
+
+    private InfluxDBStub influxdb;
+    private TestRunner serviceRunner;
+    private InfluxDBControllerService influxDBControllerService;
+    private ProvenanceTrackingReportingTask reportingTask;
+    private MockStateManager stateManager;
+    private MockReportingContext context;
+    private List<ProcessorStatus> processors;
+
+    @BeforeEach
+    public void setUp() throws IOException, InitializationException {
+        influxdb = new InfluxDBStub();
+
+        // Any runner will do to enable the service
+        serviceRunner = TestRunners.newTestRunner(UpdateDataflowTrackingEvent.class);
+        influxDBControllerService = new InfluxDBControllerService();
+        serviceRunner.addControllerService("influxDBControllerService", influxDBControllerService);
+        serviceRunner.setProperty(influxDBControllerService, InfluxDBControllerService.INFLUXDB_URL, influxdb.getUrl());
+        serviceRunner.setProperty(influxDBControllerService, InfluxDBControllerService.INFLUXDB_DATABASE, "testdb");
+        serviceRunner.setProperty(influxDBControllerService, InfluxDBControllerService.MAX_RETRIES, "0");
+        serviceRunner.enableControllerService(influxDBControllerService);
+
+        reportingTask = new ProvenanceTrackingReportingTask();
+        reportingTask.initialize(new MockReportingInitializationContext("reportingTask", "Tracking",
+                new MockComponentLog("reportingTask", reportingTask)));
+        reportingTask.onScheduled(new MockConfigurationContext(Map.of(), null, Map.of()));
+        stateManager = new MockStateManager(reportingTask);
+        context = new MockReportingContext(Map.of(), stateManager);
+        context.addControllerService(influxDBControllerService, "influxDBControllerService");
+        context.setProperty(AbstractDataflowTrackingProcessor.INFLUXDB_SERVICE.getName(), "influxDBControllerService");
+
+        processors = new ArrayList<>();
+        final ProcessGroupStatus flow = new ProcessGroupStatus();
+        flow.setProcessorStatus(processors);
+        context.getEventAccess().setProcessGroupStatus(flow);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        serviceRunner.disableControllerService(influxDBControllerService);
+        influxdb.close();
+    }
+
+    @Test
+    public void testDerivesTrackingEvents() {
+        addEvent(0, ProvenanceEventType.RECEIVE, "ListenHTTP", "item-1", null);
+        addEvent(1, ProvenanceEventType.CONTENT_MODIFIED, "ConvertRecord", "item-1", null);
+        addEvent(2, ProvenanceEventType.SEND, "InvokeHTTP", "item-1", "https://billing.example.com/api/items");
+        addEvent(3, ProvenanceEventType.SEND, "PublishKafka", null, "kafka://broker:9092/items");
+        addEvent(4, ProvenanceEventType.SEND, "RemoteGroupPort", "item-2", "nifi://nifi-2:10443/port");
+        addEvent(5, ProvenanceEventType.ATTRIBUTES_MODIFIED, "UpdateDataflowTrackingEvent", "item-2", null);
+        addEvent(6, ProvenanceEventType.DROP, "PutFile", "item-2", null);
+        reportingTask.onTrigger(context);
+
+        final List<String> points = influxdb.getWrittenPoints();
+        assertEquals(4, points.size(), points.toString());
+        assertEquals("dataflow_tracking_events,dataflow.tracking.id=item-1 event_type=\"enter_nifi\",nifi_component=\"ListenHTTP\","
+                + "nifi_component_id=\"component-0\",dds_age_ns=1000000000i " + (EVENT_TIME * 1_000_000L), points.get(0));
+        assertTrue(points.get(1).contains("event_type=\"leave_nifi\",nifi_component=\"ConvertRecord\""), points.get(1));
+        assertTrue(points.get(1).endsWith(" " + (EVENT_TIME * 1_000_000L + 1)), points.get(1));
+        assertTrue(points.get(2).contains("event_type=\"leave_dds\",nifi_component=\"InvokeHTTP\","
+                + "nifi_component_id=\"component-2\",system=\"billing.example.com\""), points.get(2));
+        assertTrue(points.get(3).startsWith("dataflow_tracking_events,dataflow.tracking.id=item-2 event_type=\"leave_nifi\""), points.get(3));
+        assertEquals(1, influxdb.getRequestUris().size());
+        stateManager.assertStateEquals(ProvenanceTrackingReportingTask.LAST_EVENT_ID_KEY, "6", Scope.LOCAL);
+
+        // The next run continues after the last event
+        addEvent(7, ProvenanceEventType.SEND, "InvokeHTTP", "item-3", "https://billing.example.com/api/items");
+        reportingTask.onTrigger(context);
+        assertEquals(5, influxdb.getWrittenPoints().size());
+        assertTrue(influxdb.getWrittenPoints().get(4).startsWith("dataflow_tracking_events,dataflow.tracking.id=item-3 "));
+        stateManager.assertStateEquals(ProvenanceTrackingReportingTask.LAST_EVENT_ID_KEY, "7", Scope.LOCAL);
+    }
+
+    @Test
+    public void testFailedWritesAreReadAgain() {
+        context.setProperty(ProvenanceTrackingReportingTask.BATCH_SIZE.getName(), "2");
+        for (int i = 0; i < 5; i++) {
+            addEvent(i, ProvenanceEventType.ROUTE, "RouteOnAttribute", "item-" + i, null);
+        }
+        influxdb.setStatus(503);
+        reportingTask.onTrigger(context);
+
+        assertEquals(0, influxdb.getWrittenPoints().size());
+        stateManager.assertStateNotSet(ProvenanceTrackingReportingTask.LAST_EVENT_ID_KEY, Scope.LOCAL);
+
+        influxdb.setStatus(204);
+        reportingTask.onTrigger(context);
+
+        // Three batches of at most two events
+        assertEquals(5, influxdb.getWrittenPoints().size());
+        assertEquals(4, influxdb.getRequestUris().size());
+        stateManager.assertStateEquals(ProvenanceTrackingReportingTask.LAST_EVENT_ID_KEY, "4", Scope.LOCAL);
+    }
+
+    @Test
+    public void testComponentsAreNamedLikeInTheFlow() {
+        addEvent(0, ProvenanceEventType.CONTENT_MODIFIED, "ConvertRecord", "item-1", null);
+        addEvent(1, ProvenanceEventType.CONTENT_MODIFIED, "ConvertRecord", "item-1", null);
+        addEvent(2, ProvenanceEventType.CONTENT_MODIFIED, "ConvertRecord", "item-1", null);
+        processors.get(0).setName("Convert orders to Avro");
+        processors.get(1).setName("Convert orders to JSON");
+        processors.remove(2);
+        reportingTask.onTrigger(context);
+
+        // Components of the same type stay apart, and a removed component is identified by its ID
+        final List<String> points = influxdb.getWrittenPoints();
+        assertEquals(3, points.size(), points.toString());
+        assertTrue(points.get(0).contains("nifi_component=\"Convert orders to Avro\""), points.get(0));
+        assertTrue(points.get(1).contains("nifi_component=\"Convert orders to JSON\""), points.get(1));
+        assertTrue(points.get(2).contains("nifi_component=\"component-2\""), points.get(2));
+    }
+
+    @Test
+    public void testRefusedWritesKeepTheCursor() {
+        addEvent(0, ProvenanceEventType.ROUTE, "RouteOnAttribute", "item-1", null);
+        for (final int status : new int[]{401, 403, 404}) {
+            influxdb.setStatus(status);
+            reportingTask.onTrigger(context);
+
+            // Refused credentials or a missing database do not reject the points, so they are read again
+            stateManager.assertStateNotSet(ProvenanceTrackingReportingTask.LAST_EVENT_ID_KEY, Scope.LOCAL);
+        }
+        influxdb.setStatus(204);
+        reportingTask.onTrigger(context);
+        assertEquals(1, influxdb.getWrittenPoints().size());
+        stateManager.assertStateEquals(ProvenanceTrackingReportingTask.LAST_EVENT_ID_KEY, "0", Scope.LOCAL);
+    }
+
+    @Test
+    public void testRejectedBatchesAreSkipped() {
+        context.setProperty(ProvenanceTrackingReportingTask.BATCH_SIZE.getName(), "2");
+        for (int i = 0; i < 5; i++) {
+            addEvent(i, ProvenanceEventType.ROUTE, "RouteOnAttribute", "item-" + i, null);
+        }
+        influxdb.failNext(1, 400);
+        reportingTask.onTrigger(context);
+
+        // The rejected first batch is not read again, the batches after it are written
+        assertEquals(3, influxdb.getWrittenPoints().size());
+        assertTrue(influxdb.getWrittenPoints().get(0).startsWith("dataflow_tracking_events,dataflow.tracking.id=item-2 "));
+        assertEquals(3, influxdb.getRequestUris().size());
+        stateManager.assertStateEquals(ProvenanceTrackingReportingTask.LAST_EVENT_ID_KEY, "4", Scope.LOCAL);
+    }
+
+    @Test
+    public void testHopLatencyWithinBatch() {
+        addEvent(0, ProvenanceEventType.RECEIVE, "ListenHTTP", "item-1", null);
+        addEvent(1, ProvenanceEventType.RECEIVE, "ListenHTTP", "item-2", null);
+        addEvent(2, ProvenanceEventType.CONTENT_MODIFIED, "ConvertRecord", "item-1", null);
+        reportingTask.onTrigger(context);
+
+        // The earlier event of the same data item in the batch is the previous hop
+        final List<String> points = influxdb.getWrittenPoints();
+        assertEquals(3, points.size(), points.toString());
+        assertTrue(!points.get(0).contains("hop_latency_ns") && !points.get(1).contains("hop_latency_ns"), points.toString());
+        assertTrue(points.get(2).contains(",hop_latency_ns=2i,"), points.get(2));
+    }
+
+    private void addEvent(final long eventId, final ProvenanceEventType type, final String componentType,
+                          final String dataflowTrackingId, final String transitUri) {
+        final Map<String, String> attributes = new HashMap<>();
+        if (dataflowTrackingId != null) {
+            attributes.put(AbstractDataflowTrackingProcessor.TRACKING_ID_ATTRIBUTE, dataflowTrackingId);
+            attributes.put(AbstractDataflowTrackingProcessor.DDS_ENTRY_TIME_ATTRIBUTE, Long.toString((EVENT_TIME - 1000) * 1_000_000L));
+        }
+        final ProvenanceEventRecord event = mock(ProvenanceEventRecord.class);
+        when(event.getEventId()).thenReturn(eventId);
+        when(event.getEventTime()).thenReturn(EVENT_TIME);
+        when(event.getEventType()).thenReturn(type);
+        when(event.getComponentType()).thenReturn(componentType);
+        when(event.getComponentId()).thenReturn("component-" + eventId);
+        when(event.getTransitUri()).thenReturn(transitUri);
+        when(event.getAttributes()).thenReturn(attributes);
+        context.getEventAccess().addProvenanceEvent(event);
+
+        final ProcessorStatus processor = new ProcessorStatus();
+        processor.setId("component-" + eventId);
+        processor.setName(componentType);
+        processor.setType(componentType);
+        processors.add(processor);
+    }
+}
@@ -0,0 +1,354 @@
+package org.dfm.tracking;
+
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.dfm.tracking.services.InfluxDBControllerService;
+import org.dfm.tracking.services.TrackingState;
+import org.dfm.tracking.services.TrackingStateLookupService;
+import org.dfm.tracking.util.InfluxDBStub;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class UpdateDataflowTrackingEventTest {
+
+    private InfluxDBStub influxdb;
+    private TestRunner testRunner;
+    private InfluxDBControllerService influxDBControllerService;
+
+    @BeforeEach
+    public void setUp() throws IOException, InitializationException {
+        influxdb = new InfluxDBStub();
+
+        testRunner = TestRunners.newTestRunner(UpdateDataflowTrackingEvent.class);
+        influxDBControllerService = new InfluxDBControllerService();
+        testRunner.addControllerService("influxDBControllerService", influxDBControllerService);
+        testRunner.setProperty(influxDBControllerService, InfluxDBControllerService.INFLUXDB_URL, influxdb.getUrl());
+        testRunner.setProperty(influxDBControllerService, InfluxDBControllerService.INFLUXDB_DATABASE, "testdb");
+        testRunner.enableControllerService(influxDBControllerService);
+
+        testRunner.setProperty(UpdateDataflowTrackingEvent.INFLUXDB_SERVICE, "influxDBControllerService");
+        testRunner.setProperty(UpdateDataflowTrackingEvent.EVENT_TYPE, UpdateDataflowTrackingEvent.EVENT_LEAVE_NIFI);
+        testRunner.setProperty(UpdateDataflowTrackingEvent.NIFI_COMPONENT, "ConvertRecord");
+    }
+
+    @AfterEach
+    public void tearDown() {
+        testRunner.disableControllerService(influxDBControllerService);
+        influxdb.close();
+    }
+
+    @Test
+    public void testHopLatencyAndAge() {
+        final long now = System.currentTimeMillis() * 1_000_000L;
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put(AbstractDataflowTrackingProcessor.TRACKING_ID_ATTRIBUTE, "item-1");
+        attributes.put(AbstractDataflowTrackingProcessor.DDS_ENTRY_TIME_ATTRIBUTE, Long.toString(now - TimeUnit.SECONDS.toNanos(5)));
+        attributes.put(AbstractDataflowTrackingProcessor.LAST_EVENT_TIME_ATTRIBUTE, Long.toString(now - TimeUnit.SECONDS.toNanos(1)));
+        testRunner.enqueue(new byte[0], attributes);
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(UpdateDataflowTrackingEvent.REL_SUCCESS, 1);
+        assertEquals(1, influxdb.getWrittenPoints().size());
+        assertTrue(influxdb.getRequestUris().get(0).contains("precision=ns"));
+
+        final String point = influxdb.getWrittenPoints().get(0);
+        assertTrue(point.startsWith("dataflow_tracking_events,dataflow.tracking.id=item-1 event_type=\"leave_nifi\",nifi_component=\"ConvertRecord\""), point);
+        final long hopLatency = field(point, "hop_latency_ns");
+        final long age = field(point, "dds_age_ns");
+        assertTrue(hopLatency >= TimeUnit.SECONDS.toNanos(1) && hopLatency < TimeUnit.SECONDS.toNanos(60), point);
+        assertTrue(age >= TimeUnit.SECONDS.toNanos(5) && age < TimeUnit.SECONDS.toNanos(65), point);
+
+        // The event time is the point's timestamp and becomes the reference for the next hop
+        final long timestamp = Long.parseLong(point.substring(point.lastIndexOf(' ') + 1));
+        final MockFlowFile flowFile = testRunner.getFlowFilesForRelationship(UpdateDataflowTrackingEvent.REL_SUCCESS).get(0);
+        flowFile.assertAttributeEquals(AbstractDataflowTrackingProcessor.LAST_EVENT_TIME_ATTRIBUTE, Long.toString(timestamp));
+    }
+
+    @Test
+    public void testWithoutTimeAttributes() {
+        testRunner.enqueue(new byte[0], Map.of(AbstractDataflowTrackingProcessor.TRACKING_ID_ATTRIBUTE, "item-2"));
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(UpdateDataflowTrackingEvent.REL_SUCCESS, 1);
+        final String point = influxdb.getWrittenPoints().get(0);
+        assertTrue(!point.contains("hop_latency_ns") && !point.contains("dds_age_ns"), point);
+        testRunner.getFlowFilesForRelationship(UpdateDataflowTrackingEvent.REL_SUCCESS).get(0)
+                .assertAttributeExists(AbstractDataflowTrackingProcessor.LAST_EVENT_TIME_ATTRIBUTE);
+    }
+
+    @Test
+    public void testFailedWritesArePenalized() {
+        influxdb.setStatus(503);
+        testRunner.enqueue(new byte[0], Map.of(AbstractDataflowTrackingProcessor.TRACKING_ID_ATTRIBUTE, "item-3"));
+        testRunner.run();
+
+        testRunner.assertTransferCount(UpdateDataflowTrackingEvent.REL_SUCCESS, 0);
+        assertEquals(1, testRunner.getQueueSize().getObjectCount());
+        assertEquals(1, testRunner.getPenalizedFlowFiles().size());
+        assertEquals(1, testRunner.getCounterValue(AbstractDataflowTrackingProcessor.COUNTER_DELIVERY_RETRIES));
+    }
+
+    @Test
+    public void testRejectedWritesAreNotRetried() {
+        influxdb.setStatus(400);
+        testRunner.enqueue(new byte[0], Map.of(AbstractDataflowTrackingProcessor.TRACKING_ID_ATTRIBUTE, "item-15"));
+        testRunner.run();
+
+        // The flow file moves on without its event instead of being retried forever
+        testRunner.assertAllFlowFilesTransferred(UpdateDataflowTrackingEvent.REL_SUCCESS, 1);
+        testRunner.getFlowFilesForRelationship(UpdateDataflowTrackingEvent.REL_SUCCESS).get(0)
+                .assertAttributeNotExists(AbstractDataflowTrackingProcessor.LAST_EVENT_TIME_ATTRIBUTE);
+        assertEquals(1, influxdb.getRequestUris().size());
+        assertEquals(1, testRunner.getCounterValue(AbstractDataflowTrackingProcessor.COUNTER_DELIVERY_FAILURES));
+    }
+
+    @Test
+    public void testSpillWarningIsLoggedOncePerOutage(@TempDir final Path spillDirectory) {
+        testRunner.disableControllerService(influxDBControllerService);
+        testRunner.setProperty(influxDBControllerService, InfluxDBControllerService.SPILL_DIRECTORY, spillDirectory.toString());
+        testRunner.setProperty(influxDBControllerService, InfluxDBControllerService.MAX_RETRIES, "0");
+        testRunner.enableControllerService(influxDBControllerService);
+        influxdb.setStatus(503);
+
+        for (int i = 0; i < 3; i++) {
+            testRunner.enqueue(new byte[0], Map.of(AbstractDataflowTrackingProcessor.TRACKING_ID_ATTRIBUTE, "item-" + (20 + i)));
+            testRunner.run(1, false, i == 0);
+        }
+
+        // Spilled batches move on, and the outage is reported once instead of on every batch
+        testRunner.assertAllFlowFilesTransferred(UpdateDataflowTrackingEvent.REL_SUCCESS, 3);
+        assertEquals(3, testRunner.getCounterValue(AbstractDataflowTrackingProcessor.COUNTER_POINTS_SPILLED));
+        assertEquals(1, testRunner.getLogger().getWarnMessages().size());
+    }
+
+    @Test
+    public void testUntracedItemsAreNotWritten() {
+        final Map<String, String> untraced = Map.of(
+                AbstractDataflowTrackingProcessor.TRACKING_ID_ATTRIBUTE, "item-4",
+                AbstractDataflowTrackingProcessor.TRACED_ATTRIBUTE, "false");
+        testRunner.enqueue(new byte[0], untraced);
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(UpdateDataflowTrackingEvent.REL_SUCCESS, 1);
+        assertEquals(0, influxdb.getRequestUris().size());
+        testRunner.getFlowFilesForRelationship(UpdateDataflowTrackingEvent.REL_SUCCESS).get(0)
+                .assertAttributeNotExists(AbstractDataflowTrackingProcessor.LAST_EVENT_TIME_ATTRIBUTE);
+
+        // Only the traced item of a mixed batch is written
+        testRunner.clearTransferState();
+        testRunner.enqueue(new byte[0], untraced);
+        testRunner.enqueue(new byte[0], Map.of(
+                AbstractDataflowTrackingProcessor.TRACKING_ID_ATTRIBUTE, "item-5",
+                AbstractDataflowTrackingProcessor.TRACED_ATTRIBUTE, "true"));
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(UpdateDataflowTrackingEvent.REL_SUCCESS, 2);
+        assertEquals(1, influxdb.getWrittenPoints().size());
+        assertTrue(influxdb.getWrittenPoints().get(0).contains("dataflow.tracking.id=item-5"));
+    }
+
+    @Test
+    public void testRollupsReplaceRawEvents() {
+        testRunner.setProperty(UpdateDataflowTrackingEvent.EVENT_OUTPUT, UpdateDataflowTrackingEvent.EVENT_OUTPUT_ROLLUP);
+        testRunner.setProperty(UpdateDataflowTrackingEvent.ROLLUP_WINDOW, "1 hour");
+        final long now = System.currentTimeMillis() * 1_000_000L;
+        for (int i = 0; i < 5; i++) {
+            testRunner.enqueue(new byte[0], Map.of(
+                    AbstractDataflowTrackingProcessor.TRACKING_ID_ATTRIBUTE, "item-" + i,
+                    AbstractDataflowTrackingProcessor.NIFI_CLUSTER_NAME_ATTRIBUTE, "test-cluster",
+                    AbstractDataflowTrackingProcessor.LAST_EVENT_TIME_ATTRIBUTE, Long.toString(now)));
+        }
+        // Stopping the processor writes the rollups of the incomplete window
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(UpdateDataflowTrackingEvent.REL_SUCCESS, 5);
+        assertEquals(1, influxdb.getWrittenPoints().size());
+        final String point = influxdb.getWrittenPoints().get(0);
+        assertTrue(point.startsWith("dataflow_tracking_rollups,event_type=leave_nifi,nifi_component=ConvertRecord,"
+                + "nifi_cluster_name=test-cluster count=5i,hop_latency_count=5i,hop_latency_ns_sum="), point);
+        testRunner.getFlowFilesForRelationship(UpdateDataflowTrackingEvent.REL_SUCCESS).get(0)
+                .assertAttributeExists(AbstractDataflowTrackingProcessor.LAST_EVENT_TIME_ATTRIBUTE);
+    }
+
+    @Test
+    public void testTracedEventsUpdateTheTrackingState() throws InitializationException {
+        final TrackingStateLookupService stateService = new TrackingStateLookupService();
+        testRunner.addControllerService("stateService", stateService);
+        testRunner.enableControllerService(stateService);
+        testRunner.setProperty(UpdateDataflowTrackingEvent.TRACKING_STATE_SERVICE, "stateService");
+        testRunner.enqueue(new byte[0], Map.of(
+                AbstractDataflowTrackingProcessor.TRACKING_ID_ATTRIBUTE, "item-6",
+                AbstractDataflowTrackingProcessor.DDS_ENTRY_TIME_ATTRIBUTE, "1000"));
+        testRunner.enqueue(new byte[0], Map.of(
+                AbstractDataflowTrackingProcessor.TRACKING_ID_ATTRIBUTE, "item-7",
+                AbstractDataflowTrackingProcessor.TRACED_ATTRIBUTE, "false"));
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(UpdateDataflowTrackingEvent.REL_SUCCESS, 2);
+        final long eventTime = Long.parseLong(testRunner.getFlowFilesForRelationship(UpdateDataflowTrackingEvent.REL_SUCCESS).get(0)
+                .getAttribute(AbstractDataflowTrackingProcessor.LAST_EVENT_TIME_ATTRIBUTE));
+        assertEquals(new TrackingState("leave_nifi", "ConvertRecord", null, eventTime, 1000), stateService.get("item-6"));
+        assertNull(stateService.get("item-7"));
+        testRunner.disableControllerService(stateService);
+    }
+
+    @Test
+    public void testEventsFromAttributes() {
+        testRunner.setProperty(UpdateDataflowTrackingEvent.EVENT_TYPE, UpdateDataflowTrackingEvent.EVENT_FROM_ATTRIBUTE.getValue());
+        testRunner.setProperty(UpdateDataflowTrackingEvent.NIFI_COMPONENT, "${component}");
+        testRunner.setProperty(UpdateDataflowTrackingEvent.SYSTEM_NAME, "${system}");
+        enqueueEvent("item-8", "leave_nifi", "ConvertRecord", null);
+        enqueueEvent("item-9", "leave_dds", "PutKafka", "billing");
+        enqueueEvent("item-10", "leave_nifi", "ConvertRecord", "ignored");
+        enqueueEvent("item-11", "unknown", "ConvertRecord", null);
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(UpdateDataflowTrackingEvent.REL_SUCCESS, 4);
+        assertEquals(1, testRunner.getCounterValue(UpdateDataflowTrackingEvent.COUNTER_INVALID_EVENT_TYPES));
+        final List<String> points = influxdb.getWrittenPoints();
+        assertEquals(3, points.size());
+        // Grouped by event, with the system only for leave_dds
+        assertTrue(points.get(0).startsWith("dataflow_tracking_events,dataflow.tracking.id=item-8 event_type=\"leave_nifi\",nifi_component=\"ConvertRecord\""), points.get(0));
+        assertTrue(points.get(1).startsWith("dataflow_tracking_events,dataflow.tracking.id=item-10 event_type=\"leave_nifi\",nifi_component=\"ConvertRecord\",sequence=0i "), points.get(1));
+        assertTrue(points.get(2).startsWith("dataflow_tracking_events,dataflow.tracking.id=item-9 event_type=\"leave_dds\",nifi_component=\"PutKafka\",system=\"billing\""), points.get(2));
+        for (final MockFlowFile flowFile : testRunner.getFlowFilesForRelationship(UpdateDataflowTrackingEvent.REL_SUCCESS)) {
+            if (flowFile.getAttribute(AbstractDataflowTrackingProcessor.TRACKING_ID_ATTRIBUTE).equals("item-11")) {
+                flowFile.assertAttributeNotExists(AbstractDataflowTrackingProcessor.LAST_EVENT_TIME_ATTRIBUTE);
+            } else {
+                flowFile.assertAttributeExists(AbstractDataflowTrackingProcessor.LAST_EVENT_TIME_ATTRIBUTE);
+            }
+        }
+    }
+
+    @Test
+    public void testDuplicateEventsAreDropped() {
+        testRunner.setProperty(UpdateDataflowTrackingEvent.DEDUP_WINDOW, "1 min");
+        final Map<String, String> attributes = Map.of(
+                AbstractDataflowTrackingProcessor.TRACKING_ID_ATTRIBUTE, "item-12",
+                AbstractDataflowTrackingProcessor.SEQUENCE_ATTRIBUTE, "2");
+        testRunner.enqueue(new byte[0], attributes);
+        testRunner.enqueue(new byte[0], attributes);
+        testRunner.run(1, false);
+
+        // The clone in the same batch is passed through unchanged
+        testRunner.assertAllFlowFilesTransferred(UpdateDataflowTrackingEvent.REL_SUCCESS, 2);
+        assertEquals(1, influxdb.getWrittenPoints().size());
+        assertEquals(3, field(influxdb.getWrittenPoints().get(0), "sequence"));
+        final List<MockFlowFile> flowFiles = testRunner.getFlowFilesForRelationship(UpdateDataflowTrackingEvent.REL_SUCCESS);
+        flowFiles.get(0).assertAttributeEquals(AbstractDataflowTrackingProcessor.SEQUENCE_ATTRIBUTE, "3");
+        flowFiles.get(1).assertAttributeEquals(AbstractDataflowTrackingProcessor.SEQUENCE_ATTRIBUTE, "2");
+        flowFiles.get(1).assertAttributeNotExists(AbstractDataflowTrackingProcessor.LAST_EVENT_TIME_ATTRIBUTE);
+
+        // Within the window, a clone and the re-queued flow file, although its sequence has moved on, are dropped
+        // as well, while another data item is written
+        testRunner.enqueue(new byte[0], attributes);
+        testRunner.enqueue(flowFiles.get(0));
+        testRunner.enqueue(new byte[0], Map.of(AbstractDataflowTrackingProcessor.TRACKING_ID_ATTRIBUTE, "item-13"));
+        testRunner.run(1, false, false);
+        assertEquals(2, influxdb.getWrittenPoints().size());
+        assertTrue(influxdb.getWrittenPoints().get(1).contains("dataflow.tracking.id=item-13 "), influxdb.getWrittenPoints().get(1));
+        assertEquals(3, testRunner.getCounterValue(UpdateDataflowTrackingEvent.COUNTER_DUPLICATE_EVENTS));
+    }
+
+    @Test
+    public void testTrackingIdAsField() {
+        testRunner.setProperty(UpdateDataflowTrackingEvent.SCHEMA_MODE, UpdateDataflowTrackingEvent.SCHEMA_ID_FIELD.getValue());
+        testRunner.setProperty(UpdateDataflowTrackingEvent.MEASUREMENT_NAME, "tracking");
+        testRunner.enqueue(new byte[0], Map.of(AbstractDataflowTrackingProcessor.TRACKING_ID_ATTRIBUTE, "item-13",
+                AbstractDataflowTrackingProcessor.NIFI_CLUSTER_NAME_ATTRIBUTE, "cluster-1"));
+        testRunner.enqueue(new byte[0], Map.of(AbstractDataflowTrackingProcessor.TRACKING_ID_ATTRIBUTE, "item-14"));
+        testRunner.run();
+
+        // Only the event details, cluster and node are tags, and the points of the same series never share a timestamp
+        final List<String> points = influxdb.getWrittenPoints();
+        assertEquals(2, points.size());
+        assertTrue(points.get(0).startsWith("tracking,event_type=leave_nifi,nifi_component=ConvertRecord,nifi_cluster_name=cluster-1,"
+                + "nifi_node=" + AbstractDataflowTrackingProcessor.NODE_NAME + " dataflow.tracking.id=\"item-13\",sequence=0i "), points.get(0));
+        assertTrue(points.get(1).startsWith("tracking,event_type=leave_nifi,nifi_component=ConvertRecord,"
+                + "nifi_node=" + AbstractDataflowTrackingProcessor.NODE_NAME + " dataflow.tracking.id=\"item-14\",sequence=0i "), points.get(1));
+        assertTrue(timestamp(points.get(0)) < timestamp(points.get(1)), points.toString());
+    }
+
+    @Test
+    public void testInstancesWithTheSameTagsNeverShareTimestamps() throws Exception {
+        testRunner.setProperty(UpdateDataflowTrackingEvent.SCHEMA_MODE, UpdateDataflowTrackingEvent.SCHEMA_ID_FIELD.getValue());
+        testRunner.setProperty(UpdateDataflowTrackingEvent.BATCH_SIZE, "1000");
+        final TestRunner other = TestRunners.newTestRunner(UpdateDataflowTrackingEvent.class);
+        final InfluxDBControllerService otherService = new InfluxDBControllerService();
+        other.addControllerService("influxDBControllerService", otherService);
+        other.setProperty(otherService, InfluxDBControllerService.INFLUXDB_URL, influxdb.getUrl());
+        other.setProperty(otherService, InfluxDBControllerService.INFLUXDB_DATABASE, "testdb");
+        other.enableControllerService(otherService);
+        other.setProperty(UpdateDataflowTrackingEvent.INFLUXDB_SERVICE, "influxDBControllerService");
+        other.setProperty(UpdateDataflowTrackingEvent.EVENT_TYPE, UpdateDataflowTrackingEvent.EVENT_LEAVE_NIFI);
+        other.setProperty(UpdateDataflowTrackingEvent.NIFI_COMPONENT, "ConvertRecord");
+        other.setProperty(UpdateDataflowTrackingEvent.SCHEMA_MODE, UpdateDataflowTrackingEvent.SCHEMA_ID_FIELD.getValue());
+        other.setProperty(UpdateDataflowTrackingEvent.BATCH_SIZE, "1000");
+        for (int i = 0; i < 1000; i++) {
+            testRunner.enqueue(new byte[0], Map.of(AbstractDataflowTrackingProcessor.TRACKING_ID_ATTRIBUTE, "item-a" + i));
+            other.enqueue(new byte[0], Map.of(AbstractDataflowTrackingProcessor.TRACKING_ID_ATTRIBUTE, "item-b" + i));
+        }
+
+        try {
+            final CompletableFuture<Void> running = CompletableFuture.runAsync(() -> other.run());
+            testRunner.run();
+            running.get(10, TimeUnit.SECONDS);
+        } finally {
+            other.disableControllerService(otherService);
+        }
+
+        // Both instances write the same series, so a shared timestamp would overwrite a point
+        final List<String> points = influxdb.getWrittenPoints();
+        assertEquals(2000, points.size());
+        final Set<String> seriesAndTimestamps = new HashSet<>();
+        for (final String point : points) {
+            final String series = point.substring(0, point.indexOf(' '));
+            assertTrue(seriesAndTimestamps.add(series + ' ' + timestamp(point)), point);
+        }
+        assertEquals(Set.of("dataflow_tracking_events,event_type=leave_nifi,nifi_component=ConvertRecord,nifi_node="
+                        + AbstractDataflowTrackingProcessor.NODE_NAME),
+                points.stream().map(point -> point.substring(0, point.indexOf(' '))).collect(Collectors.toSet()));
+    }
+
+    private void enqueueEvent(final String id, final String eventType, final String component, final String system) {
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put(AbstractDataflowTrackingProcessor.TRACKING_ID_ATTRIBUTE, id);
+        attributes.put("dataflow.tracking.event.type", eventType);
+        attributes.put("component", component);
+        if (system != null) {
+            attributes.put("system", system);
+        }
+        testRunner.enqueue(new byte[0], attributes);
+    }
+
+    private static long timestamp(final String point) {
+        return Long.parseLong(point.substring(point.lastIndexOf(' ') + 1));
+    }
+
+    private static long field(final String point, final String name) {
+        final Matcher matcher = Pattern.compile(name + "=(-?\\d+)i").matcher(point);
+        assertTrue(matcher.find(), point);
+        return Long.parseLong(matcher.group(1));
+    }
+}
@@ -0,0 +1,54 @@
+package org.dfm.tracking.dedup;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DedupFilterTest {
+
+    private static final long WINDOW = TimeUnit.MINUTES.toNanos(1);
+
+    @Test
+    public void testEventsExpireAfterTwoWindows() {
+        final DedupFilter filter = new DedupFilter(WINDOW, 100, 0);
+        final long event = DedupFilter.fingerprint("item-1", "leave_nifi", "ConvertRecord", null);
+        assertFalse(filter.contains(event, 0));
+
+        filter.addAll(new long[]{event}, 1, WINDOW / 2);
+        assertTrue(filter.contains(event, WINDOW / 2));
+        // Remembered for at least one window after it was added
+        assertTrue(filter.contains(event, WINDOW + WINDOW / 2 - 1));
+        assertFalse(filter.contains(event, 3 * WINDOW));
+        assertEquals(2, filter.getRotations());
+    }
+
+    @Test
+    public void testCapacityBoundsMemory() {
+        final DedupFilter filter = new DedupFilter(WINDOW, 1000, 0);
+        final long[] fingerprints = new long[5000];
+        for (int i = 0; i < fingerprints.length; i++) {
+            fingerprints[i] = DedupFilter.fingerprint("item-" + i, "enter_nifi", "ListenHTTP", null);
+        }
+        filter.addAll(fingerprints, fingerprints.length, 1);
+
+        // The tables rotate early instead of growing, so only the latest events are remembered
+        assertEquals(4, filter.getRotations());
+        for (int i = 3000; i < fingerprints.length; i++) {
+            assertTrue(filter.contains(fingerprints[i], 1), "item-" + i);
+        }
+        assertFalse(filter.contains(fingerprints[0], 1));
+    }
+
+    @Test
+    public void testFingerprintSeparatesParts() {
+        assertNotEquals(DedupFilter.fingerprint("ab", "c"), DedupFilter.fingerprint("a", "bc"));
+        assertNotEquals(DedupFilter.fingerprint("item-1", "leave_nifi", "ConvertRecord", null),
+                DedupFilter.fingerprint("item-1", "leave_nifi", "UpdateRecord", null));
+        assertEquals(DedupFilter.fingerprint("item-1", null), DedupFilter.fingerprint("item-1", null));
+    }
+}
@@ -0,0 +1,65 @@
+package org.dfm.tracking.id;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TrackingIdGeneratorTest {
+
+    @Test
+    public void testTimeOrderedIdsIncrease() {
+        final TrackingIdGenerator generator = new TimeOrderedIdGenerator(TrackingIdGenerator.nodeId("test-cluster"));
+
+        String previous = generator.nextId();
+        for (int i = 0; i < 10_000; i++) {
+            final String next = generator.nextId();
+            assertTrue(next.compareTo(previous) > 0, next + " is not after " + previous);
+            previous = next;
+        }
+
+        final UUID uuid = UUID.fromString(previous);
+        assertEquals(7, uuid.version());
+        assertEquals(2, uuid.variant());
+        assertTrue(Math.abs((uuid.getMostSignificantBits() >>> 16) - System.currentTimeMillis()) < 60_000);
+    }
+
+    @Test
+    public void testTimeOrderedIdsAreUniqueAcrossThreads() throws InterruptedException {
+        assertUniqueAcrossThreads(new TimeOrderedIdGenerator(TrackingIdGenerator.nodeId("test-cluster")));
+    }
+
+    @Test
+    public void testCounterIdsAreUniqueAcrossThreads() throws InterruptedException {
+        final TrackingIdGenerator generator = new ThreadLocalCounterIdGenerator(TrackingIdGenerator.nodeId("test-cluster"));
+        assertUniqueAcrossThreads(generator);
+
+        final UUID uuid = UUID.fromString(generator.nextId());
+        assertEquals(8, uuid.version());
+        assertEquals(2, uuid.variant());
+    }
+
+    private static void assertUniqueAcrossThreads(final TrackingIdGenerator generator) throws InterruptedException {
+        final Set<String> ids = ConcurrentHashMap.newKeySet();
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            final Thread thread = new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    ids.add(generator.nextId());
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(80_000, ids.size());
+    }
+}
@@ -0,0 +1,96 @@
+package org.dfm.tracking.protocol;
+
+import okio.Buffer;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class LineProtocolWriterTest {
+
+    @Test
+    public void testPoint() {
+        final LineProtocolWriter writer = LineProtocolWriter.acquire();
+        writer.measurement("dataflow_tracking_events")
+                .tag("dataflow.tracking.id", "abc")
+                .tag("nifi_cluster_name", "cluster")
+                .field("event_type", "enter_dds")
+                .field("hops", 3)
+                .timestamp(1700000000000000000L);
+
+        assertEquals("dataflow_tracking_events,dataflow.tracking.id=abc,nifi_cluster_name=cluster event_type=\"enter_dds\",hops=3i 1700000000000000000",
+                writer.toString());
+        assertEquals(1, writer.points());
+    }
+
+    @Test
+    public void testEscaping() {
+        final LineProtocolWriter writer = LineProtocolWriter.acquire();
+        writer.measurement("my measurement,1")
+                .tag("tag key", "a=b,c d")
+                .field("field=key", "say \"hi\" \\ bye");
+
+        assertEquals("my\\ measurement\\,1,tag\\ key=a\\=b\\,c\\ d field\\=key=\"say \\\"hi\\\" \\\\ bye\"", writer.toString());
+    }
+
+    @Test
+    public void testLineBreaksDoNotEndThePoint() {
+        final LineProtocolWriter writer = LineProtocolWriter.acquire();
+        writer.measurement("m").tag("t", "a\nb").field("f", "c\nd");
+
+        assertEquals("m,t=a\\ b f=\"c d\"", writer.toString());
+    }
+
+    @Test
+    public void testMultiplePointsAndUnicode() {
+        final LineProtocolWriter writer = LineProtocolWriter.acquire();
+        writer.measurement("m").tag("t", "Zürich").field("f", "🚀").field("n", -42);
+        writer.measurement("m").field("n", Long.MIN_VALUE);
+
+        assertEquals("m,t=Zürich f=\"🚀\",n=-42i\nm n=" + Long.MIN_VALUE + "i", writer.toString());
+        assertEquals(2, writer.points());
+    }
+
+    @Test
+    public void testEmptyTagsAreOmitted() {
+        final LineProtocolWriter writer = LineProtocolWriter.acquire();
+        writer.measurement("m").tag("empty", "").tag("missing", null).field("f", "v");
+
+        assertEquals("m f=\"v\"", writer.toString());
+    }
+
+    @Test
+    public void testEncodedPoints() {
+        final byte[] staged = "m f=1i\nm f=2i".getBytes(StandardCharsets.UTF_8);
+        final LineProtocolWriter writer = LineProtocolWriter.acquire();
+        writer.point(staged, 7, 6).point(staged, 0, 6);
+
+        assertEquals("m f=2i\nm f=1i", writer.toString());
+        assertEquals(2, writer.points());
+    }
+
+    @Test
+    public void testAcquireReusesTheThreadsWriter() {
+        final LineProtocolWriter first = LineProtocolWriter.acquire();
+        first.measurement("m").field("f", 1);
+
+        final LineProtocolWriter second = LineProtocolWriter.acquire();
+        assertSame(first, second);
+        assertEquals(0, second.size());
+    }
+
+    @Test
+    public void testRequestBody() throws IOException {
+        final LineProtocolWriter writer = LineProtocolWriter.acquire();
+        writer.measurement("m").field("f", 1);
+
+        final Buffer sink = new Buffer();
+        writer.toRequestBody().writeTo(sink);
+
+        assertEquals(writer.size(), writer.toRequestBody().contentLength());
+        assertEquals("m f=1i", sink.readUtf8());
+    }
+}
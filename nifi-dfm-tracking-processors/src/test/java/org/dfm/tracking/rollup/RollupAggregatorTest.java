@@ -0,0 +1,98 @@
+package org.dfm.tracking.rollup;
+
+import org.dfm.tracking.protocol.LineProtocolWriter;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RollupAggregatorTest {
+
+    private static final byte[] MEASUREMENT = LineProtocolWriter.encodeMeasurement("rollups");
+
+    @Test
+    public void testDrainWritesOnePointPerKeyAndWindow() {
+        final RollupAggregator aggregator = new RollupAggregator();
+        aggregator.record("leave_nifi", "ConvertRecord", null, "cluster-a", 100, 1000);
+        aggregator.record("leave_nifi", "ConvertRecord", null, "cluster-a", 300, -1);
+        aggregator.record("leave_nifi", "ConvertRecord", null, "cluster-b", -1, -1);
+        aggregator.record("enter_dds", null, null, "cluster-a", 5);
+
+        final LineProtocolWriter points = new LineProtocolWriter();
+        assertEquals(3, aggregator.drain(points, MEASUREMENT, 42));
+        final List<String> lines = points.toString().lines().sorted().toList();
+        assertEquals(List.of(
+                "rollups,event_type=enter_dds,nifi_cluster_name=cluster-a count=5i 42",
+                "rollups,event_type=leave_nifi,nifi_component=ConvertRecord,nifi_cluster_name=cluster-a "
+                        + "count=2i,hop_latency_count=2i,hop_latency_ns_sum=400i,dds_age_count=1i,dds_age_ns_sum=1000i 42",
+                "rollups,event_type=leave_nifi,nifi_component=ConvertRecord,nifi_cluster_name=cluster-b count=1i 42"), lines);
+
+        // Only keys with events in the window are written, and only the events of the window
+        aggregator.record("enter_dds", null, null, "cluster-a", 2);
+        points.reset();
+        assertEquals(1, aggregator.drain(points, MEASUREMENT, 43));
+        assertEquals("rollups,event_type=enter_dds,nifi_cluster_name=cluster-a count=2i 43", points.toString());
+
+        points.reset();
+        assertEquals(0, aggregator.drain(points, MEASUREMENT, 44));
+    }
+
+    @Test
+    public void testNoEventsAreLostWhileDraining() throws InterruptedException {
+        final RollupAggregator aggregator = new RollupAggregator();
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final List<Thread> threads = new ArrayList<>();
+        final int eventsPerThread = 200_000;
+        for (int t = 0; t < 4; t++) {
+            final Thread thread = new Thread(() -> {
+                for (int i = 0; i < eventsPerThread; i++) {
+                    aggregator.record("leave_nifi", "Component", null, "cluster", 1, 1);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+
+        long counted = 0;
+        final LineProtocolWriter points = new LineProtocolWriter();
+        while (running.get()) {
+            running.set(threads.stream().anyMatch(Thread::isAlive));
+            points.reset();
+            aggregator.drain(points, MEASUREMENT, 0);
+            counted += count(points.toString());
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        points.reset();
+        aggregator.drain(points, MEASUREMENT, 0);
+        counted += count(points.toString());
+        assertEquals(4L * eventsPerThread, counted);
+    }
+
+    @Test
+    public void testKeysAreBounded() {
+        final RollupAggregator aggregator = new RollupAggregator();
+        for (int i = 0; i < RollupAggregator.MAX_KEYS + 100; i++) {
+            aggregator.record("leave_nifi", "Component", null, "cluster-" + i, -1, -1);
+        }
+        final LineProtocolWriter points = new LineProtocolWriter();
+        assertEquals(RollupAggregator.MAX_KEYS + 1, aggregator.drain(points, MEASUREMENT, 0));
+        assertTrue(points.toString().contains("nifi_cluster_name=" + RollupAggregator.OVERFLOW + " count=100i"));
+    }
+
+    private static long count(final String points) {
+        long count = 0;
+        final Matcher matcher = Pattern.compile(" count=(\\d+)i").matcher(points);
+        while (matcher.find()) {
+            count += Long.parseLong(matcher.group(1));
+        }
+        return count;
+    }
+}
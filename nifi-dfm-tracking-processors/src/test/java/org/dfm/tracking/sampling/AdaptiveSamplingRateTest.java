@@ -0,0 +1,57 @@
+package org.dfm.tracking.sampling;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class AdaptiveSamplingRateTest {
+
+    private static final long TARGET = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void testRateFollowsLatency() {
+        final AdaptiveSamplingRate rate = new AdaptiveSamplingRate(0.01, 0.8, TARGET, INTERVAL, 0);
+        assertEquals(0.8, rate.get());
+        assertFalse(rate.isDue(INTERVAL - 1));
+
+        // The first adjustment only establishes the baseline
+        long now = INTERVAL;
+        long writes = 10;
+        long latency = 10 * TARGET;
+        assertEquals(0.8, rate.update(now, writes, latency));
+
+        // Slow writes halve the rate down to the minimum
+        for (int i = 0; i < 10; i++) {
+            now += INTERVAL;
+            writes += 10;
+            latency += 10 * 2 * TARGET;
+            rate.update(now, writes, latency);
+        }
+        assertEquals(0.01, rate.get());
+
+        // Fast writes raise it again up to the maximum
+        for (int i = 0; i < 20; i++) {
+            now += INTERVAL;
+            writes += 10;
+            latency += 10 * TARGET / 2;
+            rate.update(now, writes, latency);
+        }
+        assertEquals(0.8, rate.get(), 1e-9);
+    }
+
+    @Test
+    public void testRateIsKeptWithoutWrites() {
+        final AdaptiveSamplingRate rate = new AdaptiveSamplingRate(0.01, 0.5, TARGET, INTERVAL, 0);
+        rate.update(INTERVAL, 10, 10 * 2 * TARGET);
+        assertEquals(0.5, rate.update(2 * INTERVAL, 10, 10 * 2 * TARGET));
+        // Adjustments happen at most once per interval
+        assertEquals(0.25, rate.update(3 * INTERVAL, 20, 20 * 2 * TARGET));
+        assertEquals(0.25, rate.update(3 * INTERVAL + 1, 30, 30 * 2 * TARGET));
+        assertTrue(rate.isDue(4 * INTERVAL));
+    }
+}
@@ -0,0 +1,49 @@
+package org.dfm.tracking.sampling;
+
+import org.dfm.tracking.id.ThreadLocalCounterIdGenerator;
+import org.dfm.tracking.id.TrackingIdGenerator;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TraceSamplerTest {
+
+    @Test
+    public void testRateIsMetForSequentialIds() {
+        // Counter IDs only differ in their last characters
+        final TrackingIdGenerator generator = new ThreadLocalCounterIdGenerator(TrackingIdGenerator.nodeId("test-cluster"));
+        final long threshold = TraceSampler.threshold(0.1);
+        int traced = 0;
+        for (int i = 0; i < 100_000; i++) {
+            if (TraceSampler.isTraced(generator.nextId(), threshold)) {
+                traced++;
+            }
+        }
+        assertTrue(traced > 9_000 && traced < 11_000, Integer.toString(traced));
+    }
+
+    @Test
+    public void testLowerRatesTraceASubset() {
+        final List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            ids.add("item-" + i);
+        }
+        final long high = TraceSampler.threshold(0.5);
+        final long low = TraceSampler.threshold(0.05);
+        for (final String id : ids) {
+            if (TraceSampler.isTraced(id, low)) {
+                assertTrue(TraceSampler.isTraced(id, high), id);
+            }
+        }
+    }
+
+    @Test
+    public void testBounds() {
+        assertTrue(TraceSampler.isTraced("item", TraceSampler.threshold(1.0)));
+        assertFalse(TraceSampler.isTraced("item", TraceSampler.threshold(0.0)));
+    }
+}
@@ -0,0 +1,103 @@
+package org.dfm.tracking.services;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class EndpointRouterTest {
+
+    private static final OkHttpClient HTTP_CLIENT = new OkHttpClient();
+
+    @Test
+    public void testPointsOfADataItemShareTheRoutingKey() {
+        final long enter = key("dataflow_tracking,dataflow.tracking.id=item-1,nifi_cluster_name=a event_type=\"enter_dds\" 1");
+        final long leave = key("testdb,dataflow.tracking.id=item-1 event_type=\"leave_nifi\",nifi_component=\"Put\" 2");
+        final long other = key("testdb,dataflow.tracking.id=item-2 event_type=\"leave_nifi\",nifi_component=\"Put\" 2");
+        assertEquals(enter, leave);
+        assertNotEquals(enter, other);
+
+        // The same holds when the ID is a field
+        assertEquals(enter, key("events,event_type=leave_nifi,nifi_component=Put dataflow.tracking.id=\"item-1\",sequence=1i 2"));
+        assertEquals(enter, key("events,event_type=leave_nifi nifi_component=\"a,dataflow.tracking.id=\\\"x\",dataflow.tracking.id=\"item-1\" 2"));
+        assertNotEquals(enter, key("events,event_type=leave_nifi dataflow.tracking.id=\"item-2\" 2"));
+
+        // Without an ID the series key decides
+        assertEquals(key("rollups,event_type=enter_dds count=1i 1"), key("rollups,event_type=enter_dds count=7i 2"));
+        assertNotEquals(key("rollups,event_type=enter_dds count=1i 1"), key("rollups,event_type=leave_dds count=1i 1"));
+    }
+
+    @Test
+    public void testConsistentHashingOnlyMovesTheItemsOfUnavailableEndpoints() {
+        final InfluxDBEndpoint[] endpoints = endpoints(3);
+        final EndpointRouter router = new EndpointRouter(endpoints, EndpointRouter.Strategy.CONSISTENT_HASH);
+        assertTrue(router.isSharding());
+
+        final int items = 30_000;
+        final int[] before = new int[items];
+        final int[] counts = new int[endpoints.length];
+        for (int i = 0; i < items; i++) {
+            before[i] = route(router, "item-" + i);
+            counts[before[i]]++;
+        }
+        for (final int count : counts) {
+            assertTrue(count > items / 4 && count < items / 2, "uneven distribution: " + count);
+        }
+
+        endpoints[1].circuitBreaker.onFailure();
+        int moved = 0;
+        for (int i = 0; i < items; i++) {
+            final int after = route(router, "item-" + i);
+            assertNotEquals(1, after);
+            if (before[i] != 1) {
+                assertEquals(before[i], after);
+            } else {
+                moved++;
+            }
+        }
+        assertEquals(counts[1], moved);
+    }
+
+    @Test
+    public void testFailoverAndRoundRobin() {
+        final InfluxDBEndpoint[] endpoints = endpoints(3);
+        final EndpointRouter failover = new EndpointRouter(endpoints, EndpointRouter.Strategy.FAILOVER);
+        final EndpointRouter roundRobin = new EndpointRouter(endpoints, EndpointRouter.Strategy.ROUND_ROBIN);
+        assertEquals(0, failover.select());
+        assertEquals(0, roundRobin.select());
+        assertEquals(1, roundRobin.select());
+        assertEquals(2, roundRobin.select());
+
+        endpoints[0].circuitBreaker.onFailure();
+        assertEquals(1, failover.select());
+        assertEquals(1, roundRobin.select());
+        assertEquals(1, roundRobin.select());
+        assertEquals(2, roundRobin.select());
+    }
+
+    private static InfluxDBEndpoint[] endpoints(final int count) {
+        final InfluxDBEndpoint[] endpoints = new InfluxDBEndpoint[count];
+        for (int i = 0; i < count; i++) {
+            final String url = "http://influxdb-" + i + ":8086";
+            endpoints[i] = new InfluxDBEndpoint(url, HTTP_CLIENT, new Request.Builder().url(url).build(),
+                    new CircuitBreaker(1, 1, TimeUnit.HOURS), 1);
+        }
+        return endpoints;
+    }
+
+    private static int route(final EndpointRouter router, final String id) {
+        final byte[] point = ("testdb,dataflow.tracking.id=" + id + " event_type=\"leave_nifi\" 1").getBytes(StandardCharsets.UTF_8);
+        return router.route(point, 0, point.length);
+    }
+
+    private static long key(final String point) {
+        final byte[] bytes = point.getBytes(StandardCharsets.UTF_8);
+        return EndpointRouter.hashRoutingKey(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,60 @@
+package org.dfm.tracking.services;
+
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.dfm.tracking.GenerateDataflowTrackingId;
+import org.dfm.tracking.util.InfluxDBStub;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class InfluxDB2ControllerServiceTest {
+
+    private InfluxDBStub influxdb;
+
+    private TestRunner testRunner;
+    private InfluxDB2ControllerService influxDB2ControllerService;
+
+    @BeforeEach
+    public void setUp() throws IOException, InitializationException {
+        influxdb = new InfluxDBStub();
+
+        testRunner = TestRunners.newTestRunner(GenerateDataflowTrackingId.class);
+        influxDB2ControllerService = new InfluxDB2ControllerService();
+        testRunner.addControllerService("influxDB2ControllerService", influxDB2ControllerService);
+        testRunner.setProperty(influxDB2ControllerService, InfluxDB2ControllerService.INFLUXDB_URL, influxdb.getUrl());
+        testRunner.setProperty(influxDB2ControllerService, InfluxDB2ControllerService.INFLUXDB_ORGANIZATION, "dfm");
+        testRunner.setProperty(influxDB2ControllerService, InfluxDB2ControllerService.INFLUXDB_BUCKET, "tracking");
+        testRunner.setProperty(influxDB2ControllerService, InfluxDB2ControllerService.INFLUXDB_TOKEN, "secret");
+        testRunner.setProperty(GenerateDataflowTrackingId.INFLUXDB_SERVICE, "influxDB2ControllerService");
+        testRunner.enableControllerService(influxDB2ControllerService);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        testRunner.disableControllerService(influxDB2ControllerService);
+        influxdb.close();
+    }
+
+    @Test
+    public void testWritesUseTheV2Api() {
+        testRunner.enqueue(new byte[0]);
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(GenerateDataflowTrackingId.REL_SUCCESS, 1);
+        assertEquals(1, influxdb.getWrittenPoints().size());
+        final String uri = influxdb.getRequestUris().get(0);
+        assertTrue(uri.startsWith("/api/v2/write?"), uri);
+        assertTrue(uri.contains("org=dfm"), uri);
+        assertTrue(uri.contains("bucket=tracking"), uri);
+        assertTrue(uri.contains("precision=ns"), uri);
+        assertEquals(List.of("Token secret"), influxdb.getAuthorizations());
+    }
+}
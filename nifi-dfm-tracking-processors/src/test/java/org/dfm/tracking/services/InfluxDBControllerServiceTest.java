@@ -0,0 +1,365 @@
+package org.dfm.tracking.services;
+
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.util.LogMessage;
+import org.apache.nifi.util.MockComponentLog;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.dfm.tracking.GenerateDataflowTrackingId;
+import org.dfm.tracking.util.InfluxDBStub;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class InfluxDBControllerServiceTest {
+
+    @TempDir
+    Path spillDirectory;
+
+    private InfluxDBStub influxdb;
+
+    private TestRunner testRunner;
+    private InfluxDBControllerService influxDBControllerService;
+
+    @BeforeEach
+    public void setUp() throws IOException, InitializationException {
+        influxdb = new InfluxDBStub();
+
+        testRunner = TestRunners.newTestRunner(GenerateDataflowTrackingId.class);
+        influxDBControllerService = new InfluxDBControllerService();
+        testRunner.addControllerService("influxDBControllerService", influxDBControllerService);
+        testRunner.setProperty(influxDBControllerService, InfluxDBControllerService.INFLUXDB_URL, influxdb.getUrl());
+        testRunner.setProperty(influxDBControllerService, InfluxDBControllerService.INFLUXDB_DATABASE, "testdb");
+        testRunner.setProperty(influxDBControllerService, InfluxDBControllerService.FLUSH_INTERVAL, "100 ms");
+        testRunner.setProperty(influxDBControllerService, InfluxDBControllerService.SPILL_DIRECTORY, spillDirectory.toString());
+        testRunner.setProperty(GenerateDataflowTrackingId.INFLUXDB_SERVICE, "influxDBControllerService");
+    }
+
+    @AfterEach
+    public void tearDown() {
+        if (testRunner.isControllerServiceEnabled(influxDBControllerService)) {
+            testRunner.disableControllerService(influxDBControllerService);
+        }
+        influxdb.close();
+    }
+
+    @Test
+    public void testFailedWritesAreSpilledAndReplayed() throws InterruptedException {
+        influxdb.setStatus(503);
+        testRunner.enableControllerService(influxDBControllerService);
+
+        for (int i = 0; i < 3; i++) {
+            testRunner.enqueue(new byte[0]);
+        }
+        testRunner.run();
+
+        // The flow files move on although InfluxDB is down
+        testRunner.assertAllFlowFilesTransferred(GenerateDataflowTrackingId.REL_SUCCESS, 3);
+        assertEquals(0, influxdb.getWrittenPoints().size());
+
+        influxdb.setStatus(204);
+        influxdb.awaitWrittenPoints(3);
+
+        // The replayer records the write once the response has been read
+        final long deadline = System.currentTimeMillis() + 10_000L;
+        while (influxDBControllerService.getMetrics().get("points.written").longValue() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        final Map<String, Number> metrics = influxDBControllerService.getMetrics();
+        assertEquals(3L, metrics.get("points.written"));
+        assertTrue(metrics.get("bytes.spilled").longValue() > 0, metrics.toString());
+    }
+
+    @Test
+    public void testJournalSurvivesRestart() throws InterruptedException {
+        influxdb.setStatus(503);
+        testRunner.setProperty(influxDBControllerService, InfluxDBControllerService.SPILL_SEGMENT_SIZE, "1 KB");
+        testRunner.enableControllerService(influxDBControllerService);
+
+        // Enough points to span several segments
+        for (int i = 0; i < 50; i++) {
+            final byte[] point = ("test_measurement,dataflow.tracking.id=" + i + " event_type=\"enter_dds\"").getBytes(StandardCharsets.UTF_8);
+            assertTrue(influxDBControllerService.spill(point, 0, point.length));
+        }
+        testRunner.disableControllerService(influxDBControllerService);
+
+        influxdb.setStatus(204);
+        testRunner.enableControllerService(influxDBControllerService);
+        influxdb.awaitWrittenPoints(50);
+        for (int i = 0; i < 50; i++) {
+            assertEquals("test_measurement,dataflow.tracking.id=" + i + " event_type=\"enter_dds\"", influxdb.getWrittenPoints().get(i));
+        }
+    }
+
+    @Test
+    public void testRejectedWritesAreNotSpilled() {
+        influxdb.setStatus(400);
+        testRunner.enableControllerService(influxDBControllerService);
+
+        testRunner.enqueue(new byte[0]);
+        testRunner.run();
+
+        // Retrying or journaling the points cannot help, and InfluxDB answered, so the circuit stays closed
+        testRunner.assertAllFlowFilesTransferred(GenerateDataflowTrackingId.REL_FAILURE, 1);
+        assertEquals(1, influxdb.getRequestUris().size());
+        assertEquals(0L, influxDBControllerService.getMetrics().get("spill.pending.bytes"));
+        assertEquals(CircuitBreaker.State.CLOSED, influxDBControllerService.getCircuitState());
+    }
+
+    @Test
+    public void testRejectedJournalRecordsAreDropped() throws InterruptedException {
+        influxdb.setStatus(503);
+        testRunner.enableControllerService(influxDBControllerService);
+        for (int i = 0; i < 3; i++) {
+            final byte[] point = ("test_measurement,dataflow.tracking.id=" + i + " event_type=\"enter_dds\"").getBytes(StandardCharsets.UTF_8);
+            assertTrue(influxDBControllerService.spill(point, 0, point.length));
+        }
+        testRunner.disableControllerService(influxDBControllerService);
+        final int requests = influxdb.getRequestUris().size();
+
+        // The combined replay is rejected, then the records are replayed one by one and only the first is rejected
+        influxdb.failNext(2, 400);
+        influxdb.setStatus(204);
+        testRunner.enableControllerService(influxDBControllerService);
+        influxdb.awaitWrittenPoints(2);
+        assertEquals(List.of(
+                "test_measurement,dataflow.tracking.id=1 event_type=\"enter_dds\"",
+                "test_measurement,dataflow.tracking.id=2 event_type=\"enter_dds\""), influxdb.getWrittenPoints());
+        assertEquals(requests + 4, influxdb.getRequestUris().size());
+    }
+
+    @Test
+    public void testRefusedCredentialsKeepTheJournal() throws InterruptedException {
+        influxdb.setStatus(503);
+        testRunner.enableControllerService(influxDBControllerService);
+        for (int i = 0; i < 3; i++) {
+            final byte[] point = ("test_measurement,dataflow.tracking.id=" + i + " event_type=\"enter_dds\"").getBytes(StandardCharsets.UTF_8);
+            assertTrue(influxDBControllerService.spill(point, 0, point.length));
+        }
+        testRunner.disableControllerService(influxDBControllerService);
+
+        // An expired password is an outage, not a rejection of the points: the journal is replayed over and over
+        influxdb.setStatus(401);
+        testRunner.setProperty(influxDBControllerService, InfluxDBControllerService.MAX_RETRIES, "0");
+        testRunner.enableControllerService(influxDBControllerService);
+        final long pending = influxDBControllerService.getMetrics().get("spill.pending.bytes").longValue();
+        final int requests = influxdb.getRequestUris().size();
+        final long deadline = System.currentTimeMillis() + 10_000L;
+        while (influxdb.getRequestUris().size() < requests + 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(influxdb.getRequestUris().size() >= requests + 3);
+        assertEquals(pending, influxDBControllerService.getMetrics().get("spill.pending.bytes").longValue());
+        final MockComponentLog log = testRunner.getControllerServiceLogger("influxDBControllerService");
+        assertEquals(1, log.getErrorMessages().stream().filter(message -> message.getMsg().contains("check the credentials")).count());
+
+        influxdb.setStatus(204);
+        influxdb.awaitWrittenPoints(3);
+    }
+
+    @Test
+    public void testTransientFailuresAreRetried() {
+        influxdb.failNext(2, 503);
+        testRunner.setProperty(influxDBControllerService, InfluxDBControllerService.INITIAL_BACKOFF, "1 ms");
+        testRunner.enableControllerService(influxDBControllerService);
+
+        testRunner.enqueue(new byte[0]);
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(GenerateDataflowTrackingId.REL_SUCCESS, 1);
+        assertEquals(1, influxdb.getWrittenPoints().size());
+        assertEquals(3, influxdb.getRequestUris().size());
+        assertEquals(2L, influxDBControllerService.getMetrics().get("retries"));
+        assertEquals(CircuitBreaker.State.CLOSED, influxDBControllerService.getCircuitState());
+    }
+
+    @Test
+    public void testWriteLatencyIsSummed() throws IOException {
+        testRunner.enableControllerService(influxDBControllerService);
+        influxdb.setResponseDelay(20);
+
+        final byte[] point = "m,dataflow.tracking.id=item-1 value=1i 1\n".getBytes(StandardCharsets.UTF_8);
+        final long start = System.nanoTime();
+        for (int i = 0; i < 3; i++) {
+            influxDBControllerService.write(point, 0, point.length);
+        }
+        final long elapsed = System.nanoTime() - start;
+
+        assertEquals(3, influxDBControllerService.getWrites());
+        final long latencySum = influxDBControllerService.getWriteLatencySumNanos();
+        assertTrue(latencySum >= TimeUnit.MILLISECONDS.toNanos(60) && latencySum <= elapsed, Long.toString(latencySum));
+    }
+
+    @Test
+    public void testOpenCircuitMakesProcessorsYield() {
+        influxdb.setStatus(503);
+        testRunner.removeProperty(influxDBControllerService, InfluxDBControllerService.SPILL_DIRECTORY);
+        testRunner.setProperty(influxDBControllerService, InfluxDBControllerService.MAX_RETRIES, "0");
+        testRunner.setProperty(influxDBControllerService, InfluxDBControllerService.CIRCUIT_BREAKER_THRESHOLD, "2");
+        testRunner.setProperty(influxDBControllerService, InfluxDBControllerService.CIRCUIT_BREAKER_OPEN_DURATION, "1 hour");
+        testRunner.setProperty(GenerateDataflowTrackingId.BATCH_SIZE, "1");
+        testRunner.enableControllerService(influxDBControllerService);
+
+        for (int i = 0; i < 3; i++) {
+            testRunner.enqueue(new byte[0]);
+        }
+        testRunner.run(3);
+
+        // Two failed writes open the circuit; the third flow file stays queued instead of failing
+        testRunner.assertTransferCount(GenerateDataflowTrackingId.REL_FAILURE, 2);
+        testRunner.assertQueueNotEmpty();
+        assertEquals(2, influxdb.getRequestUris().size());
+        assertEquals(CircuitBreaker.State.OPEN, influxDBControllerService.getCircuitState());
+        assertEquals(1, influxDBControllerService.getMetrics().get("circuit.open"));
+        assertFalse(influxDBControllerService.isAcceptingWrites());
+    }
+
+    @Test
+    public void testFailoverToTheNextInstance() throws IOException {
+        try (InfluxDBStub secondary = new InfluxDBStub()) {
+            influxdb.setStatus(503);
+            testRunner.removeProperty(influxDBControllerService, InfluxDBControllerService.SPILL_DIRECTORY);
+            testRunner.setProperty(influxDBControllerService, InfluxDBControllerService.INFLUXDB_URL, influxdb.getUrl() + ", " + secondary.getUrl());
+            testRunner.setProperty(influxDBControllerService, InfluxDBControllerService.MAX_RETRIES, "0");
+            testRunner.setProperty(influxDBControllerService, InfluxDBControllerService.CIRCUIT_BREAKER_THRESHOLD, "1");
+            testRunner.setProperty(influxDBControllerService, InfluxDBControllerService.CIRCUIT_BREAKER_OPEN_DURATION, "1 hour");
+            testRunner.setProperty(GenerateDataflowTrackingId.BATCH_SIZE, "1");
+            testRunner.enableControllerService(influxDBControllerService);
+
+            for (int i = 0; i < 3; i++) {
+                testRunner.enqueue(new byte[0]);
+            }
+            testRunner.run(3);
+
+            // The primary fails once, which opens its circuit; all writes go to the secondary from then on
+            testRunner.assertAllFlowFilesTransferred(GenerateDataflowTrackingId.REL_SUCCESS, 3);
+            assertEquals(1, influxdb.getRequestUris().size());
+            assertEquals(3, secondary.getWrittenPoints().size());
+            assertEquals(CircuitBreaker.State.CLOSED, influxDBControllerService.getCircuitState());
+            final Map<String, Number> metrics = influxDBControllerService.getMetrics();
+            assertEquals(1, metrics.get("endpoint.0.circuit.open"));
+            assertEquals(3L, metrics.get("endpoint.1.writes"));
+            assertTrue(influxDBControllerService.isAcceptingWrites());
+        }
+    }
+
+    @Test
+    public void testConsistentHashingShardsByDataItem() throws IOException {
+        try (InfluxDBStub second = new InfluxDBStub()) {
+            testRunner.setProperty(influxDBControllerService, InfluxDBControllerService.INFLUXDB_URL, influxdb.getUrl() + "," + second.getUrl());
+            testRunner.setProperty(influxDBControllerService, InfluxDBControllerService.ENDPOINT_ROUTING,
+                    InfluxDBControllerService.ROUTING_CONSISTENT_HASH.getValue());
+            testRunner.setProperty(GenerateDataflowTrackingId.BATCH_SIZE, "100");
+            testRunner.enableControllerService(influxDBControllerService);
+
+            for (int i = 0; i < 100; i++) {
+                testRunner.enqueue(new byte[0]);
+            }
+            testRunner.run();
+
+            // One write per instance, each with the points of its own data items
+            testRunner.assertAllFlowFilesTransferred(GenerateDataflowTrackingId.REL_SUCCESS, 100);
+            assertEquals(100, influxdb.getWrittenPoints().size() + second.getWrittenPoints().size());
+            assertEquals(1, influxdb.getRequestUris().size());
+            assertEquals(1, second.getRequestUris().size());
+            for (final String point : influxdb.getWrittenPoints()) {
+                final String id = point.substring(point.indexOf("dataflow.tracking.id=") + 21, point.indexOf(' '));
+                assertFalse(second.getWrittenPoints().stream().anyMatch(other -> other.contains("dataflow.tracking.id=" + id + " ")), point);
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentWritesPerInstanceAreBounded() throws Exception {
+        testRunner.setProperty(influxDBControllerService, InfluxDBControllerService.MAX_REQUESTS_PER_HOST, "2");
+        testRunner.enableControllerService(influxDBControllerService);
+        influxdb.setResponseDelay(100);
+
+        final byte[] point = "m,dataflow.tracking.id=item-1 value=1i 1\n".getBytes(StandardCharsets.UTF_8);
+        final ExecutorService writers = Executors.newFixedThreadPool(6);
+        try {
+            final List<Future<?>> writes = new ArrayList<>();
+            for (int i = 0; i < 6; i++) {
+                writes.add(writers.submit(() -> {
+                    influxDBControllerService.write(point, 0, point.length);
+                    return null;
+                }));
+            }
+            for (final Future<?> write : writes) {
+                write.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            writers.shutdownNow();
+        }
+
+        // Writers beyond the limit wait for a request in flight to complete
+        assertEquals(6, influxdb.getWrittenPoints().size());
+        assertEquals(2, influxdb.getMaxConcurrentRequests());
+    }
+
+    @Test
+    public void testMetricsAreReported() throws InterruptedException {
+        testRunner.setProperty(influxDBControllerService, InfluxDBControllerService.METRICS_REPORT_INTERVAL, "100 ms");
+        testRunner.setProperty(influxDBControllerService, InfluxDBControllerService.MAX_RETRIES, "0");
+        testRunner.enableControllerService(influxDBControllerService);
+        final MockComponentLog log = testRunner.getControllerServiceLogger("influxDBControllerService");
+
+        testRunner.enqueue(new byte[0]);
+        testRunner.run();
+        awaitMessage(log::getInfoMessages, "points.written=1");
+
+        // While points are spilled, the report becomes a warning and so a bulletin
+        influxdb.setStatus(503);
+        testRunner.enqueue(new byte[0]);
+        testRunner.run();
+        awaitMessage(log::getWarnMessages, "InfluxDB writes are degraded");
+    }
+
+    @Test
+    public void testInvalidUrlsAreRejected() {
+        testRunner.setProperty(influxDBControllerService, InfluxDBControllerService.INFLUXDB_URL, influxdb.getUrl() + ",influxdb:8086");
+        testRunner.assertNotValid(influxDBControllerService);
+    }
+
+    @Test
+    public void testLargeWritesAreCompressed() {
+        testRunner.setProperty(GenerateDataflowTrackingId.BATCH_SIZE, "100");
+        testRunner.enableControllerService(influxDBControllerService);
+
+        testRunner.enqueue(new byte[0]);
+        testRunner.run();
+        for (int i = 0; i < 100; i++) {
+            testRunner.enqueue(new byte[0]);
+        }
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(GenerateDataflowTrackingId.REL_SUCCESS, 101);
+        assertEquals(101, influxdb.getWrittenPoints().size());
+        assertEquals(List.of("identity", "gzip"), influxdb.getContentEncodings());
+    }
+
+    private static void awaitMessage(final Supplier<List<LogMessage>> messages, final String expected) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10_000L;
+        while (messages.get().stream().noneMatch(message -> message.getMsg().contains(expected)) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(messages.get().stream().anyMatch(message -> message.getMsg().contains(expected)), messages.get().toString());
+    }
+}
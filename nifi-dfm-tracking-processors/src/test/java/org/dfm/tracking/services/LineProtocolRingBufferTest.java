@@ -0,0 +1,112 @@
+package org.dfm.tracking.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LineProtocolRingBufferTest {
+
+    @Test
+    public void testWrapsAroundTheArrayEnd() throws InterruptedException {
+        final LineProtocolRingBuffer buffer = new LineProtocolRingBuffer(16);
+        assertTrue(offer(buffer, "aaaaa\nbbbbb\n", 0));
+        assertEquals("aaaaa\n", drain(buffer, 6));
+
+        // The tail passes the end of the array and continues at its start
+        assertTrue(offer(buffer, "ccccccc\n", 0));
+        assertEquals(14, buffer.getSize());
+        assertEquals(2, buffer.getPoints());
+        assertEquals("bbbbb\nccccccc\n", drain(buffer, 100));
+        assertEquals(0, buffer.getSize());
+        assertEquals(0, buffer.getPoints());
+        assertNull(buffer.drain(100));
+    }
+
+    @Test
+    public void testDrainsWholeLines() throws InterruptedException {
+        final LineProtocolRingBuffer buffer = new LineProtocolRingBuffer(64);
+        assertTrue(offer(buffer, "short\na-very-long-line\nx\n", 0));
+
+        // Only whole lines are drained, and a line longer than the limit on its own
+        assertEquals("short\n", drain(buffer, 10));
+        assertEquals("a-very-long-line\n", drain(buffer, 3));
+        assertEquals("x\n", drain(buffer, 3));
+        assertNull(buffer.drain(3));
+    }
+
+    @Test
+    public void testAppendsMissingNewline() throws InterruptedException {
+        final LineProtocolRingBuffer buffer = new LineProtocolRingBuffer(16);
+        assertTrue(offer(buffer, "a=1\nb=2", 0));
+        assertEquals(8, buffer.getSize());
+        assertEquals(2, buffer.getPoints());
+        assertEquals("a=1\nb=2\n", drain(buffer, 100));
+
+        // The appended newline counts towards the capacity
+        assertFalse(offer(buffer, "0123456789abcdef", 0));
+        assertTrue(offer(buffer, "0123456789abcde", 0));
+        assertEquals(16, buffer.getSize());
+    }
+
+    @Test
+    public void testOfferWaitsForSpace() throws Exception {
+        final LineProtocolRingBuffer buffer = new LineProtocolRingBuffer(8);
+        assertTrue(offer(buffer, "123456\n", 0));
+        assertFalse(offer(buffer, "a\nb\n", 10));
+        assertEquals(1, buffer.getPoints());
+
+        // A waiting producer gets the space once the consumer drains
+        final CompletableFuture<Boolean> waiting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return offer(buffer, "a\nb\n", TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread.sleep(50);
+        assertFalse(waiting.isDone());
+        assertEquals("123456\n", drain(buffer, 100));
+        assertTrue(waiting.get(10, TimeUnit.SECONDS));
+        assertEquals("a\nb\n", drain(buffer, 100));
+    }
+
+    @Test
+    public void testCloseStopsOffersButKeepsPoints() throws Exception {
+        final LineProtocolRingBuffer buffer = new LineProtocolRingBuffer(8);
+        assertTrue(offer(buffer, "123456\n", 0));
+        final CompletableFuture<Boolean> waiting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return offer(buffer, "a\nb\n", TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread.sleep(50);
+
+        buffer.close();
+        assertTrue(buffer.isClosed());
+        assertFalse(waiting.get(10, TimeUnit.SECONDS));
+        assertFalse(offer(buffer, "c\n", 0));
+        // A closed buffer does not wait for more points, and what it holds can still be drained
+        assertEquals(7, buffer.awaitSize(100, 10, TimeUnit.SECONDS));
+        assertEquals("123456\n", drain(buffer, 100));
+        assertNull(buffer.drain(100));
+    }
+
+    private static boolean offer(final LineProtocolRingBuffer buffer, final String points, final long timeoutMillis)
+            throws InterruptedException {
+        final byte[] bytes = points.getBytes(StandardCharsets.UTF_8);
+        return buffer.offer(bytes, 0, bytes.length, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static String drain(final LineProtocolRingBuffer buffer, final int maxBytes) {
+        return new String(buffer.drain(maxBytes), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,173 @@
+package org.dfm.tracking.services;
+
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.dfm.tracking.GenerateDataflowTrackingId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RollingFileTrackingSinkTest {
+
+    @TempDir
+    Path directory;
+
+    private TestRunner testRunner;
+    private RollingFileTrackingSink sink;
+
+    @BeforeEach
+    public void setUp() throws InitializationException {
+        testRunner = TestRunners.newTestRunner(GenerateDataflowTrackingId.class);
+        sink = new RollingFileTrackingSink();
+        testRunner.addControllerService("rollingFileTrackingSink", sink);
+        testRunner.setProperty(sink, RollingFileTrackingSink.DIRECTORY, directory.toString());
+        testRunner.setProperty(GenerateDataflowTrackingId.INFLUXDB_SERVICE, "rollingFileTrackingSink");
+    }
+
+    @Test
+    public void testSegmentsAreCompletedOnDisable() throws IOException {
+        testRunner.enableControllerService(sink);
+        for (int i = 0; i < 10; i++) {
+            testRunner.enqueue(new byte[0]);
+        }
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(GenerateDataflowTrackingId.REL_SUCCESS, 10);
+
+        // Nothing is visible until the segment is completed
+        assertEquals(List.of(), segments());
+        testRunner.disableControllerService(sink);
+
+        final List<Path> segments = segments();
+        assertEquals(1, segments.size());
+        final List<String> points = readPoints(segments.get(0));
+        assertEquals(10, points.size());
+        assertTrue(points.get(0).startsWith("dataflow_tracking_events,dataflow.tracking.id="), points.get(0));
+        assertEquals(10L, sink.getMetrics().get("points.written"));
+    }
+
+    @Test
+    public void testSegmentsRollAtMaxSize() throws IOException {
+        testRunner.setProperty(sink, RollingFileTrackingSink.MAX_SEGMENT_SIZE, "1 KB");
+        testRunner.enableControllerService(sink);
+
+        final List<String> written = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            final String point = "test_measurement,dataflow.tracking.id=" + i + " event_type=\"enter_dds\" " + i;
+            final byte[] bytes = point.getBytes(StandardCharsets.UTF_8);
+            sink.write(bytes, 0, bytes.length);
+            written.add(point);
+        }
+        testRunner.disableControllerService(sink);
+
+        final List<Path> segments = segments();
+        assertTrue(segments.size() > 1, segments.toString());
+        final List<String> points = new ArrayList<>();
+        for (final Path segment : segments) {
+            points.addAll(readPoints(segment));
+        }
+        assertEquals(written, points);
+    }
+
+    @Test
+    public void testRestartsKeepCompletedSegments() throws IOException, InitializationException {
+        final List<String> written = new ArrayList<>();
+        // A restart within the same second starts a new sequence under the same timestamp
+        for (int i = 0; i < 3; i++) {
+            final RollingFileTrackingSink sink = new RollingFileTrackingSink();
+            testRunner.addControllerService("restartedSink" + i, sink);
+            testRunner.setProperty(sink, RollingFileTrackingSink.DIRECTORY, directory.toString());
+            testRunner.enableControllerService(sink);
+            final String point = "test_measurement,dataflow.tracking.id=" + i + " event_type=\"enter_dds\" " + i;
+            final byte[] bytes = point.getBytes(StandardCharsets.UTF_8);
+            sink.write(bytes, 0, bytes.length);
+            written.add(point);
+            testRunner.disableControllerService(sink);
+        }
+
+        final List<String> points = new ArrayList<>();
+        for (final Path segment : segments()) {
+            points.addAll(readPoints(segment));
+        }
+        assertEquals(written.size(), points.size(), points.toString());
+        assertTrue(points.containsAll(written), points.toString());
+    }
+
+    @Test
+    public void testPartialSegmentsAreRecoveredOnEnable() throws IOException {
+        final Path partial = directory.resolve("tracking-20260101-120000-0" + RollingFileTrackingSink.SEGMENT_SUFFIX + RollingFileTrackingSink.PARTIAL_SUFFIX);
+        Files.write(partial, new byte[]{0x1f, (byte) 0x8b});
+        final Path other = directory.resolve("other-20260101-120000-0" + RollingFileTrackingSink.SEGMENT_SUFFIX + RollingFileTrackingSink.PARTIAL_SUFFIX);
+        Files.write(other, new byte[0]);
+
+        testRunner.enableControllerService(sink);
+
+        assertFalse(Files.exists(partial));
+        assertTrue(Files.exists(directory.resolve("tracking-20260101-120000-0" + RollingFileTrackingSink.SEGMENT_SUFFIX
+                + RollingFileTrackingSink.RECOVERED_SUFFIX)));
+        // Partial segments of other prefixes may belong to another sink
+        assertTrue(Files.exists(other));
+        assertEquals(1, testRunner.getControllerServiceLogger("rollingFileTrackingSink").getWarnMessages().size());
+        testRunner.disableControllerService(sink);
+    }
+
+    @Test
+    public void testFailedSegmentIsAbandoned() throws Exception {
+        testRunner.enableControllerService(sink);
+        final byte[] lost = "test_measurement,dataflow.tracking.id=lost event_type=\"enter_dds\" 1".getBytes(StandardCharsets.UTF_8);
+        sink.write(lost, 0, lost.length);
+
+        // Fail the next write to the segment file
+        final Field channel = RollingFileTrackingSink.class.getDeclaredField("channel");
+        channel.setAccessible(true);
+        ((FileChannel) channel.get(sink)).close();
+        sink.flush();
+
+        final byte[] kept = "test_measurement,dataflow.tracking.id=kept event_type=\"enter_dds\" 2".getBytes(StandardCharsets.UTF_8);
+        sink.write(kept, 0, kept.length);
+        testRunner.disableControllerService(sink);
+
+        final List<Path> segments = segments();
+        assertEquals(1, segments.size());
+        assertEquals(List.of(new String(kept, StandardCharsets.UTF_8)), readPoints(segments.get(0)));
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(1, files.filter(file -> file.getFileName().toString().endsWith(RollingFileTrackingSink.FAILED_SUFFIX)).count());
+        }
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(RollingFileTrackingSink.SEGMENT_SUFFIX))
+                    .sorted((a, b) -> Long.compare(sequence(a), sequence(b)))
+                    .toList();
+        }
+    }
+
+    private static long sequence(final Path segment) {
+        final String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(name.lastIndexOf('-') + 1, name.length() - RollingFileTrackingSink.SEGMENT_SUFFIX.length()));
+    }
+
+    private static List<String> readPoints(final Path segment) throws IOException {
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(segment))) {
+            final String content = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            return content.lines().toList();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package org.dfm.tracking.services;
+
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.dfm.tracking.LookupDataflowTrackingState;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TrackingStateLookupServiceTest {
+
+    private TestRunner testRunner;
+    private TrackingStateLookupService stateService;
+
+    @BeforeEach
+    public void setUp() throws InitializationException {
+        testRunner = TestRunners.newTestRunner(LookupDataflowTrackingState.class);
+        stateService = new TrackingStateLookupService();
+        testRunner.addControllerService("stateService", stateService);
+        testRunner.setProperty(stateService, TrackingStateLookupService.MAX_CACHE_SIZE, "1 MB");
+        testRunner.enableControllerService(stateService);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        testRunner.disableControllerService(stateService);
+    }
+
+    @Test
+    public void testLatestEventWins() {
+        final String id = UUID.randomUUID().toString();
+        stateService.update(id, "enter_dds", "", "", 100, 100);
+        stateService.update(id, "leave_dds", "PutKafka", "billing", 300, 100);
+        // Events that arrive late do not overwrite newer ones
+        stateService.update(id, "leave_nifi", "ConvertRecord", "", 200, 100);
+
+        assertEquals(new TrackingState("leave_dds", "PutKafka", "billing", 300, 100), stateService.get(id));
+        assertEquals(new TrackingState("enter_dds", "", "", 50, -1), updated("cluster-1-42", "enter_dds", 50, -1));
+        assertNull(stateService.get(UUID.randomUUID().toString()));
+        assertNull(stateService.get("unknown"));
+    }
+
+    @Test
+    public void testMemoryIsBounded() {
+        final int items = 200_000;
+        for (int i = 0; i < items; i++) {
+            stateService.update("item-" + i, "enter_dds", "", "", i, i);
+        }
+
+        // 1 MB holds far fewer items; the oldest are evicted first
+        assertTrue(stateService.getEvictions() > items / 2, "evictions: " + stateService.getEvictions());
+        assertEquals(new TrackingState("enter_dds", "", "", items - 1, items - 1), stateService.get("item-" + (items - 1)));
+        assertNull(stateService.get("item-0"));
+    }
+
+    @Test
+    public void testRecordLookup() throws Exception {
+        stateService.update("item-1", "leave_nifi", "ConvertRecord", "", 200, -1);
+
+        final Optional<Record> record = stateService.lookup(Map.of(TrackingStateLookupService.ID_KEY, "item-1"));
+        assertTrue(record.isPresent());
+        assertEquals("leave_nifi", record.get().getAsString("event_type"));
+        assertEquals("ConvertRecord", record.get().getAsString("nifi_component"));
+        assertEquals(200L, record.get().getAsLong("event_time_ns"));
+        assertNull(record.get().getValue("dds_entry_time_ns"));
+        assertTrue(stateService.lookup(Map.of(TrackingStateLookupService.ID_KEY, "item-2")).isEmpty());
+    }
+
+    private TrackingState updated(final String id, final String eventType, final long eventTimeNanos, final long ddsEntryTimeNanos) {
+        stateService.update(id, eventType, "", "", eventTimeNanos, ddsEntryTimeNanos);
+        return stateService.get(id);
+    }
+}
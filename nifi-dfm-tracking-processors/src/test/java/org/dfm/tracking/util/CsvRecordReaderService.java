@@ -0,0 +1,73 @@
+package org.dfm.tracking.util;
+
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.serialization.MalformedRecordException;
+import org.apache.nifi.serialization.RecordReader;
+import org.apache.nifi.serialization.RecordReaderFactory;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal record reader for tests: a header line of field names followed by one comma-separated line of string
+ * values per record. Reads one line at a time; a line with more values than the header has fields is malformed.
+ */
+public class CsvRecordReaderService extends AbstractControllerService implements RecordReaderFactory {
+
+    @Override
+    public RecordReader createRecordReader(final Map<String, String> variables, final InputStream in,
+                                           final long inputLength, final ComponentLog logger) throws IOException {
+        final BufferedReader lines = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        final String header = lines.readLine();
+        final List<RecordField> fields = new ArrayList<>();
+        if (header != null) {
+            for (final String name : header.split(",")) {
+                fields.add(new RecordField(name, RecordFieldType.STRING.getDataType()));
+            }
+        }
+        final RecordSchema schema = new SimpleRecordSchema(fields);
+
+        return new RecordReader() {
+            @Override
+            public Record nextRecord(final boolean coerceTypes, final boolean dropUnknownFields)
+                    throws IOException, MalformedRecordException {
+                final String line = lines.readLine();
+                if (line == null || line.isEmpty()) {
+                    return null;
+                }
+                final String[] values = line.split(",", -1);
+                if (values.length > fields.size()) {
+                    throw new MalformedRecordException("Expected " + fields.size() + " values: " + line);
+                }
+                final Map<String, Object> record = new LinkedHashMap<>();
+                for (int i = 0; i < fields.size(); i++) {
+                    record.put(fields.get(i).getFieldName(), i < values.length ? values[i] : null);
+                }
+                return new MapRecord(schema, record);
+            }
+
+            @Override
+            public RecordSchema getSchema() throws MalformedRecordException {
+                return schema;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
@@ -0,0 +1,63 @@
+package org.dfm.tracking.util;
+
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.serialization.AbstractRecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordSchema;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Minimal record writer for tests, writing the format read by {@link CsvRecordReaderService} with the schema it
+ * is given.
+ */
+public class CsvRecordWriterService extends AbstractControllerService implements RecordSetWriterFactory {
+
+    @Override
+    public RecordSchema getSchema(final Map<String, String> variables, final RecordSchema readSchema) {
+        return readSchema;
+    }
+
+    @Override
+    public RecordSetWriter createWriter(final ComponentLog logger, final RecordSchema schema, final OutputStream out,
+                                        final Map<String, String> variables) {
+        return new AbstractRecordSetWriter(out) {
+            @Override
+            protected void onBeginRecordSet() throws IOException {
+                writeLine(schema.getFieldNames().stream().collect(Collectors.joining(",")));
+            }
+
+            @Override
+            protected Map<String, String> writeRecord(final Record record) throws IOException {
+                final StringBuilder line = new StringBuilder();
+                for (final RecordField field : schema.getFields()) {
+                    if (line.length() > 0) {
+                        line.append(',');
+                    }
+                    final Object value = record.getValue(field);
+                    line.append(value == null ? "" : value);
+                }
+                writeLine(line.toString());
+                return Collections.emptyMap();
+            }
+
+            @Override
+            public String getMimeType() {
+                return "text/csv";
+            }
+
+            private void writeLine(final String line) throws IOException {
+                getOutputStream().write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+        };
+    }
+}
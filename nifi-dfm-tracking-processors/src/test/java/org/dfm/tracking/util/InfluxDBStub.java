@@ -0,0 +1,135 @@
+package org.dfm.tracking.util;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Local stand-in for the InfluxDB write endpoint which records the points of every accepted write.
+ */
+public class InfluxDBStub implements Closeable {
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final AtomicInteger status = new AtomicInteger(204);
+    private final AtomicInteger failuresLeft = new AtomicInteger();
+    private final AtomicInteger failureStatus = new AtomicInteger();
+    private final AtomicInteger responseDelayMillis = new AtomicInteger();
+    private final AtomicInteger concurrentRequests = new AtomicInteger();
+    private final AtomicInteger maxConcurrentRequests = new AtomicInteger();
+    private final List<String> writtenPoints = new CopyOnWriteArrayList<>();
+    private final List<String> requestUris = new CopyOnWriteArrayList<>();
+    private final List<String> contentEncodings = new CopyOnWriteArrayList<>();
+    private final List<String> authorizations = new CopyOnWriteArrayList<>();
+
+    public InfluxDBStub() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            final String contentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+            final InputStream in = "gzip".equals(contentEncoding)
+                    ? new GZIPInputStream(exchange.getRequestBody())
+                    : exchange.getRequestBody();
+            final String body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            requestUris.add(exchange.getRequestURI().toString());
+            contentEncodings.add(contentEncoding == null ? "identity" : contentEncoding);
+            final String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+            authorizations.add(authorization == null ? "" : authorization);
+            maxConcurrentRequests.accumulateAndGet(concurrentRequests.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(responseDelayMillis.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                concurrentRequests.decrementAndGet();
+            }
+            final int code = failuresLeft.getAndUpdate(n -> Math.max(0, n - 1)) > 0 ? failureStatus.get() : status.get();
+            if (code == 204) {
+                for (final String line : body.split("\n")) {
+                    if (!line.isEmpty()) {
+                        writtenPoints.add(line);
+                    }
+                }
+            }
+            exchange.sendResponseHeaders(code, -1);
+            exchange.close();
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Sets the status code of subsequent responses; points are only recorded for 204.
+     */
+    public void setStatus(final int code) {
+        status.set(code);
+    }
+
+    /**
+     * Answers the next {@code count} requests with {@code code} before returning to the configured status.
+     */
+    public void failNext(final int count, final int code) {
+        failureStatus.set(code);
+        failuresLeft.set(count);
+    }
+
+    /**
+     * Delays every response, so that concurrent requests overlap.
+     */
+    public void setResponseDelay(final int millis) {
+        responseDelayMillis.set(millis);
+    }
+
+    /**
+     * @return the highest number of requests handled at the same time
+     */
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests.get();
+    }
+
+    public List<String> getWrittenPoints() {
+        return writtenPoints;
+    }
+
+    public List<String> getRequestUris() {
+        return requestUris;
+    }
+
+    public List<String> getContentEncodings() {
+        return contentEncodings;
+    }
+
+    public List<String> getAuthorizations() {
+        return authorizations;
+    }
+
+    public void awaitWrittenPoints(final int expected) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (writtenPoints.size() < expected && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(expected, writtenPoints.size());
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}